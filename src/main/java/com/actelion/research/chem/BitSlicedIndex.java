@@ -0,0 +1,227 @@
+/*
+* Copyright (c) 1997 - 2016
+* Actelion Pharmaceuticals Ltd.
+* Gewerbestrasse 16
+* CH-4123 Allschwil, Switzerland
+*
+* All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without
+* modification, are permitted provided that the following conditions are met:
+*
+* 1. Redistributions of source code must retain the above copyright notice, this
+*    list of conditions and the following disclaimer.
+* 2. Redistributions in binary form must reproduce the above copyright notice,
+*    this list of conditions and the following disclaimer in the documentation
+*    and/or other materials provided with the distribution.
+* 3. Neither the name of the the copyright holder nor the
+*    names of its contributors may be used to endorse or promote products
+*    derived from this software without specific prior written permission.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+* ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+* WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+* DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+* ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+* (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+* LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+* ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+* (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+* SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*
+*/
+
+package com.actelion.research.chem;
+
+/**
+ * BitSlicedIndex is a column oriented store of SSSearcherWithIndex indexes (FragFp) of many molecules.
+ * Instead of keeping one int[] per molecule, it keeps one long[] bitmap per index key, in which
+ * every bit represents one row, i.e. molecule. Sub-structure pre-screening of a query fragment is then
+ * done by AND-ing only those key columns, which are set in the query's index. The columns of the rarest
+ * keys are applied first, such that blocks without any candidates are skipped early.
+ * Row r is represented by bit (r & 63) of word (r >>> 6) in every column.
+ */
+public class BitSlicedIndex {
+	private static final int CHUNK_WORDS = 1024;	// 64k rows per chunk; keeps the candidate chunk in L1/L2 cache
+
+	private int mIntsPerIndex,mRowCount;
+	private long[][] mColumn;
+	private int[] mKeyRowCount;
+
+	/**
+	 * Creates an empty store for indexes of intsPerIndex int values each.
+	 * @param intsPerIndex size of one index in ints, e.g. (SSSearcherWithIndex.getNoOfKeys()+31)/32
+	 * @param rowCapacity initial number of rows that can be added before the columns need to grow
+	 */
+	public BitSlicedIndex(int intsPerIndex, int rowCapacity) {
+		mIntsPerIndex = intsPerIndex;
+		int words = Math.max(1, (rowCapacity+63) >>> 6);
+		mColumn = new long[32*intsPerIndex][words];
+		mKeyRowCount = new int[32*intsPerIndex];
+		}
+
+	/**
+	 * Creates a store from row oriented indexes. Null entries are considered
+	 * rows without any key set, i.e. they only match queries without any keys.
+	 * @param index FragFp indexes of all rows
+	 */
+	public BitSlicedIndex(int[][] index) {
+		this(getIntsPerIndex(index), index.length);
+		for (int row=0; row<index.length; row++)
+			addIndex(index[row]);
+		}
+
+	private static int getIntsPerIndex(int[][] index) {
+		for (int[] i:index)
+			if (i != null)
+				return i.length;
+		return (SSSearcherWithIndex.getNoOfKeys()+31)/32;
+		}
+
+	public int getRowCount() {
+		return mRowCount;
+		}
+
+	public int getKeyCount() {
+		return 32*mIntsPerIndex;
+		}
+
+	/**
+	 * @return number of long words covering all rows in every column
+	 */
+	public int getWordCount() {
+		return (mRowCount+63) >>> 6;
+		}
+
+	/**
+	 * Appends the index of a new row to the store.
+	 * @param index FragFp index or null
+	 * @return row number of the added index
+	 */
+	public int addIndex(int[] index) {
+		int row = mRowCount;
+		if ((row >>> 6) == mColumn[0].length) {
+			int words = 2*mColumn[0].length;
+			for (int key=0; key<mColumn.length; key++) {
+				long[] column = new long[words];
+				System.arraycopy(mColumn[key], 0, column, 0, mColumn[key].length);
+				mColumn[key] = column;
+				}
+			}
+
+		if (index != null) {
+			long bit = 1L << (row & 63);
+			int word = row >>> 6;
+			for (int i=0; i<mIntsPerIndex; i++) {
+				int value = index[i];
+				while (value != 0) {
+					int b = Integer.numberOfLeadingZeros(value);
+					value &= ~(0x80000000 >>> b);
+					int key = 32*i+b;	// key i is encoded in index[i/32] as bit 31-i%32
+					mColumn[key][word] |= bit;
+					mKeyRowCount[key]++;
+					}
+				}
+			}
+
+		mRowCount++;
+		return row;
+		}
+
+	/**
+	 * Reconstructs the row oriented index of one row.
+	 * @param row
+	 * @return FragFp index of the row
+	 */
+	public int[] getIndex(int row) {
+		int[] index = new int[mIntsPerIndex];
+		long bit = 1L << (row & 63);
+		int word = row >>> 6;
+		for (int key=0; key<mColumn.length; key++)
+			if ((mColumn[key][word] & bit) != 0)
+				index[key/32] |= (1 << (31-key%32));
+		return index;
+		}
+
+	/**
+	 * Determines the keys set in the query index sorted by increasing frequency
+	 * of the keys in the store. This list is meant to be passed to getCandidates()
+	 * if the candidates are determined block-wise.
+	 * @param fragmentIndex FragFp index of the query fragment
+	 * @return keys of the query with the rarest key first
+	 */
+	public int[] getQueryKeys(int[] fragmentIndex) {
+		int count = 0;
+		for (int i=0; i<mIntsPerIndex; i++)
+			count += Integer.bitCount(fragmentIndex[i]);
+
+		long[] sortable = new long[count];
+		count = 0;
+		for (int key=0; key<mColumn.length; key++)
+			if ((fragmentIndex[key/32] & (1 << (31-key%32))) != 0)
+				sortable[count++] = ((long)mKeyRowCount[key] << 32) | key;
+		java.util.Arrays.sort(sortable);
+
+		int[] queryKey = new int[count];
+		for (int i=0; i<count; i++)
+			queryKey[i] = (int)sortable[i];
+		return queryKey;
+		}
+
+	/**
+	 * Determines the candidate rows of a sub-structure search, i.e. the rows which contain
+	 * all keys of the query.
+	 * @param fragmentIndex FragFp index of the query fragment
+	 * @return bitmap of candidate rows; row r is bit (r & 63) of word (r >>> 6)
+	 */
+	public long[] getCandidates(int[] fragmentIndex) {
+		int[] queryKey = getQueryKeys(fragmentIndex);
+		int wordCount = getWordCount();
+		long[] candidate = new long[wordCount];
+		long[] buffer = new long[Math.min(CHUNK_WORDS, wordCount)];
+		for (int firstWord=0; firstWord<wordCount; firstWord+=CHUNK_WORDS) {
+			int words = Math.min(CHUNK_WORDS, wordCount-firstWord);
+			getCandidates(queryKey, firstWord, words, buffer);
+			System.arraycopy(buffer, 0, candidate, firstWord, words);
+			}
+		return candidate;
+		}
+
+	/**
+	 * Determines the candidate rows within a block of rows, which is defined by its first
+	 * word and word count. Different threads may process different blocks concurrently.
+	 * @param queryKey sorted query keys as returned by getQueryKeys()
+	 * @param firstWord first 64-row word of the block
+	 * @param wordCount number of words in the block
+	 * @param candidate receives wordCount words of the candidate bitmap
+	 * @return number of candidate rows in the block
+	 */
+	public int getCandidates(int[] queryKey, int firstWord, int wordCount, long[] candidate) {
+		if (queryKey.length == 0) {
+			int count = 0;
+			for (int i=0; i<wordCount; i++) {
+				int rows = Math.min(64, mRowCount - ((firstWord+i) << 6));
+				candidate[i] = (rows == 64) ? -1L : (rows <= 0) ? 0L : (1L << rows) - 1;
+				count += Math.max(0, Math.min(64, rows));
+				}
+			return count;
+			}
+
+		System.arraycopy(mColumn[queryKey[0]], firstWord, candidate, 0, wordCount);
+		for (int k=1; k<queryKey.length; k++) {
+			long[] column = mColumn[queryKey[k]];
+			long any = 0L;
+			for (int i=0; i<wordCount; i++) {
+				candidate[i] &= column[firstWord+i];
+				any |= candidate[i];
+				}
+			if (any == 0L)
+				return 0;
+			}
+
+		int count = 0;
+		for (int i=0; i<wordCount; i++)
+			count += Long.bitCount(candidate[i]);
+		return count;
+		}
+	}
@@ -40,6 +40,8 @@
 
 package com.actelion.research.chem;
 
+import com.actelion.research.util.MurmurHash3;
+
 import java.util.*;
 
 public class Canonizer {
@@ -71,6 +73,10 @@ public class Canonizer {
 	// Assign parities to tetrahedral nitrogen (useful in crystals or at low temp, when N inversion is frozen out)
 	public static final int ASSIGN_PARITIES_TO_TETRAHEDRAL_N = 32;
 
+	// Run the complete stereo perception even if the molecule cannot contain any stereo features.
+	// Results are the same with or without this flag; it is meant for validation and benchmarking.
+	public static final int ALWAYS_PERCEIVE_STEREO = 64;
+
 	protected static final int cIDCodeVersion2 = 8;
 		// productive version till May 2006 based on the molfile version 2
 
@@ -95,6 +101,13 @@ public class Canonizer {
 	public static final int MAX_ATOMS = 0xFFFF;
 	public static final int MAX_BONDS = 0xFFFF;
 
+	private static final ThreadLocal<Canonizer> sThreadCanonizer = new ThreadLocal<Canonizer>() {
+		@Override
+		protected Canonizer initialValue() {
+			return new Canonizer();
+			}
+		};
+
 	private ExtendedMolecule mMol;
 	private int[] mCanRank;
 	private int[] mCanRankBeforeTieBreaking;
@@ -110,6 +123,12 @@ public class Canonizer {
 	private byte[] mEZESRGroup;
 	private byte[] mAbnormalValence;
 	private CanonizerBaseValue[] mCanBase;
+	private int[] mCanRankClassStart,mCanRankClassCount,mCanRankClassAtom,mCanRankSortBuffer;
+	private int[] mCanRankBeforeConsolidation,mCanNeighbourRank,mCanConnRank;
+	private long[] mCanNeighbourKey;
+	private int mCanRankBits;
+	private boolean mCanRankIsStable;
+	private boolean[] mCanRankClassMayChange,mCanRankClassSplit;
 	private CanonizerMesoHelper mMesoHelper;
 	private boolean mIsMeso,mStereoCentersFound;
 	private boolean[] mIsStereoCenter;  // based on extended stereo ranking, i.e. considering ESR type and group
@@ -125,20 +144,23 @@ public class Canonizer {
 	private ArrayList<CanonizerFragment> mFragmentList;
 	private ArrayList<int[]> mTHParityNormalizationGroupList;
 	private int mMode,mNoOfRanks;
-	private boolean mIsOddParityRound;
+	private boolean mIsOddParityRound,mIsStereoFree;
 	private boolean mZCoordinatesAvailable;
 	private boolean mCIPParityNoDistinctionProblem;
 
-	private boolean mGraphGenerated;
+	private boolean mGraphGenerated,mConfigurationsGenerated;
 	private int mGraphRings;
 	private int[] mGraphAtom;
 	private int[] mGraphIndex;
 	private int[] mGraphBond;
 	private int[] mGraphFrom;
 	private int[] mGraphClosure;
+	private boolean[] mGraphAtomHandled,mGraphBondHandled;
 
 	private String		  mIDCode,mCoordinates,mMapping;
 	private StringBuilder	mEncodingBuffer;
+	private MurmurHash3		mCanonicalHash;
+	private boolean			mIsCanonicalHashValid,mIsHashingEncoding;
 	private	int				mEncodingBitsAvail,mEncodingTempData,mMaxConnAtoms;
 
 	/**
@@ -158,9 +180,90 @@ public class Canonizer {
 	 * used for atom ranking and are encoded into the idcode.
 	 * 
 	 * @param mol
-	 * @param mode 0 or one or more of CONSIDER...TOPICITY, CREATE_SYMMETRY_RANK, ENCODE_ATOM_CUSTOM_LABELS, ASSIGN_PARITIES_TO_TETRAHEDRAL_N
+	 * @param mode 0 or one or more of CONSIDER...TOPICITY, CREATE_SYMMETRY_RANK, ENCODE_ATOM_CUSTOM_LABELS, ASSIGN_PARITIES_TO_TETRAHEDRAL_N, ALWAYS_PERCEIVE_STEREO
 	 */
 	public Canonizer(ExtendedMolecule mol, int mode) {
+		canonize(mol, mode);
+		}
+
+
+	/**
+	 * Creates a Canonizer without molecule, which needs to be reset with a molecule before use.
+	 */
+	private Canonizer() {
+		}
+
+
+	/**
+	 * Returns a Canonizer owned by the calling thread, which was reset to canonize mol.
+	 * This avoids the allocation of most internal buffers when canonizing large numbers of
+	 * molecules, e.g. when generating descriptors from fragments. The returned Canonizer
+	 * is reset by the next call of this method from the same thread. Thus, it must not be
+	 * passed to other threads nor be kept, and its results must be retrieved before any other
+	 * code, that may use the thread's Canonizer, is called.
+	 * Until releaseThreadCanonizer() is called, the thread's Canonizer keeps a reference
+	 * to the last canonized molecule and buffers sized for the largest molecule so far.
+	 * @param mol
+	 * @param mode 0 or one or more of CONSIDER...TOPICITY, CREATE_SYMMETRY_RANK, ENCODE_ATOM_CUSTOM_LABELS, ASSIGN_PARITIES_TO_TETRAHEDRAL_N, ALWAYS_PERCEIVE_STEREO
+	 * @return the calling thread's Canonizer after canonizing mol
+	 */
+	public static Canonizer getThreadCanonizer(ExtendedMolecule mol, int mode) {
+		Canonizer canonizer = sThreadCanonizer.get();
+		canonizer.reset(mol, mode);
+		return canonizer;
+		}
+
+
+	/**
+	 * Discards the calling thread's Canonizer together with the molecule and buffers it keeps.
+	 * Long living threads should call this after a bulk job that used getThreadCanonizer().
+	 */
+	public static void releaseThreadCanonizer() {
+		sThreadCanonizer.remove();
+		}
+
+
+	/**
+	 * Discards all results of the previous canonicalization and canonizes mol,
+	 * reusing internal buffers where possible. Arrays returned by getFinalRank()
+	 * and getGraphIndexes() before the reset remain valid.
+	 * @param mol
+	 */
+	public void reset(ExtendedMolecule mol) {
+		reset(mol, 0);
+		}
+
+
+	/**
+	 * Discards all results of the previous canonicalization and canonizes mol,
+	 * reusing internal buffers where possible. Arrays returned by getFinalRank()
+	 * and getGraphIndexes() before the reset remain valid.
+	 * @param mol
+	 * @param mode 0 or one or more of CONSIDER...TOPICITY, CREATE_SYMMETRY_RANK, ENCODE_ATOM_CUSTOM_LABELS, ASSIGN_PARITIES_TO_TETRAHEDRAL_N, ALWAYS_PERCEIVE_STEREO
+	 */
+	public void reset(ExtendedMolecule mol, int mode) {
+		mCanRankBeforeTieBreaking = null;
+		mAbnormalValence = null;
+		mMesoHelper = null;
+		mFragmentList = null;
+		mTHCIPParity = null;
+		mEZCIPParity = null;
+		mIsMeso = false;
+		mStereoCentersFound = false;
+		mZCoordinatesAvailable = false;
+		mCanRankIsStable = false;
+		mGraphGenerated = false;
+		mConfigurationsGenerated = false;
+		mIsCanonicalHashValid = false;
+		mIDCode = null;
+		mCoordinates = null;
+		mMapping = null;
+
+		canonize(mol, mode);
+		}
+
+
+	private void canonize(ExtendedMolecule mol, int mode) {
 		if (mol.getAllAtoms()>MAX_ATOMS)
 			throw new IllegalArgumentException("Cannot canonize a molecule having more than "+MAX_ATOMS+" atoms");
 		if (mol.getAllBonds()>MAX_BONDS)
@@ -179,22 +282,55 @@ public class Canonizer {
 				}
 			}
 
-		mTHParity = new byte[mMol.getAtoms()];
-		mTHParityIsPseudo = new boolean[mMol.getAtoms()];
-		mTHParityRoundIsOdd = new boolean[mMol.getAtoms()];
-		mEZParity = new byte[mMol.getBonds()];
-		mEZParityRoundIsOdd = new boolean[mMol.getBonds()];
-		mEZParityIsPseudo = new boolean[mMol.getBonds()];
+		mTHParity = getClearedArray(mTHParity, mMol.getAtoms());
+		mTHParityIsPseudo = getClearedArray(mTHParityIsPseudo, mMol.getAtoms());
+		mTHParityRoundIsOdd = getClearedArray(mTHParityRoundIsOdd, mMol.getAtoms());
+		mEZParity = getClearedArray(mEZParity, mMol.getBonds());
+		mEZParityRoundIsOdd = getClearedArray(mEZParityRoundIsOdd, mMol.getBonds());
+		mEZParityIsPseudo = getClearedArray(mEZParityIsPseudo, mMol.getBonds());
 
 		mCIPParityNoDistinctionProblem = false;
 
 		canInitializeRanking();
-		canRankStereo();
+
+		mIsStereoFree = ((mMode & ALWAYS_PERCEIVE_STEREO) == 0 && !canHaveStereoFeatures());
+		if (mIsStereoFree)
+			canSkipStereoRanking();
+		else
+			canRankStereo();
+
 		canRankFinal();
 //		if (mCIPParityNoDistinctionProblem)
 //			System.out.println("No distinction applying CIP rules: "+getIDCode()+" "+getEncodedCoordinates());
 		}
 
+
+	/**
+	 * @return array, if it has at least size elements, with the first size elements set to 0; otherwise a new array
+	 */
+	private static byte[] getClearedArray(byte[] array, int size) {
+		if (array == null || array.length < size)
+			return new byte[size];
+		Arrays.fill(array, 0, size, (byte)0);
+		return array;
+		}
+
+
+	private static int[] getClearedArray(int[] array, int size) {
+		if (array == null || array.length < size)
+			return new int[size];
+		Arrays.fill(array, 0, size, 0);
+		return array;
+		}
+
+
+	private static boolean[] getClearedArray(boolean[] array, int size) {
+		if (array == null || array.length < size)
+			return new boolean[size];
+		Arrays.fill(array, 0, size, false);
+		return array;
+		}
+
 	public boolean hasCIPParityDistinctionProblem() {
 		return mCIPParityNoDistinctionProblem;
 		}
@@ -207,7 +343,7 @@ public class Canonizer {
 	 * or - flag ASSIGN_PARITIES_TO_TETRAHEDRAL_N is set
 	 */
 	private void canFindNitrogenQualifyingForParity() {
-		mNitrogenQualifiesForParity = new boolean[mMol.getAtoms()];
+		mNitrogenQualifiesForParity = getClearedArray(mNitrogenQualifiesForParity, mMol.getAtoms());
 		for (int atom=0; atom<mMol.getAtoms(); atom++) {
 			if (mMol.getAtomicNo(atom) == 7) {
 				if (mMol.getConnAtoms(atom) == 4) {
@@ -424,18 +560,7 @@ public class Canonizer {
 			initializeParities(noOfRanksWithoutStereo, canRankWithoutStereo);
 			}
 
-		mTHESRType = new byte[mMol.getAtoms()];
-		mTHESRGroup = new byte[mMol.getAtoms()];
-		for (int atom=0; atom<mMol.getAtoms(); atom++) {
-			mTHESRType[atom] = (byte)mMol.getAtomESRType(atom);
-			mTHESRGroup[atom] = (byte)mMol.getAtomESRGroup(atom);
-			}
-		mEZESRType = new byte[mMol.getBonds()];
-		mEZESRGroup = new byte[mMol.getBonds()];
-		for (int bond=0; bond<mMol.getBonds(); bond++) {
-			mEZESRType[bond] = (byte)mMol.getBondESRType(bond);
-			mEZESRGroup[bond] = (byte)mMol.getBondESRGroup(bond);
-			}
+		canInitializeESRGroups();
 
    		// In meso fragments we may have arbitrary ESR group assignments,
 		// i.e. there are different possible ESR groupings defining the same
@@ -454,7 +579,7 @@ public class Canonizer {
 
 		// indicate all stereo centers
 		mStereoCentersFound = false;
-		mIsStereoCenter = new boolean[mMol.getAtoms()];
+		mIsStereoCenter = getClearedArray(mIsStereoCenter, mMol.getAtoms());
 		for (int atom=0; atom<mMol.getAtoms(); atom++) {
 			if (mTHParity[atom] != Molecule.cAtomParityNone) {
 				mIsStereoCenter[atom] = true;
@@ -472,7 +597,7 @@ System.out.println();
 		canRemoveOverspecifiedESRGroups();
 
 		mMesoHelper = null;
-		mTHESRTypeNeedsNormalization = new boolean[mMol.getAtoms()];
+		mTHESRTypeNeedsNormalization = getClearedArray(mTHESRTypeNeedsNormalization, mMol.getAtoms());
 		if (mStereoCentersFound) {
 			mMesoHelper = new CanonizerMesoHelper(mMol,
 												  canRankWithoutStereo,
@@ -494,7 +619,7 @@ System.out.println();
 		// schedule all atoms of any ESR group (AND and OR) to be normalized
 		// concerning their parities, in order to be able to consider the
 		// parities for ranking and ,thus, for recursive parity determination.
-		mTHParityNeedsNormalization = new boolean[mMol.getAtoms()];
+		mTHParityNeedsNormalization = getClearedArray(mTHParityNeedsNormalization, mMol.getAtoms());
 		mTHParityNormalizationGroupList = new ArrayList<int[]>();
 		canMarkESRGroupsForParityNormalization();
 
@@ -517,12 +642,162 @@ System.out.println();
 		}
 
 
+	/**
+	 * Replaces canRankStereo(), if canHaveStereoFeatures() has shown that no stereo center,
+	 * stereo bond or pseudo stereo feature can be found. Leaves the ranking untouched and
+	 * sets the same state that a stereo perception without any findings would leave behind.
+	 */
+	private void canSkipStereoRanking() {
+		if (!mMol.isFragment()) {
+			mTHCIPParity = new byte[mMol.getAtoms()];
+			mEZCIPParity = new byte[mMol.getBonds()];
+			}
+
+		canInitializeESRGroups();
+
+		mStereoCentersFound = false;
+		mIsStereoCenter = getClearedArray(mIsStereoCenter, mMol.getAtoms());
+		canRemoveOverspecifiedESRGroups();
+
+		mMesoHelper = null;
+		mTHESRTypeNeedsNormalization = getClearedArray(mTHESRTypeNeedsNormalization, mMol.getAtoms());
+		mTHParityNeedsNormalization = getClearedArray(mTHParityNeedsNormalization, mMol.getAtoms());
+		mTHParityNormalizationGroupList = new ArrayList<int[]>();
+
+		mMol.setChirality(Molecule.cChiralityNotChiral);
+		}
+
+
+	private void canInitializeESRGroups() {
+		mTHESRType = getClearedArray(mTHESRType, mMol.getAtoms());
+		mTHESRGroup = getClearedArray(mTHESRGroup, mMol.getAtoms());
+		for (int atom=0; atom<mMol.getAtoms(); atom++) {
+			mTHESRType[atom] = (byte)mMol.getAtomESRType(atom);
+			mTHESRGroup[atom] = (byte)mMol.getAtomESRGroup(atom);
+			}
+		mEZESRType = getClearedArray(mEZESRType, mMol.getBonds());
+		mEZESRGroup = getClearedArray(mEZESRGroup, mMol.getBonds());
+		for (int bond=0; bond<mMol.getBonds(); bond++) {
+			mEZESRType[bond] = (byte)mMol.getBondESRType(bond);
+			mEZESRGroup[bond] = (byte)mMol.getBondESRGroup(bond);
+			}
+		}
+
+
+	/**
+	 * Checks with the ranking before considering any stereo information, whether any atom
+	 * or bond passes those conditions of canCalcTHParity() or canCalcEZParity(), which don't
+	 * depend on coordinates, either for a real parity or for a pro-parity. Stereo features
+	 * can only split ranks, which cannot happen, if no stereo feature is found with the initial
+	 * ranking. Thus, if this method returns false, then stereo perception would not find any
+	 * stereo feature, pro-parity nor pseudo parity and may be skipped.
+	 * @return false, if the molecule provably cannot have any stereo features
+	 */
+	private boolean canHaveStereoFeatures() {
+		for (int atom=0; atom<mMol.getAtoms(); atom++)
+			if (isPotentialStereoCenter(atom))
+				return true;
+		for (int bond=0; bond<mMol.getBonds(); bond++)
+			if (isPotentialStereoBond(bond))
+				return true;
+		return false;
+		}
+
+
+	private boolean isPotentialStereoCenter(int atom) {
+		int atomicNo = mMol.getAtomicNo(atom);
+		if (atomicNo != 6
+		 && atomicNo != 7
+		 && atomicNo != 14
+		 && atomicNo != 15
+		 && atomicNo != 16)
+			return false;
+
+		if (mMol.getAtomPi(atom) != 0) {
+			if (isCentralAlleneAtom(atom))
+				return true;
+
+			if (atomicNo != 15
+			 && atomicNo != 16)
+				return false;
+			}
+
+		if (mMol.getConnAtoms(atom) < 3 || mMol.getAllConnAtoms(atom) > 4)
+			return false;
+
+		if (atomicNo == 7
+		 && !mNitrogenQualifiesForParity[atom])
+			return false;
+
+		// With three neighbours there must not be three equally ranking ones,
+		// with four neighbours there must not be more than one pair of equally ranking ones.
+		int equalRankPairs = 0;
+		for (int i=1; i<mMol.getAllConnAtoms(atom); i++)
+			for (int j=0; j<i; j++)
+				if (mCanRank[mMol.getConnAtom(atom, i)] == mCanRank[mMol.getConnAtom(atom, j)])
+					equalRankPairs++;
+
+		return equalRankPairs <= 1;
+		}
+
+
+	private boolean isPotentialStereoBond(int bond) {
+		if (mMol.getBondOrder(bond) == 1)
+			return mMol.isBINAPChiralityBond(bond);
+
+		if (mMol.getBondOrder(bond) != 2
+		 || mMol.isAromaticBond(bond))
+			return false;
+
+		int dbAtom1 = mMol.getBondAtom(0,bond);
+		int dbAtom2 = mMol.getBondAtom(1,bond);
+
+		if (mMol.getConnAtoms(dbAtom1) == 1 || mMol.getConnAtoms(dbAtom2) == 1)
+			return false;
+
+		if ((mMol.getConnAtoms(dbAtom1) > 3) || (mMol.getConnAtoms(dbAtom2) > 3))
+			return false;
+
+		if (mMol.getAtomPi(dbAtom1) == 2 || mMol.getAtomPi(dbAtom2) == 2)
+			return false;
+
+		// both ends must not carry equally ranking substituents
+		return !hasEqualRankingSubstituents(dbAtom1, dbAtom2)
+			|| !hasEqualRankingSubstituents(dbAtom2, dbAtom1);
+		}
+
+
+	/**
+	 * Mirrors the mRanksEqual determination of EZHalfParity without its side effects.
+	 * Any stereo bond at centralAtom makes this method return false.
+	 * @return true, if centralAtom carries two equally ranking substituents other than remoteAtom
+	 */
+	private boolean hasEqualRankingSubstituents(int centralAtom, int remoteAtom) {
+		boolean ranksEqual = false;
+		int highRank = -1;
+		for (int i=0; i<mMol.getAllConnAtoms(centralAtom); i++) {
+			int connAtom = mMol.getConnAtom(centralAtom, i);
+			if (connAtom == remoteAtom)
+				continue;
+
+			if (mMol.isStereoBond(mMol.getConnBond(centralAtom, i), centralAtom))
+				return false;
+
+			if (highRank == mCanRank[connAtom])
+				ranksEqual = true;
+			else if (highRank < mCanRank[connAtom])
+				highRank = mCanRank[connAtom];
+			}
+		return ranksEqual;
+		}
+
+
 	private void canRankFinal() {
 			// locate atom differences due to pro-chiral or pro-E/Z location and
 			// detect for every proTH- or proEZ-parity whether pro-atoms are
 			// in same fragment as the pro-chiral-center or double-bond, respectively
-		mProTHAtomsInSameFragment = new boolean[mMol.getAtoms()];
-		mProEZAtomsInSameFragment = new boolean[mMol.getBonds()];
+		mProTHAtomsInSameFragment = getClearedArray(mProTHAtomsInSameFragment, mMol.getAtoms());
+		mProEZAtomsInSameFragment = getClearedArray(mProEZAtomsInSameFragment, mMol.getBonds());
 
 		if ((mMode & CONSIDER_STEREOHETEROTOPICITY) != 0) {
 			for (int atom=0; atom<mMol.getAtoms(); atom++) {
@@ -530,7 +805,7 @@ System.out.println();
 				mCanBase[atom].add(ATOM_BITS+12, mCanRank[atom] << 12);
 				}
 			}
-		if (mNoOfRanks < mMol.getAtoms()) {
+		if (mNoOfRanks < mMol.getAtoms() && !mIsStereoFree) {
 			int proParities = 0;
 			for (int atom=0; atom<mMol.getAtoms(); atom++)
 				if (canCalcTHParity(atom, true))
@@ -598,7 +873,8 @@ System.out.println("mEZParity["+bond+"] = "+mEZParity[bond]);
 		canNormalizeGroupParities();
 
 			// detect all not yet discovered pseudo-parities
-		canFindPseudoParities();
+		if (!mIsStereoFree)
+			canFindPseudoParities();
 		flagStereoProblems();
 /*
 for (int atom=0; atom<mMol.getAtoms(); atom++)
@@ -654,9 +930,26 @@ System.out.println("mEZParity["+bond+"] = "+mEZParity[bond]);
 			  : (62 + ATOM_BITS + mMaxConnAtoms * (ATOM_BITS+5)) / 63);
 
 		mCanRank = new int[mMol.getAllAtoms()];
-		mCanBase = new CanonizerBaseValue[mMol.getAtoms()];
+		if (mCanBase == null || mCanBase.length != mMol.getAtoms()) {
+			CanonizerBaseValue[] oldCanBase = mCanBase;
+			mCanBase = new CanonizerBaseValue[mMol.getAtoms()];
+			if (oldCanBase != null)
+				System.arraycopy(oldCanBase, 0, mCanBase, 0, Math.min(oldCanBase.length, mCanBase.length));
+			}
 		for (int atom=0; atom<mMol.getAtoms(); atom++)
-			mCanBase[atom] = new CanonizerBaseValue(baseValueSize);
+			if (mCanBase[atom] == null || mCanBase[atom].mValue.length < baseValueSize)
+				mCanBase[atom] = new CanonizerBaseValue(baseValueSize);
+		mCanRankClassStart = getClearedArray(mCanRankClassStart, mMol.getAtoms()+2);
+		mCanRankClassCount = getClearedArray(mCanRankClassCount, mMol.getAtoms()+2);
+		mCanRankBeforeConsolidation = getClearedArray(mCanRankBeforeConsolidation, mMol.getAtoms());
+		mCanRankClassAtom = getClearedArray(mCanRankClassAtom, mMol.getAtoms());
+		mCanRankSortBuffer = getClearedArray(mCanRankSortBuffer, mMol.getAtoms());
+		mCanNeighbourRank = getClearedArray(mCanNeighbourRank, mMol.getAtoms()*mMaxConnAtoms);
+		if (mCanNeighbourKey == null || mCanNeighbourKey.length < mMol.getAtoms())
+			mCanNeighbourKey = new long[mMol.getAtoms()];
+		mCanConnRank = getClearedArray(mCanConnRank, mMaxConnAtoms);
+		mCanRankClassMayChange = getClearedArray(mCanRankClassMayChange, mMol.getAtoms()+2);
+		mCanRankClassSplit = getClearedArray(mCanRankClassSplit, mMol.getAtoms());
 
 		boolean atomListFound = false;
 
@@ -1464,44 +1757,248 @@ System.out.println("mCanBaseValue["+atom+"] = "+Long.toHexString(mCanBase[atom].
 		// with different distribution of pi-bonds.
 		int oldNoOfRanks,newNoOfRanks;
 
+		boolean wasStable = mCanRankIsStable;
+		if (wasStable)
+			System.arraycopy(mCanRank, 0, mCanRankBeforeConsolidation, 0, mMol.getAtoms());
+
 		newNoOfRanks = canConsolidate();
+
+		// If the new base values just refined a stable ranking, e.g. during tie-breaking,
+		// then only classes next to split ones need to be considered in the first refinement.
+		boolean isFirstRefinement = !(wasStable && canFlagSplitRankClasses(newNoOfRanks));
 		do {
 			oldNoOfRanks = newNoOfRanks;
-			canCalcNextBaseValues();
-			newNoOfRanks = canConsolidate();
+			newNoOfRanks = canRefineRanking(oldNoOfRanks, isFirstRefinement);
+			isFirstRefinement = false;
 			} while (oldNoOfRanks != newNoOfRanks);
 
+		mCanRankIsStable = true;
 		return newNoOfRanks;
 		}
 
 
-	private void canCalcNextBaseValues() {
-		int	connRank[] = new int[ExtendedMolecule.cMaxConnAtoms];
-		for (int atom=0; atom<mMol.getAtoms(); atom++) {
-								// generate sorted list of ranks of neighbours
-			int neighbours = canGetConnAtoms(atom);
-			for (int i=0; i<neighbours; i++) {
-				int rank = 2 * mCanRank[mMol.getConnAtom(atom,i)];
-				int connBond = mMol.getConnBond(atom,i);
-				if (mMol.getBondOrder(connBond) == 2)
-					if (!mMol.isAromaticBond(connBond))
-						rank++;		// set a flag for non-aromatic double bond
-				int j;
-				for (j=0; j<i; j++)
-					if (rank < connRank[j])
-						break;
-				for (int k=i; k>j; k--)
-					connRank[k] = connRank[k-1];
-				connRank[j] = rank;
+	/**
+	 * If the current ranking is a refinement of mCanRankBeforeConsolidation, then this method
+	 * flags all atoms whose rank class was split by the refinement.
+	 * @param noOfRanks current number of ranks
+	 * @return false if the current ranking is not a refinement of the previous one
+	 */
+	private boolean canFlagSplitRankClasses(int noOfRanks) {
+		int atoms = mMol.getAtoms();
+		int[] oldRankOfClass = mCanRankClassStart;
+		int[] classCount = mCanRankClassCount;
+		Arrays.fill(oldRankOfClass, 0, noOfRanks+1, 0);
+		Arrays.fill(classCount, 0, atoms+1, 0);
+		for (int atom=0; atom<atoms; atom++) {
+			int rank = mCanRank[atom];
+			int oldRank = mCanRankBeforeConsolidation[atom];
+			if (oldRankOfClass[rank] == 0) {
+				oldRankOfClass[rank] = oldRank;
+				classCount[oldRank]++;
+				}
+			else if (oldRankOfClass[rank] != oldRank) {
+				return false;
 				}
+			}
 
-			mCanBase[atom].init(atom);
-			mCanBase[atom].add(ATOM_BITS, mCanRank[atom]);
-			for (int i=neighbours; i<mMaxConnAtoms; i++)
-				mCanBase[atom].add(ATOM_BITS + 1, 0);
-			for (int i=0; i<neighbours; i++)
-				mCanBase[atom].add(ATOM_BITS + 1, connRank[i]);
+		for (int atom=0; atom<atoms; atom++)
+			mCanRankClassSplit[atom] = (classCount[mCanRankBeforeConsolidation[atom]] > 1);
+		return true;
+		}
+
+
+	/**
+	 * Refines the current ranking by one step of partition refinement.
+	 * Atoms of the same rank class are distinguished by the sorted ranks of their neighbours,
+	 * where the rank of a neighbour connected via a non-aromatic double bond is flagged.
+	 * The new ranks are identical to those obtained by sorting base values composed of
+	 * the current rank followed by the (zero padded) neighbour ranks of all atoms.
+	 * Rank classes of which no member has a neighbour in a class that was split in the previous
+	 * refinement cannot split and are therefore neither sorted nor are their neighbour ranks
+	 * compiled.
+	 * @param noOfRanks current number of ranks
+	 * @param isFirstRefinement whether mCanRankClassSplit[] from a previous refinement is not available
+	 * @return new number of ranks
+	 */
+	private int canRefineRanking(int noOfRanks, boolean isFirstRefinement) {
+		int atoms = mMol.getAtoms();
+		if (atoms == 0)
+			return 0;
+
+		// collect atoms by current rank
+		int[] classStart = mCanRankClassStart;
+		Arrays.fill(classStart, 0, noOfRanks+2, 0);
+		for (int atom=0; atom<atoms; atom++)
+			classStart[mCanRank[atom]]++;
+		for (int rank=1; rank<=noOfRanks; rank++)
+			classStart[rank] += classStart[rank-1];
+		for (int atom=atoms-1; atom>=0; atom--)
+			mCanRankClassAtom[--classStart[mCanRank[atom]]] = atom;
+		classStart[noOfRanks+1] = atoms;
+
+		// if possible, pack all neighbour ranks of an atom into one long
+		int rankBits = 32 - Integer.numberOfLeadingZeros(2 * noOfRanks + 1);
+		mCanRankBits = (rankBits * mMaxConnAtoms <= 63) ? rankBits : 0;
+
+		// compile and sort neighbour ranks of those classes that may split
+		for (int rank=1; rank<=noOfRanks; rank++) {
+			int start = classStart[rank];
+			int end = classStart[rank+1];
+			boolean mayChange = false;
+			if (end - start > 1) {
+				if (isFirstRefinement) {
+					mayChange = true;
+					}
+				else {
+					for (int i=start; i<end && !mayChange; i++) {
+						int atom = mCanRankClassAtom[i];
+						int neighbours = canGetConnAtoms(atom);
+						for (int j=0; j<neighbours; j++) {
+							if (mCanRankClassSplit[mMol.getConnAtom(atom, j)]) {
+								mayChange = true;
+								break;
+								}
+							}
+						}
+					}
+
+				if (mayChange) {
+					for (int i=start; i<end; i++)
+						canCompileNeighbourRanks(mCanRankClassAtom[i]);
+					canSortRankClass(start, end);
+					}
+				}
+			mCanRankClassMayChange[rank] = mayChange;
 			}
+
+		// assign new ranks and flag atoms of split classes
+		int newRank = 0;
+		for (int rank=1; rank<=noOfRanks; rank++) {
+			int start = classStart[rank];
+			int end = classStart[rank+1];
+			if (!mCanRankClassMayChange[rank]) {
+				newRank++;
+				for (int i=start; i<end; i++) {
+					mCanRank[mCanRankClassAtom[i]] = newRank;
+					mCanRankClassSplit[mCanRankClassAtom[i]] = false;
+					}
+				}
+			else {
+				int firstNewRank = newRank + 1;
+				for (int i=start; i<end; i++) {
+					int atom = mCanRankClassAtom[i];
+					if (i == start || canCompareNeighbourRanks(mCanRankClassAtom[i-1], atom) != 0)
+						newRank++;
+					mCanRank[atom] = newRank;
+					}
+				boolean isSplit = (newRank != firstNewRank);
+				for (int i=start; i<end; i++)
+					mCanRankClassSplit[mCanRankClassAtom[i]] = isSplit;
+				}
+			}
+
+		return newRank;
+		}
+
+
+	/**
+	 * Compiles the ascending neighbour ranks of atom, each doubled and incremented
+	 * for non-aromatic double bonds, preceded by zeros for missing neighbours.
+	 * If mCanRankBits != 0, then the list is packed into mCanNeighbourKey[atom],
+	 * otherwise it is written into mCanNeighbourRank.
+	 * @param atom
+	 */
+	private void canCompileNeighbourRanks(int atom) {
+		int offset = (mCanRankBits == 0) ? atom * mMaxConnAtoms : 0;
+		int[] connRank = (mCanRankBits == 0) ? mCanNeighbourRank : mCanConnRank;
+		int neighbours = canGetConnAtoms(atom);
+		int first = offset + mMaxConnAtoms - neighbours;
+		for (int i=offset; i<first; i++)
+			connRank[i] = 0;
+		for (int i=0; i<neighbours; i++) {
+			int rank = 2 * mCanRank[mMol.getConnAtom(atom,i)];
+			int connBond = mMol.getConnBond(atom,i);
+			if (mMol.getBondOrder(connBond) == 2)
+				if (!mMol.isAromaticBond(connBond))
+					rank++;		// set a flag for non-aromatic double bond
+			int j = first + i;
+			while (j > first && connRank[j-1] > rank) {
+				connRank[j] = connRank[j-1];
+				j--;
+				}
+			connRank[j] = rank;
+			}
+
+		if (mCanRankBits != 0) {
+			long key = 0;
+			for (int i=0; i<mMaxConnAtoms; i++)
+				key = (key << mCanRankBits) | connRank[i];
+			mCanNeighbourKey[atom] = key;
+			}
+		}
+
+
+	private int canCompareNeighbourRanks(int atom1, int atom2) {
+		if (mCanRankBits != 0) {
+			long key1 = mCanNeighbourKey[atom1];
+			long key2 = mCanNeighbourKey[atom2];
+			return (key1 == key2) ? 0 : (key1 < key2) ? -1 : 1;
+			}
+
+		int offset1 = atom1 * mMaxConnAtoms;
+		int offset2 = atom2 * mMaxConnAtoms;
+		for (int i=0; i<mMaxConnAtoms; i++) {
+			int rank1 = mCanNeighbourRank[offset1+i];
+			int rank2 = mCanNeighbourRank[offset2+i];
+			if (rank1 != rank2)
+				return (rank1 < rank2) ? -1 : 1;
+			}
+		return 0;
+		}
+
+
+	/**
+	 * Sorts the atoms of mCanRankClassAtom from start to end by their neighbour ranks.
+	 * Small classes are sorted by insertion sort, larger ones by bottom-up merge sort.
+	 */
+	private void canSortRankClass(int start, int end) {
+		int[] atom = mCanRankClassAtom;
+		if (end - start <= 16) {
+			for (int i=start+1; i<end; i++) {
+				int a = atom[i];
+				int j = i;
+				while (j > start && canCompareNeighbourRanks(atom[j-1], a) > 0) {
+					atom[j] = atom[j-1];
+					j--;
+					}
+				atom[j] = a;
+				}
+			return;
+			}
+
+		int[] source = atom;
+		int[] target = mCanRankSortBuffer;
+		for (int width=1; width<end-start; width*=2) {
+			for (int left=start; left<end; left+=2*width) {
+				int middle = Math.min(left+width, end);
+				int right = Math.min(left+2*width, end);
+				int i = left;
+				int j = middle;
+				int k = left;
+				while (i < middle && j < right)
+					target[k++] = (canCompareNeighbourRanks(source[j], source[i]) < 0) ? source[j++] : source[i++];
+				while (i < middle)
+					target[k++] = source[i++];
+				while (j < right)
+					target[k++] = source[j++];
+				}
+			int[] temp = source;
+			source = target;
+			target = temp;
+			}
+
+		if (source != atom)
+			System.arraycopy(source, start, atom, start, end-start);
 		}
 
 
@@ -2179,12 +2676,12 @@ System.out.println("noOfRanks:"+canRank);
 			if (mCanRank[atom] > mCanRank[startAtom])
 				startAtom = atom;
 
-		boolean atomHandled[] = new boolean[mMol.getAtoms()];
-		boolean bondHandled[] = new boolean[mMol.getBonds()];
+		boolean atomHandled[] = mGraphAtomHandled = getClearedArray(mGraphAtomHandled, mMol.getAtoms());
+		boolean bondHandled[] = mGraphBondHandled = getClearedArray(mGraphBondHandled, mMol.getBonds());
 		mGraphIndex = new int[mMol.getAtoms()];
-		mGraphAtom = new int[mMol.getAtoms()];
-		mGraphFrom = new int[mMol.getAtoms()];
-		mGraphBond = new int[mMol.getBonds()];
+		mGraphAtom = getClearedArray(mGraphAtom, mMol.getAtoms());
+		mGraphFrom = getClearedArray(mGraphFrom, mMol.getAtoms());
+		mGraphBond = getClearedArray(mGraphBond, mMol.getBonds());
 		mGraphAtom[0] = startAtom;
 		mGraphIndex[startAtom] = 0;
 		atomHandled[startAtom] = true;
@@ -2441,14 +2938,79 @@ System.out.println("noOfRanks:"+canRank);
 
 	public String getIDCode() {
 		if (mIDCode == null) {
+			idEnsureConfigurations();
+			idCodeCreate();
+			}
+
+		return mIDCode;
+		}
+
+
+	/**
+	 * Returns a 64-bit key of the canonical structure, which is the first half of
+	 * getCanonicalHash128(). See there for its definition and semantics.
+	 * For n different structures the expected number of colliding pairs is about
+	 * n*n/2^65, e.g. 0.0003 for 100 million and 0.03 for one billion structures.
+	 * @return 64-bit hash of the idcode without creating the idcode
+	 */
+	public long getCanonicalHash64() {
+		createCanonicalHash();
+		return mCanonicalHash.getHash1();
+		}
+
+
+	/**
+	 * Returns a 128-bit key of the canonical structure, which is the MurmurHash3_x64_128
+	 * (seed 0) of the idcode's characters. It is calculated from the bit stream, that
+	 * would be encoded into the idcode, without assembling the idcode String. Therefore,
+	 * it considers stereo configurations, ESR groups, query features, etc. exactly like
+	 * the idcode does and equals MurmurHash3.hash128(getIDCode()), which allows creating
+	 * keys of stored idcodes without canonizing them again.<br>
+	 * Identical idcodes always produce identical hashes. Different idcodes collide with a
+	 * probability of about 2^-128 per pair, i.e. collisions are practically excluded.
+	 * MurmurHash3 is not a cryptographic hash, however: deliberately constructed collisions
+	 * are possible. If input data cannot be trusted, collisions should be verified
+	 * by comparing idcodes.
+	 * @return 128-bit hash of the idcode as two longs
+	 */
+	public long[] getCanonicalHash128() {
+		createCanonicalHash();
+		return new long[] { mCanonicalHash.getHash1(), mCanonicalHash.getHash2() };
+		}
+
+
+	private void createCanonicalHash() {
+		if (mIsCanonicalHashValid)
+			return;
+
+		if (mCanonicalHash == null)
+			mCanonicalHash = new MurmurHash3();
+		else
+			mCanonicalHash.reset();
+
+		if (mIDCode != null) {
+			mCanonicalHash.add(mIDCode);
+			}
+		else {
+			idEnsureConfigurations();
+			mIsHashingEncoding = true;
+			idCodeCreate();
+			mIsHashingEncoding = false;
+			}
+
+		mCanonicalHash.finish();
+		mIsCanonicalHashValid = true;
+		}
+
+
+	private void idEnsureConfigurations() {
+		if (!mConfigurationsGenerated) {
 			generateGraph();
 			idGenerateConfigurations();
 //			idNormalizeConfigurations();
 			idNormalizeESRGroupNumbers();
-			idCodeCreate();
+			mConfigurationsGenerated = true;
 			}
-
-		return mIDCode;
 		}
 
 
@@ -3607,7 +4169,10 @@ System.out.println();
 
 
 	private void encodeBitsStart() {
-		mEncodingBuffer = new StringBuilder();
+		if (mEncodingBuffer == null)
+			mEncodingBuffer = new StringBuilder();
+		else
+			mEncodingBuffer.setLength(0);
 		mEncodingBitsAvail = 6;
 		mEncodingTempData = 0;
 		}
@@ -3617,7 +4182,10 @@ System.out.println();
 //System.out.println(bits+" bits:"+data+"  mode="+mode);
 		while (bits != 0) {
 			if (mEncodingBitsAvail == 0) {
-				mEncodingBuffer.append((char)(mEncodingTempData + 64));
+				if (mIsHashingEncoding)
+					mCanonicalHash.add(mEncodingTempData + 64);
+				else
+					mEncodingBuffer.append((char)(mEncodingTempData + 64));
 				mEncodingBitsAvail = 6;
 				mEncodingTempData = 0;
 				}
@@ -3630,8 +4198,15 @@ System.out.println();
 		}
 
 
+	/**
+	 * @return encoded String or null, if the encoded characters were added to the canonical hash
+	 */
 	private String encodeBitsEnd() {
 		mEncodingTempData <<= mEncodingBitsAvail;
+		if (mIsHashingEncoding) {
+			mCanonicalHash.add(mEncodingTempData + 64);
+			return null;
+			}
 		mEncodingBuffer.append((char)(mEncodingTempData + 64));
 		return mEncodingBuffer.toString();
 		}
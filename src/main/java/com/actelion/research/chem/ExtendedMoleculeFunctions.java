@@ -413,6 +413,28 @@ public class ExtendedMoleculeFunctions {
 		return nMatches;
 	}
 
+	/**
+	 * Counts the matches of many fragments in one molecule. Other than calling getNumSubstructure()
+	 * for every fragment, the molecule is analyzed only once.
+	 * @param mol
+	 * @param idcodeFragment
+	 * @return number of overlapping matches for every fragment
+	 */
+	public static int[] getNumSubstructures(StereoMolecule mol, String[] idcodeFragment) {
+
+		IDCodeParser parser = new IDCodeParser();
+
+		SSSearcherQuery[] query = new SSSearcherQuery[idcodeFragment.length];
+		for (int i = 0; i < idcodeFragment.length; i++)
+			query[i] = new SSSearcherQuery(parser.getCompactMolecule(idcodeFragment[i]));
+
+		SSSearcher ssSearcher = new SSSearcher();
+
+		ssSearcher.setMolecule(mol);
+
+		return ssSearcher.findFragmentsInMolecule(query, SSSearcher.cCountModeOverlapping, SSSearcher.cDefaultMatchMode);
+	}
+
 
 
 	public static int getBondNo(ExtendedMolecule mol, int atm1,int atm2) {
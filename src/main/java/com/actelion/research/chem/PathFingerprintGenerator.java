@@ -0,0 +1,287 @@
+/*
+* Copyright (c) 1997 - 2016
+* Actelion Pharmaceuticals Ltd.
+* Gewerbestrasse 16
+* CH-4123 Allschwil, Switzerland
+*
+* All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without
+* modification, are permitted provided that the following conditions are met:
+*
+* 1. Redistributions of source code must retain the above copyright notice, this
+*    list of conditions and the following disclaimer.
+* 2. Redistributions in binary form must reproduce the above copyright notice,
+*    this list of conditions and the following disclaimer in the documentation
+*    and/or other materials provided with the distribution.
+* 3. Neither the name of the the copyright holder nor the
+*    names of its contributors may be used to endorse or promote products
+*    derived from this software without specific prior written permission.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+* ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+* WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+* DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+* ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+* (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+* LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+* ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+* (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+* SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*
+*/
+
+package com.actelion.research.chem;
+
+/**
+ * Generator of path-based fingerprints of 512 bits. Like FingerPrintGenerator it enumerates
+ * all linear paths of up to 6 bonds by depth first searches starting at every atom. Paths are
+ * not built as strings, but hashed incrementally while the search proceeds. Bits are written
+ * directly into the int[] descriptor.<br>
+ * In compatibility mode the generated descriptor is bit-identical to
+ * the one DescriptorHandlerPFP512 created from FingerPrintGenerator's BitSet, i.e. path hashes
+ * equal String.hashCode() of the path string or its reverse, whichever is smaller, and bit
+ * indexes equal those of java.util.Random seeded with the hash, including the bit arrangement
+ * of the PFP512 descriptor, which only uses half of the 512 bits.
+ * Otherwise paths are hashed from atomic numbers and bond orders and all 512 bits are used.
+ * Fingerprints of the two modes are not compatible.<br>
+ * Not thread safe!
+ */
+public class PathFingerprintGenerator {
+	public static final int FINGERPRINT_SIZE = 512;
+
+	private static final int MAX_DEPTH = 6;
+	private static final long RANDOM_MULTIPLIER = 0x5DEECE66DL;
+	private static final long RANDOM_ADDEND = 0xBL;
+	private static final long RANDOM_MASK = (1L << 48) - 1;
+	private static final int HASH_MULTIPLIER = 0x01000193;
+
+	private boolean mIsCompatibilityMode;
+	private StereoMolecule mMol;
+	private int[] mFingerprint;
+	private boolean[] mIsOnPath;
+
+	// compatibility mode: path characters, length and hashes of the path string and its reverse
+	private char[] mPath;
+	private int[] mPathLength,mForwardHash,mReverseHash,mPower;
+
+	// default mode: hashes of the atom and bond token sequence and its reverse
+	private int[] mTokenForwardHash,mTokenReverseHash,mTokenPower;
+
+	/**
+	 * @param isCompatibilityMode if true, then fingerprints equal the ones of the PFP512 descriptor version 1.0
+	 */
+	public PathFingerprintGenerator(boolean isCompatibilityMode) {
+		mIsCompatibilityMode = isCompatibilityMode;
+		mIsOnPath = new boolean[0];
+		if (isCompatibilityMode) {
+			mPath = new char[64];
+			mPathLength = new int[MAX_DEPTH+1];
+			mForwardHash = new int[MAX_DEPTH+1];
+			mReverseHash = new int[MAX_DEPTH+1];
+			mPower = new int[MAX_DEPTH+1];
+			}
+		else {
+			mTokenForwardHash = new int[MAX_DEPTH+1];
+			mTokenReverseHash = new int[MAX_DEPTH+1];
+			mTokenPower = new int[MAX_DEPTH+1];
+			}
+		}
+
+	public boolean isCompatibilityMode() {
+		return mIsCompatibilityMode;
+		}
+
+	/**
+	 * @param mol
+	 * @return fingerprint as int[16]
+	 */
+	public int[] createFingerprint(StereoMolecule mol) {
+		mol.ensureHelperArrays(Molecule.cHelperRings);
+
+		mMol = mol;
+		mFingerprint = new int[FINGERPRINT_SIZE / 32];
+
+		int atoms = mol.getAllAtoms();
+		if (mIsOnPath.length < atoms)
+			mIsOnPath = new boolean[atoms];
+
+		for (int atom=0; atom<atoms; atom++) {
+			java.util.Arrays.fill(mIsOnPath, 0, atoms, false);
+			if (mIsCompatibilityMode) {
+				mPathLength[0] = 0;
+				mForwardHash[0] = 0;
+				mReverseHash[0] = 0;
+				mPower[0] = 1;
+				appendLabel(0, atom);
+				addCompatiblePath(0);
+				}
+			else {
+				mTokenForwardHash[0] = 0;
+				mTokenReverseHash[0] = 0;
+				mTokenPower[0] = 1;
+				appendToken(0, getAtomToken(atom));
+				addPath(0);
+				}
+			traverseDFS(-1, atom, 0);
+			}
+
+		mMol = null;
+		int[] fingerprint = mFingerprint;
+		mFingerprint = null;
+		return fingerprint;
+		}
+
+	/**
+	 * Follows the same path enumeration as FingerPrintGenerator.traverseDFS().
+	 * The path up to rootAtom is stored at index depth of the hash and length arrays.
+	 */
+	private void traverseDFS(int lastAtom, int rootAtom, int depth) {
+		int connAtoms = mMol.getConnAtoms(rootAtom);
+		mIsOnPath[rootAtom] = true;
+		depth++;
+		for (int i=0; i<connAtoms; i++) {
+			int nextAtom = mMol.getConnAtom(rootAtom, i);
+			if (nextAtom == lastAtom || mIsOnPath[nextAtom])
+				continue;
+
+			int bond = mMol.getConnBond(rootAtom, i);
+			if (mIsCompatibilityMode) {
+				copyPath(depth);
+				char bondChar = getBondChar(bond);
+				if (bondChar != 0)
+					appendChar(depth, bondChar);
+				appendLabel(depth, nextAtom);
+				addCompatiblePath(depth);
+				}
+			else {
+				mTokenForwardHash[depth] = mTokenForwardHash[depth-1];
+				mTokenReverseHash[depth] = mTokenReverseHash[depth-1];
+				mTokenPower[depth] = mTokenPower[depth-1];
+				appendToken(depth, getBondToken(bond));
+				appendToken(depth, getAtomToken(nextAtom));
+				addPath(depth);
+				}
+
+			if (depth < MAX_DEPTH) {
+				mIsOnPath[nextAtom] = true;
+				traverseDFS(rootAtom, nextAtom, depth);
+				mIsOnPath[nextAtom] = false;
+				}
+			}
+		}
+
+	private char getBondChar(int bond) {
+		if (mMol.isDelocalizedBond(bond) || mMol.isAromaticBond(bond))
+			return ':';
+		switch (mMol.getBondOrder(bond)) {
+		case 1:
+			return '-';
+		case 2:
+			return '=';
+		case 3:
+			return '#';
+			}
+		return 0;
+		}
+
+	private void copyPath(int depth) {
+		mPathLength[depth] = mPathLength[depth-1];
+		mForwardHash[depth] = mForwardHash[depth-1];
+		mReverseHash[depth] = mReverseHash[depth-1];
+		mPower[depth] = mPower[depth-1];
+		}
+
+	private void appendLabel(int depth, int atom) {
+		String label = mMol.getAtomLabel(atom);
+		for (int i=0; i<label.length(); i++)
+			appendChar(depth, label.charAt(i));
+		}
+
+	private void appendChar(int depth, char c) {
+		int length = mPathLength[depth];
+		if (length == mPath.length) {
+			char[] path = new char[2*length];
+			System.arraycopy(mPath, 0, path, 0, length);
+			mPath = path;
+			}
+		mPath[length] = c;
+		mPathLength[depth] = length+1;
+		mForwardHash[depth] = 31 * mForwardHash[depth] + c;
+		mReverseHash[depth] += c * mPower[depth];
+		mPower[depth] *= 31;
+		}
+
+	/**
+	 * FingerPrintGenerator stores the lexically smaller one of the path string and its reverse.
+	 * Duplicate paths need no special handling, because they set the same bit again.
+	 */
+	private void addCompatiblePath(int depth) {
+		int length = mPathLength[depth];
+		boolean isReverseSmaller = false;
+		for (int i=0, j=length-1; i<j; i++, j--) {
+			if (mPath[i] != mPath[j]) {
+				isReverseSmaller = (mPath[j] < mPath[i]);
+				break;
+				}
+			}
+
+		int hash = isReverseSmaller ? mReverseHash[depth] : mForwardHash[depth];
+		int index = getRandomIndex(hash, FINGERPRINT_SIZE);
+
+		// PFP512 version 1.0 copied BitSet bit 32*i+j into bit i of word j, but only for j<16
+		int j = index & 31;
+		if (j < 16)
+			mFingerprint[j] |= (1 << (index >>> 5));
+		}
+
+	/**
+	 * @return the same as new java.util.Random(seed).nextInt(bound)
+	 */
+	private static int getRandomIndex(int seed, int bound) {
+		long state = ((long)seed ^ RANDOM_MULTIPLIER) & RANDOM_MASK;
+		state = (state * RANDOM_MULTIPLIER + RANDOM_ADDEND) & RANDOM_MASK;
+		int r = (int)(state >>> 17);
+		int m = bound - 1;
+		if ((bound & m) == 0)
+			return (int)((bound * (long)r) >> 31);
+
+		for (int u=r; u-(r=u%bound)+m<0; ) {
+			state = (state * RANDOM_MULTIPLIER + RANDOM_ADDEND) & RANDOM_MASK;
+			u = (int)(state >>> 17);
+			}
+		return r;
+		}
+
+	private int getAtomToken(int atom) {
+		return 16 + mMol.getAtomicNo(atom);
+		}
+
+	private int getBondToken(int bond) {
+		if (mMol.isDelocalizedBond(bond) || mMol.isAromaticBond(bond))
+			return 4;
+		int order = mMol.getBondOrder(bond);
+		return (order >= 1 && order <= 3) ? order : 0;
+		}
+
+	private void appendToken(int depth, int token) {
+		mTokenForwardHash[depth] = HASH_MULTIPLIER * mTokenForwardHash[depth] + token;
+		mTokenReverseHash[depth] += token * mTokenPower[depth];
+		mTokenPower[depth] *= HASH_MULTIPLIER;
+		}
+
+	/**
+	 * Both directions of a path are hashed. Taking the smaller hash makes the path key
+	 * independent of the direction of traversal.
+	 */
+	private void addPath(int depth) {
+		int h = Math.min(mTokenForwardHash[depth], mTokenReverseHash[depth]);
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		h ^= h >>> 16;
+		int index = h & (FINGERPRINT_SIZE - 1);
+		mFingerprint[index >>> 5] |= (1 << (31 - (index & 31)));
+		}
+	}
@@ -67,6 +67,9 @@ public class SSSearcher {
 	public final static int cCountModeOverlapping	= 3;
 	public final static int cCountModeRigorous		= 4;
 
+	// returned by findFragmentInMolecule(), if the search was stopped, because the budget defined by setBudget() was exhausted
+	public final static int cResultBudgetExhausted	= -1;
+
 	// default behaviour for unusual atom masses and atom charges is that
 	// - if no atom charge/mass is specified in the query then all charges/masses match
 	// - if an atom charge/mass is specified then this charge/mass must match for the atom to match
@@ -94,10 +97,19 @@ public class SSSearcher {
 	private int[] mFragmentGraphParentAtom;
 	private int[] mFragmentGraphParentBond;
 	private boolean[] mFragmentGraphIsRingClosure;
+	private int[] mFragmentGraphAnchorAtomicNo;	// for anchor atoms the atomicNo, if molecule candidates are restricted to one element; otherwise -1
 	private boolean[] mIsExcludeAtom;
 	private int[] mFragmentConnAtoms;	// in case of exclude atoms, these are not part of this
 	private int[] mMatchTable;
 
+	// work buffers, which grow when needed and are reused for subsequent searches
+	private boolean[] mIsAtomUsed;
+	private int[] mGraphIndex,mSortedMatchBuffer,mTempMatchBuffer,mStreamedMatchBuffer;
+	private int mStreamedMatchCount;
+	private int[] mParityNeighbour = new int[3];
+	private int[] mMoleculeAtomByElement,mMoleculeElementStart;	// molecule atoms sorted by atomicNo and start index per atomicNo
+	private Comparator<int[]> mMatchComparator;
+
 	// depending on the fragment count mode this may contain atom lists
 	// of all till now located matching sub-fragments
 	private TreeSet<int[]> mSortedMatchSet,mExcludedMatchSet;
@@ -106,8 +118,15 @@ public class SSSearcher {
 
 	private boolean mMoleculeFeaturesValid;
 	private boolean mFragmentFeaturesValid;
+	private int mMoleculeFeaturesMatchMode,mFragmentFeaturesMatchMode;
+	private SSSearcherQuery mQuery;	// if not null, all fragment related arrays are shared with the compiled query
 	private int mRequiredHelperLevel;
 
+	// optional limits of the effort spent by one findFragmentInMolecule() call
+	private boolean mHasBudget,mIsBudgetExhausted;
+	private long mMaxSteps,mMaxMillis,mStepCount,mDeadline;
+	private int mMaxMatches,mBudgetExhaustedCount;
+
 	/**
 	 * Instantiates a SSSearcher object for running sub-structure searches
 	 * with one or more sub-structure fragments on one or more molecules.
@@ -119,8 +138,9 @@ public class SSSearcher {
 	public SSSearcher() {
 		mDefaultMatchMode = cDefaultMatchMode;
 		mMatchList = new ArrayList<int[]>();
-		mSortedMatchSet = new TreeSet<int[]>(new IntArrayComparator());
-		mExcludedMatchSet = new TreeSet<int[]>(new IntArrayComparator());
+		mMatchComparator = new IntArrayComparator();
+		mSortedMatchSet = new TreeSet<int[]>(mMatchComparator);
+		mExcludedMatchSet = new TreeSet<int[]>(mMatchComparator);
 		}
 
 
@@ -136,8 +156,9 @@ public class SSSearcher {
 	public SSSearcher(int matchMode) {
 		mDefaultMatchMode = matchMode;
 		mMatchList = new ArrayList<int[]>();
-		mSortedMatchSet = new TreeSet<int[]>(new IntArrayComparator());
-		mExcludedMatchSet = new TreeSet<int[]>(new IntArrayComparator());
+		mMatchComparator = new IntArrayComparator();
+		mSortedMatchSet = new TreeSet<int[]>(mMatchComparator);
+		mExcludedMatchSet = new TreeSet<int[]>(mMatchComparator);
 		}
 
 
@@ -176,6 +197,11 @@ public class SSSearcher {
 	 * @param fragment
 	 */
 	public void setFragment(StereoMolecule fragment) {
+		if (mQuery != null) {
+			mQuery = null;
+			mIsExcludeAtom = null;	// must not overwrite the query's exclude flags
+			}
+
 		if (fragment.getAllAtoms() == 0 || !fragment.isFragment()) {
 			mFragment = null;
 			return;
@@ -197,7 +223,8 @@ public class SSSearcher {
 			mMolecule.ensureHelperArrays(mRequiredHelperLevel);
 
 		mFragmentExcludeAtoms = 0;
-		mIsExcludeAtom = new boolean[mFragment.getAtoms()];
+		if (mIsExcludeAtom == null || mIsExcludeAtom.length < mFragment.getAtoms())
+			mIsExcludeAtom = new boolean[mFragment.getAtoms()];
 		for (int atom=0; atom<mFragment.getAtoms(); atom++) {
 			mIsExcludeAtom[atom] = ((mFragment.getAtomQueryFeatures(atom) & Molecule.cAtomQFExcludeGroup) != 0);
 			if (mIsExcludeAtom[atom])
@@ -212,9 +239,70 @@ public class SSSearcher {
 		}
 
 
+	/**
+	 * Defines a compiled query to be used in isFragmentInMolecule(...) or findFragmentInMolecule(...).
+	 * Other than setFragment() this doesn't cause any fragment analysis, because the fragment graph
+	 * and features are taken from the query, which may be shared with other threads.
+	 * If the query was compiled for a different match mode than the one used for the search,
+	 * then the fragment features are recalculated by this SSSearcher.
+	 * @param query
+	 */
+	public void setQuery(SSSearcherQuery query) {
+		SSSearcher compiled = query.mSearcher;
+		mQuery = query;
+		mFragment = compiled.mFragment;
+		if (mFragment == null)
+			return;
+
+		mRequiredHelperLevel = compiled.mRequiredHelperLevel;
+		if (mMoleculeFeaturesValid && mRequiredHelperLevel != Molecule.cHelperRings)
+			mMolecule.ensureHelperArrays(mRequiredHelperLevel);
+
+		mIsExcludeAtom = compiled.mIsExcludeAtom;
+		mFragmentExcludeAtoms = compiled.mFragmentExcludeAtoms;
+		mFragmentExcludeBonds = compiled.mFragmentExcludeBonds;
+		mFragmentAtomType = compiled.mFragmentAtomType;
+		mFragmentAtomFeatures = compiled.mFragmentAtomFeatures;
+		mFragmentBondFeatures = compiled.mFragmentBondFeatures;
+		mFragmentConnAtoms = compiled.mFragmentConnAtoms;
+		mFragmentGraphSize = compiled.mFragmentGraphSize;
+		mFragmentGraphSizeWithExcludeGroup = compiled.mFragmentGraphSizeWithExcludeGroup;
+		mFragmentGraphAtom = compiled.mFragmentGraphAtom;
+		mFragmentGraphParentAtom = compiled.mFragmentGraphParentAtom;
+		mFragmentGraphParentBond = compiled.mFragmentGraphParentBond;
+		mFragmentGraphIsRingClosure = compiled.mFragmentGraphIsRingClosure;
+		mFragmentGraphAnchorAtomicNo = compiled.mFragmentGraphAnchorAtomicNo;
+		mBridgeBondList = compiled.mBridgeBondList;
+		mFragmentFeaturesMatchMode = compiled.mFragmentFeaturesMatchMode;
+		mFragmentFeaturesValid = true;
+		}
+
+
+	/**
+	 * Analyzes the fragment and builds fragment graph, features and bridge bond list
+	 * for the given match mode. This is used to compile an SSSearcherQuery. After this,
+	 * all fragment related members of this SSSearcher are considered read-only.
+	 * @param fragment private copy of the query fragment
+	 * @param matchMode
+	 */
+	void compileQuery(StereoMolecule fragment, int matchMode) {
+		setFragment(fragment);
+		if (mFragment != null) {
+			setupFragmentFeatures(matchMode);
+			buildFragmentGraph();
+			buildBridgeBondList();
+			mFragmentFeaturesMatchMode = matchMode;
+			mFragmentFeaturesValid = true;
+			}
+		}
+
+
 	/**
 	 * Build a graph of the query fragment(s) including ring closures as redundant nodes.
 	 * If we have exclude groups then these are added at the end of the graph.
+	 * Every sub fragment graph starts with its most selective atom, i.e. the one that is expected
+	 * to match the fewest molecule atoms, and neighbours are added in the order of their selectivity.
+	 * This way the matching tries few anchor candidates and unsuccessful branches are pruned early.
 	 */
 	private void buildFragmentGraph() {
 		mFragment.ensureHelperArrays(mRequiredHelperLevel);
@@ -224,25 +312,49 @@ public class SSSearcher {
 		mFragmentGraphParentAtom = new int[graphAllocation];
 		mFragmentGraphParentBond = new int[graphAllocation];
 		mFragmentGraphIsRingClosure = new boolean[graphAllocation + 1];
+		mFragmentGraphAnchorAtomicNo = new int[graphAllocation];
+
+		int[] selectivity = new int[mFragment.getAtoms()];
+		for (int atom=0; atom<mFragment.getAtoms(); atom++)
+			selectivity[atom] = getAtomSelectivity(atom);
 
+		int[] connIndex = new int[mFragment.getAtoms()];
 		boolean[] fragmentAtomUsed = new boolean[mFragment.getAtoms()];
 		boolean[] fragmentBondUsed = new boolean[mFragment.getBonds()];
 		int current = 0;
-		for (int atom=0; atom<mFragment.getAtoms(); atom++) {
-			if (!mIsExcludeAtom[atom]
-			 && !fragmentAtomUsed[atom]) {
-				mFragmentGraphAtom[current] = atom;
-				mFragmentGraphParentBond[current] = -1;
-				mFragmentGraphParentAtom[current] = -1;
-				int highest = current;
-				while (current <= highest) {
-					for (int i=0; i<mFragment.getConnAtoms(mFragmentGraphAtom[current]); i++) {
-						int candidate = mFragment.getConnAtom(mFragmentGraphAtom[current], i);
-						if (!mIsExcludeAtom[candidate])
-							highest = tryAddCandidate(current, highest, i, fragmentAtomUsed, fragmentBondUsed);
+		while (true) {
+			int anchor = -1;
+			for (int atom=0; atom<mFragment.getAtoms(); atom++)
+				if (!mIsExcludeAtom[atom]
+				 && !fragmentAtomUsed[atom]
+				 && (anchor == -1 || selectivity[anchor] < selectivity[atom]))
+					anchor = atom;
+			if (anchor == -1)
+				break;
+
+			fragmentAtomUsed[anchor] = true;
+			mFragmentGraphAtom[current] = anchor;
+			mFragmentGraphParentBond[current] = -1;
+			mFragmentGraphParentAtom[current] = -1;
+			int highest = current;
+			while (current <= highest) {
+				int graphAtom = mFragmentGraphAtom[current];
+				int count = 0;
+				for (int i=0; i<mFragment.getConnAtoms(graphAtom); i++) {
+					int candidate = mFragment.getConnAtom(graphAtom, i);
+					if (!mIsExcludeAtom[candidate]) {
+						// insertion sort of neighbours by decreasing selectivity
+						int j = count++;
+						while (j > 0 && selectivity[mFragment.getConnAtom(graphAtom, connIndex[j-1])] < selectivity[candidate]) {
+							connIndex[j] = connIndex[j-1];
+							j--;
+							}
+						connIndex[j] = i;
 						}
-					while (mFragmentGraphIsRingClosure[++current]);
 					}
+				for (int j=0; j<count; j++)
+					highest = tryAddCandidate(current, highest, connIndex[j], fragmentAtomUsed, fragmentBondUsed);
+				while (mFragmentGraphIsRingClosure[++current]);
 				}
 			}
 		mFragmentGraphSize = current;	// this is the real size of the graph not considering exclude atoms
@@ -279,6 +391,13 @@ public class SSSearcher {
 			}
 
 		mFragmentGraphSizeWithExcludeGroup = current;	// this is the real size of the graph
+
+		for (int i=0; i<mFragmentGraphSizeWithExcludeGroup; i++) {
+			int atom = mFragmentGraphAtom[i];
+			mFragmentGraphAnchorAtomicNo[i] = (mFragmentGraphParentAtom[i] == -1
+											&& (mFragment.getAtomQueryFeatures(atom) & Molecule.cAtomQFAny) == 0
+											&& mFragment.getAtomList(atom) == null) ? mFragment.getAtomicNo(atom) : -1;
+			}
 /*
 System.out.print("			"); for (int i=0; i<mFragmentGraphSize; i++) System.out.print(" "+(mFragmentGraphAtom[i]==-1?"-":Molecule.cAtomLabel[mFragment.getAtomicNo(mFragmentGraphAtom[i])])); System.out.println();
 System.out.print("  graphAtom:"); for (int i=0; i<mFragmentGraphSize; i++) System.out.print(" "+(mFragmentGraphAtom[i]==-1?"-":""+mFragmentGraphAtom[i])); System.out.println();
@@ -290,6 +409,46 @@ System.out.println();
 		}
 
 
+	/**
+	 * Estimates how selective a fragment atom is, i.e. how few molecule atoms are expected to match it.
+	 * Uncommon elements are more selective than nitrogen and oxygen, which are more selective than carbon.
+	 * Any atoms and atom lists are least selective. Among equal elements, atoms with more neighbours
+	 * and atoms with more query restrictions are preferred.
+	 * @param atom
+	 * @return selectivity value, which is higher for more selective atoms
+	 */
+	private int getAtomSelectivity(int atom) {
+		int elementSelectivity;
+		if ((mFragment.getAtomQueryFeatures(atom) & Molecule.cAtomQFAny) != 0
+		 || mFragment.getAtomList(atom) != null)
+			elementSelectivity = 0;
+		else {
+			switch (mFragment.getAtomicNo(atom)) {
+			case 6:
+				elementSelectivity = 1;
+				break;
+			case 8:
+				elementSelectivity = 2;
+				break;
+			case 7:
+				elementSelectivity = 3;
+				break;
+			default:
+				elementSelectivity = 4;
+				break;
+				}
+			}
+
+		int restrictions = Integer.bitCount(mFragment.getAtomQueryFeatures(atom) & Molecule.cAtomQFNarrowing);
+		if (mFragment.getAtomCharge(atom) != 0)
+			restrictions++;
+		if (mFragment.getAtomMass(atom) != 0)
+			restrictions++;
+
+		return (elementSelectivity << 16) + (Math.min(mFragment.getConnAtoms(atom), 255) << 8) + Math.min(restrictions, 255);
+		}
+
+
 	/**
 	 * Considers the i-th neighbour of the current graph atom as potential next graph member to add. If<br>
 	 * - it is not equal to the parent of the current graph atom and<br>
@@ -323,6 +482,54 @@ System.out.println();
 		return highest;
 		}
 
+	/**
+	 * Limits the effort of all subsequent findFragmentInMolecule() calls. Symmetrical fragments,
+	 * e.g. long alkyl chains, may cause a combinatorial explosion of the graph matching in
+	 * cCountModeOverlapping or cCountModeRigorous, and unsuccessful searches may be expensive
+	 * in any count mode. If the step or time limit is reached before the search is complete,
+	 * then findFragmentInMolecule() stops and returns cResultBudgetExhausted.
+	 * In this case getMatchList() contains the matches found so far.
+	 * The match limit just caps the number of collected matches: findFragmentInMolecule()
+	 * stops when maxMatches matches are found and returns their count. If the fragment
+	 * contains exclude groups, then later matches may invalidate earlier ones. Therefore,
+	 * the search is completed in this case and only the match list is truncated.
+	 * @param maxSteps maximum number of graph matching steps, i.e. tried atom assignments; 0 for no limit
+	 * @param maxMatches maximum number of matches to be collected or passed to a listener; 0 for no limit
+	 * @param maxMillis maximum time in milliseconds; 0 for no limit
+	 */
+	public void setBudget(long maxSteps, int maxMatches, long maxMillis) {
+		mMaxSteps = (maxSteps <= 0) ? Long.MAX_VALUE : maxSteps;
+		mMaxMatches = Math.max(0, maxMatches);
+		mMaxMillis = Math.max(0, maxMillis);
+		mHasBudget = (maxSteps > 0 || maxMatches > 0 || maxMillis > 0);
+		}
+
+	/**
+	 * @return number of findFragmentInMolecule() calls of this SSSearcher that returned cResultBudgetExhausted
+	 */
+	public int getBudgetExhaustedCount() {
+		return mBudgetExhaustedCount;
+		}
+
+	public void resetBudgetExhaustedCount() {
+		mBudgetExhaustedCount = 0;
+		}
+
+	/**
+	 * Counts one graph matching step and checks, whether the step or time budget is exhausted.
+	 * The time is checked only every 1024 steps.
+	 * @return true, if the search must be stopped
+	 */
+	private boolean isBudgetExhausted() {
+		if (!mIsBudgetExhausted) {
+			mStepCount++;
+			if (mStepCount > mMaxSteps
+			 || (mDeadline != 0 && (mStepCount & 0x3FF) == 0 && System.currentTimeMillis() > mDeadline))
+				mIsBudgetExhausted = true;
+			}
+		return mIsBudgetExhausted;
+		}
+
 	/**
 	 * If the match count mode is one of cCountModeFirstMatch, cCountModeOverlapping,
 	 * cCountModeRigorous then this method returns an arraylist of all counted matches,
@@ -361,6 +568,50 @@ System.out.println();
 		return (findFragmentInMolecule(cCountModeExistance, matchMode) > 0);
 		}
 
+
+	/**
+	 * Checks for every query, whether the molecule defined with setMolecule() contains it.
+	 * Molecule helper arrays and molecule features are calculated only once for all queries,
+	 * which is much faster than calling setMol() with every fragment of a fragment library.
+	 * After this call the last query of the array is the current fragment of this SSSearcher.
+	 * @param query compiled queries, typically created once and shared by many molecules and threads
+	 * @param matchMode cDefaultMatchMode or combination of cMatchAtomCharge, cMatchAtomMass, cMatchDBondToDelocalized, cMatchAromDBondToDelocalized
+	 * @return BitSet with bits set for those queries, which were found in the molecule
+	 */
+	public BitSet areFragmentsInMolecule(SSSearcherQuery[] query, int matchMode) {
+		BitSet isFound = new BitSet(query.length);
+		if (mMolecule != null) {
+			for (int i=0; i<query.length; i++) {
+				setQuery(query[i]);
+				if (findFragmentInMolecule(cCountModeExistance, matchMode) > 0)
+					isFound.set(i);
+				}
+			}
+		return isFound;
+		}
+
+
+	/**
+	 * Determines for every query the number of matches in the molecule defined with setMolecule().
+	 * Molecule helper arrays and molecule features are calculated only once for all queries,
+	 * which is much faster than calling setMol() with every fragment of a fragment library.
+	 * After this call the last query of the array is the current fragment of this SSSearcher
+	 * and getMatchList() returns the matches of the last query.
+	 * @param query compiled queries, typically created once and shared by many molecules and threads
+	 * @param countMode one of cCountModeExistance, cCountModeFirstMatch, cCountModeOverlapping, cCountModeRigorous
+	 * @param matchMode cDefaultMatchMode or combination of cMatchAtomCharge, cMatchAtomMass, cMatchDBondToDelocalized, cMatchAromDBondToDelocalized
+	 * @return array with the match count of every query or cResultBudgetExhausted, if a budget was set and exhausted
+	 */
+	public int[] findFragmentsInMolecule(SSSearcherQuery[] query, int countMode, int matchMode) {
+		int[] count = new int[query.length];
+		if (mMolecule != null)
+			for (int i=0; i<query.length; i++) {
+				setQuery(query[i]);
+				count[i] = findFragmentInMolecule(countMode, matchMode);
+				}
+		return count;
+		}
+
 	/**
 	 * Locates all matches of the fragment in the molecule that result in distinguishable
 	 * sets of molecule atoms. Multiple matches involving the same atoms, e.g. with a benzene ring,
@@ -397,12 +648,56 @@ System.out.println();
 	 * @param countMode one of cCountModeExistance, cCountModeFirstMatch, cCountModeOverlapping, cCountModeRigorous
 	 * @param matchMode cDefaultMatchMode or combination of cMatchAtomCharge, cMatchAtomMass, cMatchDBondToDelocalized, cMatchAromDBondToDelocalized
 	 * @param atomExcluded defines atoms of molecule to be excluded from sub-structure matching
-	 * @return count of sub-structure matches of fragment in molecule
+	 * @return count of sub-structure matches of fragment in molecule or cResultBudgetExhausted
 	 */
 	public int findFragmentInMolecule(int countMode, int matchMode, final boolean[] atomExcluded) {
-		mMatchList = new ArrayList<int[]>();
-		mSortedMatchSet.clear();
-		mExcludedMatchSet.clear();
+		return findFragmentInMolecule(countMode, matchMode, atomExcluded, null);
+		}
+
+
+	/**
+	 * Locates matches of the fragment in the molecule like findFragmentInMolecule(countMode, matchMode, atomExcluded).
+	 * If a listener is given, then no match list is built. Instead, every counted match is passed
+	 * to the listener as soon as it is found and the listener may stop the search at any time.
+	 * In cCountModeRigorous no match is kept in memory. In cCountModeOverlapping only the sorted
+	 * atom sets of found matches are kept to recognize permutations. cCountModeExistance is handled
+	 * like cCountModeFirstMatch. If the fragment contains exclude groups, then matches found
+	 * early may be invalidated by later ones. In this case all matches are collected first
+	 * and passed to the listener after the search.
+	 * @param countMode one of cCountModeExistance, cCountModeFirstMatch, cCountModeOverlapping, cCountModeRigorous
+	 * @param matchMode cDefaultMatchMode or combination of cMatchAtomCharge, cMatchAtomMass, cMatchDBondToDelocalized, cMatchAromDBondToDelocalized
+	 * @param atomExcluded null or atoms of molecule to be excluded from sub-structure matching
+	 * @param listener null or receiver of all counted matches
+	 * @return count of matches found or passed to the listener or cResultBudgetExhausted
+	 */
+	public int findFragmentInMolecule(int countMode, int matchMode, final boolean[] atomExcluded, SSSearcherMatchListener listener) {
+		if (listener != null) {
+			if (countMode == cCountModeExistance)
+				countMode = cCountModeFirstMatch;
+
+			if (mFragment != null && mFragmentExcludeAtoms != 0) {
+				int count = findFragmentInMolecule(countMode, matchMode, atomExcluded, null);
+				int passed = 0;
+				for (int[] match:mMatchList) {
+					passed++;
+					if (!listener.matchFound(match))
+						break;
+					}
+				return (count == cResultBudgetExhausted) ? count : passed;
+				}
+			}
+
+		// A previously returned match list may still be in use. Therefore, we create a new one,
+		// unless the old one is empty and no matches are collected in cCountModeExistance.
+		if (!mMatchList.isEmpty()
+		 || (countMode != cCountModeExistance && listener == null)
+		 || (mFragment != null && mFragmentExcludeAtoms != 0))
+			mMatchList = new ArrayList<int[]>();
+		mStreamedMatchCount = 0;
+		if (!mSortedMatchSet.isEmpty())
+			mSortedMatchSet.clear();
+		if (!mExcludedMatchSet.isEmpty())
+			mExcludedMatchSet.clear();
 
 		if (mMolecule == null
    		 || mFragment == null)
@@ -426,21 +721,34 @@ System.out.println();
 		setupAtomAndBondFeatures(matchMode);
 
 		// atom usage mask in mMolecule
-		boolean[] atomUsed = new boolean[mMolecule.getAtoms()];
+		if (mIsAtomUsed == null || mIsAtomUsed.length < mMolecule.getAtoms())
+			mIsAtomUsed = new boolean[mMolecule.getAtoms()];
+		boolean[] atomUsed = mIsAtomUsed;
 		if (atomExcluded != null)
-			for (int atom=0; atom<mMolecule.getAtoms(); atom++)
-				atomUsed[atom] = atomExcluded[atom];
+			System.arraycopy(atomExcluded, 0, atomUsed, 0, mMolecule.getAtoms());
+		else
+			Arrays.fill(atomUsed, 0, mMolecule.getAtoms(), false);
 
 		// mMolecule atom currently matched on mFragment atom
-		mMatchTable = new int[mFragment.getAtoms()];
-		Arrays.fill(mMatchTable, -1);	// to mark exclude group atoms
-
-		int[] index = new int[mFragmentGraphSizeWithExcludeGroup];
-		Arrays.fill(index, -1);
+		int fragmentAtoms = mFragment.getAtoms();
+		if (mMatchTable == null || mMatchTable.length < fragmentAtoms)
+			mMatchTable = new int[fragmentAtoms];
+		Arrays.fill(mMatchTable, 0, fragmentAtoms, -1);	// to mark exclude group atoms
+
+		if (mGraphIndex == null || mGraphIndex.length < mFragmentGraphSizeWithExcludeGroup)
+			mGraphIndex = new int[mFragmentGraphSizeWithExcludeGroup];
+		int[] index = mGraphIndex;
+		Arrays.fill(index, 0, mFragmentGraphSizeWithExcludeGroup, -1);
 		// contains current molecule atom pointer for graph matching,
-		// - in case of sub fragment anchor atom: the current molecule atom index matched to the anchor
+		// - in case of sub fragment anchor atom: the current index into the anchor's molecule atom candidates
 		// - otherwise the current connAtom index of the parent atom in the matching graph
 
+		mIsBudgetExhausted = false;
+		if (mHasBudget) {
+			mStepCount = 0;
+			mDeadline = (mMaxMillis == 0) ? 0 : System.currentTimeMillis() + mMaxMillis;
+			}
+
 		int current = 0;
 		while (true) {
 /*
@@ -448,9 +756,14 @@ System.out.print("  index:"); for (int i=0; i<mFragmentGraphSize; i++) System.ou
 System.out.print("		"); for (int i=0; i<current; i++) System.out.print("  "); System.out.println(" ^");
 System.out.println();
 */
+			if (mHasBudget && isBudgetExhausted()) {
+				mBudgetExhaustedCount++;
+				return cResultBudgetExhausted;
+				}
+
 			index[current]++;
 			int maxIndex = (mFragmentGraphParentAtom[current] == -1) ?
-					mMolecule.getAtoms() : mMolecule.getConnAtoms(mMatchTable[mFragmentGraphParentAtom[current]]);
+					getAnchorCandidateCount(current) : mMolecule.getConnAtoms(mMatchTable[mFragmentGraphParentAtom[current]]);
 			if (index[current] == maxIndex) {
 				index[current] = -1;
 				if (current == 0)
@@ -462,10 +775,11 @@ System.out.println();
 				}
 
 			if (mFragmentGraphParentAtom[current] == -1) {	// if current graph atom is sub fragment anchor atom
-				if (!atomUsed[index[current]]) {
-					if (areAtomsSimilar(index[current], mFragmentGraphAtom[current])) {
-						mMatchTable[mFragmentGraphAtom[current]] = index[current];
-						atomUsed[index[current]] = true;
+				int candidate = getAnchorCandidate(current, index[current]);
+				if (!atomUsed[candidate]) {
+					if (areAtomsSimilar(candidate, mFragmentGraphAtom[current])) {
+						mMatchTable[mFragmentGraphAtom[current]] = candidate;
+						atomUsed[candidate] = true;
 						current++;
 						}
 					}
@@ -507,31 +821,40 @@ System.out.println();
 						// Therefore we cannot return after the first match is found and must check
 						// every match, whether it can be extended to include the exclude group(s).
 						// In this case we call it an excluded match.
-						int[] sortedMatch = Arrays.copyOf(mMatchTable, mMatchTable.length);
+						if (mSortedMatchBuffer == null || mSortedMatchBuffer.length != fragmentAtoms) {
+							mSortedMatchBuffer = new int[fragmentAtoms];	// IntArrayComparator considers array lengths
+							mTempMatchBuffer = new int[fragmentAtoms];
+							}
+						int[] sortedMatch = mSortedMatchBuffer;
+						System.arraycopy(mMatchTable, 0, sortedMatch, 0, fragmentAtoms);
 						Arrays.sort(sortedMatch);
 						if (mExcludedMatchSet.contains(sortedMatch)) {
 							isExcludedMatch = true;
 							}
 						else if (doExcludeGroupsMatch(atomUsed, index)) {
-							mExcludedMatchSet.add(sortedMatch);
-							Comparator<int[]> comparator = new IntArrayComparator();
-							int[] tempMatch = new int[sortedMatch.length];
+							mExcludedMatchSet.add(sortedMatch.clone());
+							int[] tempMatch = mTempMatchBuffer;
 							for (int i=mMatchList.size()-1; i>=0; i--) {
 								int[] match = mMatchList.get(i);
-								System.arraycopy(match, 0, tempMatch, 0, tempMatch.length);
+								System.arraycopy(match, 0, tempMatch, 0, fragmentAtoms);
 								Arrays.sort(tempMatch);
-								if (comparator.compare(tempMatch, sortedMatch) == 0)
+								if (mMatchComparator.compare(tempMatch, sortedMatch) == 0)
 									mMatchList.remove(i);
 								}
 							isExcludedMatch = true;
 							}
 						}
 
-					if (!isExcludedMatch) {
-						addMatchIfQualifies(countMode);
+					if (!isExcludedMatch && !mIsBudgetExhausted) {	// exclude group check may have been stopped
+						if (!addMatchIfQualifies(countMode, listener))
+							return mStreamedMatchCount;	// stopped by listener
 
 						if (countMode == cCountModeFirstMatch && mFragmentExcludeAtoms == 0)
 							return 1;
+
+						if (mMaxMatches != 0 && mFragmentExcludeAtoms == 0
+						 && ((listener == null) ? mMatchList.size() : mStreamedMatchCount) >= mMaxMatches)
+							return (listener == null) ? mMatchList.size() : mStreamedMatchCount;
 						}
 					}
 
@@ -540,19 +863,63 @@ System.out.println();
 					atomUsed[mMatchTable[mFragmentGraphAtom[current]]] = false;
 				}
 			}
-		
-		return mMatchList.size();
+
+		// with exclude groups the match limit cannot stop the search early
+		if (mMaxMatches != 0 && listener == null && mMatchList.size() > mMaxMatches)
+			mMatchList.subList(mMaxMatches, mMatchList.size()).clear();
+
+		return (listener == null) ? mMatchList.size() : mStreamedMatchCount;
+		}
+
+
+	/**
+	 * Passes the current match to the listener, if it qualifies for the count mode.
+	 * Other than addMatchIfQualifies() no match is added to the match list and
+	 * in cCountModeFirstMatch and cCountModeRigorous no array is allocated.
+	 * @param countMode cCountModeFirstMatch, cCountModeOverlapping or cCountModeRigorous
+	 * @param listener
+	 * @return false, if the listener requests to stop the search
+	 */
+	private boolean streamMatchIfQualifies(int countMode, SSSearcherMatchListener listener) {
+		int fragmentAtoms = mFragment.getAtoms();
+		if (mStreamedMatchBuffer == null || mStreamedMatchBuffer.length != fragmentAtoms)
+			mStreamedMatchBuffer = new int[fragmentAtoms];
+
+		if (countMode == cCountModeOverlapping) {
+			if (mSortedMatchBuffer == null || mSortedMatchBuffer.length != fragmentAtoms) {
+				mSortedMatchBuffer = new int[fragmentAtoms];	// IntArrayComparator considers array lengths
+				mTempMatchBuffer = new int[fragmentAtoms];
+				}
+			System.arraycopy(mMatchTable, 0, mSortedMatchBuffer, 0, fragmentAtoms);
+			Arrays.sort(mSortedMatchBuffer);
+			if (mSortedMatchSet.contains(mSortedMatchBuffer))
+				return true;
+			mSortedMatchSet.add(mSortedMatchBuffer.clone());
+			}
+
+		System.arraycopy(mMatchTable, 0, mStreamedMatchBuffer, 0, fragmentAtoms);
+		mStreamedMatchCount++;
+		return listener.matchFound(mStreamedMatchBuffer);
 		}
 
 
-	private void addMatchIfQualifies(int countMode) {
-		int[] match = Arrays.copyOf(mMatchTable, mMatchTable.length);
+	/**
+	 * Adds the current match to the match list or passes it to the listener, if it qualifies for the count mode.
+	 * @param countMode
+	 * @param listener null or receiver of matches, which are then not added to the match list
+	 * @return false, if the listener requests to stop the search
+	 */
+	private boolean addMatchIfQualifies(int countMode, SSSearcherMatchListener listener) {
+		if (listener != null)
+			return streamMatchIfQualifies(countMode, listener);
+
+		int[] match = Arrays.copyOf(mMatchTable, mFragment.getAtoms());
 
 		if (countMode == cCountModeFirstMatch
 		 || countMode == cCountModeRigorous) {
 			// count every match (even permutations of same atoms)
 			mMatchList.add(match);
-			return;
+			return true;
 			}
 
 		if (mFragmentExcludeAtoms != 0	// store matches as indication that we have found something
@@ -560,16 +927,16 @@ System.out.println();
 			Arrays.sort(match);
 			if (!mSortedMatchSet.contains(match)) {
 				mSortedMatchSet.add(match);
-				mMatchList.add(Arrays.copyOf(mMatchTable, mMatchTable.length));
+				mMatchList.add(Arrays.copyOf(mMatchTable, mFragment.getAtoms()));
 				}
-			return;
+			return true;
 			}
 
 //		if (cCountModeSeparated) {
 //	not yet supported
 //			}
 
-		return;
+		return true;
 		}
 
 
@@ -808,7 +1175,7 @@ System.out.println();
 			for (int i=0; i<mFragment.getConnAtoms(fragmentAtom); i++) {
 				int connAtom = mFragment.getConnAtom(fragmentAtom,i);
 				int neighbours = 0;
-				int[] neighbour = new int[3];
+				int[] neighbour = mParityNeighbour;
 				for (int j=0; j<mFragment.getConnAtoms(connAtom); j++) {
 					neighbour[neighbours] = mFragment.getConnAtom(connAtom,j);
 					if (neighbour[neighbours] != fragmentAtom)
@@ -886,7 +1253,7 @@ System.out.println();
 						fragmentNeighbour = mFragment.getConnAtom(fragmentAtom, j);
 
 				int moleculeNeighbours = 0;
-				int[] moleculeNeighbour = new int[2];
+				int[] moleculeNeighbour = mParityNeighbour;
 				for (int j=0; j<3; j++)
 					if (mMolecule.getConnBond(moleculeAtom, j) != moleculeBond)
 						moleculeNeighbour[moleculeNeighbours++] = mMolecule.getConnAtom(moleculeAtom, j);
@@ -896,7 +1263,7 @@ System.out.println();
 				}
 			else if (mFragment.getConnAtoms(fragmentAtom) == 3
 	   			  && mMolecule.getConnAtoms(moleculeAtom) == 3) {
-				int[] fragmentNeighbour = new int[2];
+				int[] fragmentNeighbour = mParityNeighbour;
 				int fragmentNeighbours = 0;
 				for (int j=0; j<3; j++)
 					if (mFragment.getConnBond(fragmentAtom, j) != fragmentBond)
@@ -929,9 +1296,12 @@ System.out.print("  index:"); for (int i=0; i<mFragmentGraphSize; i++) System.ou
 System.out.print("		"); for (int i=0; i<current; i++) System.out.print("  "); System.out.println(" ^");
 System.out.println();
 */
+			if (mHasBudget && isBudgetExhausted())
+				return false;	// findFragmentInMolecule() stops as well
+
 			index[current]++;
 			int maxIndex = (mFragmentGraphParentAtom[current] == -1) ?
-					mMolecule.getAtoms() : mMolecule.getConnAtoms(mMatchTable[mFragmentGraphParentAtom[current]]);
+					getAnchorCandidateCount(current) : mMolecule.getConnAtoms(mMatchTable[mFragmentGraphParentAtom[current]]);
 			if (index[current] == maxIndex) {
 				index[current] = -1;
 				if (current == mFragmentGraphSize)
@@ -945,10 +1315,11 @@ System.out.println();
 			}
 
 			if (mFragmentGraphParentAtom[current] == -1) {	// if current graph atom is sub fragment anchor atom
-				if (!atomUsed[index[current]]) {
-					if (areAtomsSimilar(index[current], mFragmentGraphAtom[current])) {
-						mMatchTable[mFragmentGraphAtom[current]] = index[current];
-						atomUsed[index[current]] = true;
+				int candidate = getAnchorCandidate(current, index[current]);
+				if (!atomUsed[candidate]) {
+					if (areAtomsSimilar(candidate, mFragmentGraphAtom[current])) {
+						mMatchTable[mFragmentGraphAtom[current]] = candidate;
+						atomUsed[candidate] = true;
 						current++;
 					}
 				}
@@ -1016,7 +1387,8 @@ System.out.println();
 	 */
 	private boolean doBridgeBondsMatch(boolean[] moleculeAtomUsed, boolean isExcludeFragment) {
 		if (mBridgeBondList != null) {
-			for (BridgeBond bb:mBridgeBondList) {
+			for (int i=0; i<mBridgeBondList.size(); i++) {
+				BridgeBond bb = mBridgeBondList.get(i);
 				if ((mIsExcludeAtom[bb.atom1] || mIsExcludeAtom[bb.atom2]) == isExcludeFragment) {
 					int bridgeSize = mMolecule.getPathLength(mMatchTable[bb.atom1], mMatchTable[bb.atom2], bb.maxBridgeSize+1, moleculeAtomUsed) - 1;
 					if (bridgeSize < bb.minBridgeSize
@@ -1113,17 +1485,21 @@ System.out.println();
 
 
 	private void setupAtomAndBondFeatures(int matchMode) {
-		if (!mMoleculeFeaturesValid) {
+		if (!mMoleculeFeaturesValid
+		 || mMoleculeFeaturesMatchMode != matchMode) {
 			setupMoleculeFeatures(matchMode);
+			mMoleculeFeaturesMatchMode = matchMode;
 			mMoleculeFeaturesValid = true;
 			}
 
-		if (!mFragmentFeaturesValid) {
+		if (!mFragmentFeaturesValid
+		 || mFragmentFeaturesMatchMode != matchMode) {
 			setupFragmentFeatures(matchMode);
 
 			buildFragmentGraph();
 			buildBridgeBondList();
 
+			mFragmentFeaturesMatchMode = matchMode;
 			mFragmentFeaturesValid = true;
 			}
 		}
@@ -1132,8 +1508,10 @@ System.out.println();
 		mMolecule.ensureHelperArrays(mRequiredHelperLevel);
 		int nTotalMoleculeAtoms = mMolecule.getAtoms();
 
-		mMoleculeAtomType = new int[nTotalMoleculeAtoms];
-		mMoleculeAtomFeatures = new int[nTotalMoleculeAtoms];
+		if (mMoleculeAtomType == null || mMoleculeAtomType.length < nTotalMoleculeAtoms) {
+			mMoleculeAtomType = new int[nTotalMoleculeAtoms];
+			mMoleculeAtomFeatures = new int[nTotalMoleculeAtoms];
+			}
 
 		for (int atom=0; atom<nTotalMoleculeAtoms; atom++) {
 			mMoleculeAtomFeatures[atom] = ((getAtomQueryDefaults(mMolecule, atom)
@@ -1152,7 +1530,8 @@ System.out.println();
 
 		int nTotalMoleculeBonds = mMolecule.getBonds();
 
-		mMoleculeBondFeatures = new int[nTotalMoleculeBonds];
+		if (mMoleculeBondFeatures == null || mMoleculeBondFeatures.length < nTotalMoleculeBonds)
+			mMoleculeBondFeatures = new int[nTotalMoleculeBonds];
 
 		for (int bond=0; bond<nTotalMoleculeBonds; bond++)
 			mMoleculeBondFeatures[bond] = (getBondQueryDefaults(mMolecule, bond)
@@ -1160,8 +1539,42 @@ System.out.println();
 					& (Molecule.cBondQFSimpleFeatures | Molecule.cBondQFBridge)
 					^ Molecule.cBondQFNarrowing;
 			// include cBondQFBridge features to make sure that bridge bonds in molecule are never matched directly
+
+		// counting sort of molecule atoms by atomicNo to cheaply locate candidates for anchor atoms
+		if (mMoleculeElementStart == null)
+			mMoleculeElementStart = new int[Molecule.cAtomLabel.length+2];
+		if (mMoleculeAtomByElement == null || mMoleculeAtomByElement.length < nTotalMoleculeAtoms)
+			mMoleculeAtomByElement = new int[nTotalMoleculeAtoms];
+		Arrays.fill(mMoleculeElementStart, 0);
+		for (int atom=0; atom<nTotalMoleculeAtoms; atom++)
+			mMoleculeElementStart[mMolecule.getAtomicNo(atom)+2]++;
+		for (int i=2; i<mMoleculeElementStart.length; i++)
+			mMoleculeElementStart[i] += mMoleculeElementStart[i-1];
+		for (int atom=0; atom<nTotalMoleculeAtoms; atom++)
+			mMoleculeAtomByElement[mMoleculeElementStart[mMolecule.getAtomicNo(atom)+1]++] = atom;
+			// now mMoleculeElementStart[atomicNo] is the first and mMoleculeElementStart[atomicNo+1] the end index
 			}
 
+	/**
+	 * @param graphIndex index of a sub fragment anchor atom in the fragment graph
+	 * @return number of molecule atoms that are candidates to be matched on the anchor atom
+	 */
+	private int getAnchorCandidateCount(int graphIndex) {
+		int atomicNo = mFragmentGraphAnchorAtomicNo[graphIndex];
+		return (atomicNo == -1) ? mMolecule.getAtoms()
+				: mMoleculeElementStart[atomicNo+1] - mMoleculeElementStart[atomicNo];
+		}
+
+	/**
+	 * @param graphIndex index of a sub fragment anchor atom in the fragment graph
+	 * @param i candidate index from 0 to getAnchorCandidateCount()-1
+	 * @return i-th molecule atom candidate for the anchor atom
+	 */
+	private int getAnchorCandidate(int graphIndex, int i) {
+		int atomicNo = mFragmentGraphAnchorAtomicNo[graphIndex];
+		return (atomicNo == -1) ? i : mMoleculeAtomByElement[mMoleculeElementStart[atomicNo]+i];
+		}
+
 	private void setupFragmentFeatures(int matchMode) {
 		int[] atomFeaturesWithoutExcludeAtoms = null;
 		int[] bondFeaturesWithoutExcludeAtoms = null;
@@ -0,0 +1,74 @@
+/*
+* Copyright (c) 1997 - 2016
+* Actelion Pharmaceuticals Ltd.
+* Gewerbestrasse 16
+* CH-4123 Allschwil, Switzerland
+*
+* All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without
+* modification, are permitted provided that the following conditions are met:
+*
+* 1. Redistributions of source code must retain the above copyright notice, this
+*    list of conditions and the following disclaimer.
+* 2. Redistributions in binary form must reproduce the above copyright notice,
+*    this list of conditions and the following disclaimer in the documentation
+*    and/or other materials provided with the distribution.
+* 3. Neither the name of the the copyright holder nor the
+*    names of its contributors may be used to endorse or promote products
+*    derived from this software without specific prior written permission.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+* ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+* WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+* DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+* ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+* (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+* LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+* ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+* (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+* SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*
+*/
+
+package com.actelion.research.chem;
+
+/**
+ * SSSearcherQuery is a compiled sub-structure query. It contains a private copy of the
+ * query fragment together with everything that SSSearcher derives from a fragment before
+ * the graph matching can start: the fragment graph, atom and bond features, exclude group
+ * flags and bridge bonds. A query is compiled once and is immutable afterwards. Thus,
+ * it may be passed to SSSearcher.setQuery() of any number of SSSearcher instances,
+ * which run in different threads, without repeating the fragment analysis in every thread.
+ */
+public class SSSearcherQuery {
+	final SSSearcher mSearcher;	// holds the compiled fragment state; never used for searching
+
+	/**
+	 * Compiles the fragment for the SSSearcher.cDefaultMatchMode.
+	 * @param fragment query fragment; must have the fragment flag set to match anything
+	 */
+	public SSSearcherQuery(StereoMolecule fragment) {
+		this(fragment, SSSearcher.cDefaultMatchMode);
+		}
+
+	/**
+	 * Compiles the fragment for the given match mode. The fragment is copied,
+	 * i.e. later changes of the passed fragment don't affect the query.
+	 * @param fragment query fragment; must have the fragment flag set to match anything
+	 * @param matchMode the match mode that will be used for searching with this query
+	 */
+	public SSSearcherQuery(StereoMolecule fragment, int matchMode) {
+		StereoMolecule copy = new StereoMolecule(fragment.getAllAtoms(), fragment.getAllBonds());	// compact copy
+		fragment.copyMolecule(copy);
+		mSearcher = new SSSearcher(matchMode);
+		mSearcher.compileQuery(copy, matchMode);
+		}
+
+	/**
+	 * @return a copy of the query fragment or null, if the query cannot match anything
+	 */
+	public StereoMolecule getFragment() {
+		return (mSearcher.mFragment == null) ? null : new StereoMolecule(mSearcher.mFragment);
+		}
+	}
@@ -34,6 +34,7 @@
 package com.actelion.research.chem;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 
 public class SSSearcherWithIndex {
 	public static final String cIndexVersion = "1.2.1";
@@ -553,7 +554,12 @@ public class SSSearcherWithIndex {
 		"RG@DXMH" };
 
 	private static StereoMolecule[]  sKeyFragment;
+	private static SSSearcherQuery[] sKeyQuery;
+	private static int[]		sKeyOrder,sKeyAtoms,sKeyRingClosures;
+	private static int[][]		sKeyElementCount,sKeySubKey;
 	private SSSearcher			mSSSearcher;
+	private boolean[]			mIsKeyMatch;
+	private int[]				mElementCount;
 	private StereoMolecule		mMolecule,mFragment;
 	private int[]				mMoleculeIndex,mFragmentIndex;
 	private byte[]				mMoleculeIDCode,mFragmentIDCode;
@@ -723,6 +729,15 @@ public class SSSearcherWithIndex {
 		}
 
 
+	/**
+	 * Creates the FragFp index of the molecule, i.e. checks for every key fragment,
+	 * whether it is a sub-structure of the molecule. Keys are evaluated in the order
+	 * of increasing size. A key is skipped without graph matching, if the molecule
+	 * does not contain enough atoms of the key's elements, if it has fewer ring closures
+	 * than the key, or if any smaller key, which is a sub-structure of this key, did not match.
+	 * @param mol
+	 * @return index with one bit per key
+	 */
 	public int[] createIndex(StereoMolecule mol) {
 		if (mol == null)
 			return null;
@@ -730,16 +745,168 @@ public class SSSearcherWithIndex {
 		int[] index = new int[(cKeyIDCode.length+31)/32];
 		mol = removeExcludeGroups(mol);
 		mSSSearcher.setMolecule(mol);
-		for (int i=0; i<cKeyIDCode.length; i++) {
-			mSSSearcher.setFragment(sKeyFragment[i]);
-			if (mSSSearcher.isFragmentInMolecule(SSSearcher.cIndexMatchMode))
-				index[i/32] |= (1 << (31-i%32));
+
+		int atoms = mol.getAtoms();
+		int ringClosures = getRingClosureCount(mol);
+		for (int atom=0; atom<atoms; atom++)
+			if (isElementCountAtom(mol, atom))
+				mElementCount[mol.getAtomicNo(atom)]++;
+
+		for (int i=0; i<sKeyOrder.length; i++) {
+			int key = sKeyOrder[i];
+			mIsKeyMatch[key] = false;
+
+			if (sKeyAtoms[key] > atoms
+			 || sKeyRingClosures[key] > ringClosures
+			 || !isElementCountSufficient(sKeyElementCount[key]))
+				continue;
+
+			boolean subKeyFailed = false;
+			for (int subKey:sKeySubKey[key]) {
+				if (!mIsKeyMatch[subKey]) {
+					subKeyFailed = true;
+					break;
+					}
+				}
+			if (subKeyFailed)
+				continue;
+
+			mSSSearcher.setQuery(sKeyQuery[key]);
+			if (mSSSearcher.isFragmentInMolecule(SSSearcher.cIndexMatchMode)) {
+				mIsKeyMatch[key] = true;
+				index[key/32] |= (1 << (31-key%32));
+				}
 			}
 
+		for (int atom=0; atom<atoms; atom++)
+			mElementCount[mol.getAtomicNo(atom)] = 0;
+
 		return index;
 		}
 
 
+	private boolean isElementCountSufficient(int[] keyElementCount) {
+		for (int i=0; i<keyElementCount.length; i+=2)
+			if (mElementCount[keyElementCount[i]] < keyElementCount[i+1])
+				return false;
+		return true;
+		}
+
+
+	/**
+	 * Only atoms without atom list and without 'any' query feature are
+	 * restricted to their atomicNo when matching key atoms against molecule atoms.
+	 */
+	private static boolean isElementCountAtom(StereoMolecule mol, int atom) {
+		return mol.getAtomList(atom) == null
+			&& (mol.getAtomQueryFeatures(atom) & Molecule.cAtomQFAny) == 0;
+		}
+
+
+	/**
+	 * @param mol
+	 * @return number of bonds between non-hydrogen atoms, which close a ring
+	 */
+	private static int getRingClosureCount(StereoMolecule mol) {
+		int[] parent = new int[mol.getAtoms()];
+		for (int atom=0; atom<parent.length; atom++)
+			parent[atom] = atom;
+
+		int ringClosures = 0;
+		for (int bond=0; bond<mol.getBonds(); bond++) {
+			int root1 = mol.getBondAtom(0, bond);
+			while (parent[root1] != root1)
+				root1 = parent[root1] = parent[parent[root1]];
+			int root2 = mol.getBondAtom(1, bond);
+			while (parent[root2] != root2)
+				root2 = parent[root2] = parent[parent[root2]];
+			if (root1 == root2)
+				ringClosures++;
+			else
+				parent[root1] = root2;
+			}
+		return ringClosures;
+		}
+
+
+	/**
+	 * Determines size, element counts, ring closures of all key fragments,
+	 * and for every key all smaller keys, which are sub-structures of it.
+	 * Since sub-structure relationships with cIndexMatchMode are transitive,
+	 * a key cannot match a molecule if any of its sub-keys doesn't.
+	 */
+	private static void initializeKeyHierarchy() {
+		int keyCount = cKeyIDCode.length;
+		sKeyAtoms = new int[keyCount];
+		sKeyRingClosures = new int[keyCount];
+		sKeyElementCount = new int[keyCount][];
+		long[] sortable = new long[keyCount];
+		int[] elementCount = new int[Molecule.cAtomLabel.length];
+		for (int key=0; key<keyCount; key++) {
+			StereoMolecule fragment = sKeyFragment[key];
+			sKeyAtoms[key] = fragment.getAtoms();
+			sKeyRingClosures[key] = getRingClosureCount(fragment);
+
+			int elements = 0;
+			for (int atom=0; atom<fragment.getAtoms(); atom++)
+				if (isElementCountAtom(fragment, atom)
+				 && elementCount[fragment.getAtomicNo(atom)]++ == 0)
+					elements++;
+			sKeyElementCount[key] = new int[2*elements];
+			elements = 0;
+			for (int atom=0; atom<fragment.getAtoms(); atom++) {
+				int atomicNo = fragment.getAtomicNo(atom);
+				if (elementCount[atomicNo] != 0) {
+					sKeyElementCount[key][elements++] = atomicNo;
+					sKeyElementCount[key][elements++] = elementCount[atomicNo];
+					elementCount[atomicNo] = 0;
+					}
+				}
+
+			sortable[key] = ((long)fragment.getAtoms() << 40) | ((long)fragment.getBonds() << 20) | key;
+			}
+
+		Arrays.sort(sortable);
+		sKeyOrder = new int[keyCount];
+		for (int i=0; i<keyCount; i++)
+			sKeyOrder[i] = (int)(sortable[i] & 0xFFFFF);
+
+		SSSearcher searcher = new SSSearcher();
+		sKeySubKey = new int[keyCount][];
+		int[] subKey = new int[keyCount];
+		for (int i=0; i<keyCount; i++) {
+			int key = sKeyOrder[i];
+			StereoMolecule fragment = sKeyFragment[key];
+			for (int atom=0; atom<fragment.getAtoms(); atom++)
+				if (isElementCountAtom(fragment, atom))
+					elementCount[fragment.getAtomicNo(atom)]++;
+
+			searcher.setMolecule(fragment);
+			int subKeyCount = 0;
+			for (int j=0; j<i; j++) {
+				int candidate = sKeyOrder[j];
+				if (sKeyFragment[candidate].getBonds() <= fragment.getBonds()
+				 && sKeyRingClosures[candidate] <= sKeyRingClosures[key]) {
+					boolean isPossible = true;
+					for (int k=0; k<sKeyElementCount[candidate].length; k+=2)
+						if (elementCount[sKeyElementCount[candidate][k]] < sKeyElementCount[candidate][k+1])
+							isPossible = false;
+
+					if (isPossible) {
+						searcher.setQuery(sKeyQuery[candidate]);
+						if (searcher.isFragmentInMolecule(SSSearcher.cIndexMatchMode))
+							subKey[subKeyCount++] = candidate;
+						}
+					}
+				}
+			sKeySubKey[key] = Arrays.copyOf(subKey, subKeyCount);
+
+			for (int atom=0; atom<fragment.getAtoms(); atom++)
+				elementCount[fragment.getAtomicNo(atom)] = 0;
+			}
+		}
+
+
 	private StereoMolecule removeExcludeGroups(StereoMolecule mol) {
 		if (mol.isFragment()) {
 			for (int atom=0; atom<mol.getAllAtoms(); atom++) {
@@ -857,11 +1024,17 @@ public class SSSearcherWithIndex {
 		    if (sKeyFragment == null) {
 	    		IDCodeParser theParser = new IDCodeParser(false);
 	    		sKeyFragment = new StereoMolecule[cKeyIDCode.length];
+	    		sKeyQuery = new SSSearcherQuery[cKeyIDCode.length];
 	    		for (int i=0; i<cKeyIDCode.length; i++) {
 	    			sKeyFragment[i] = theParser.getCompactMolecule(cKeyIDCode[i]);
 	    			sKeyFragment[i].ensureHelperArrays(Molecule.cHelperNeighbours);
+	    			sKeyQuery[i] = new SSSearcherQuery(sKeyFragment[i], SSSearcher.cIndexMatchMode);
 	    			}
+	    		initializeKeyHierarchy();
 	    		}
 			}
+
+		mIsKeyMatch = new boolean[cKeyIDCode.length];
+		mElementCount = new int[Molecule.cAtomLabel.length];
 	    }
 	}
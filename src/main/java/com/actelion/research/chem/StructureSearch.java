@@ -0,0 +1,370 @@
+/*
+* Copyright (c) 1997 - 2016
+* Actelion Pharmaceuticals Ltd.
+* Gewerbestrasse 16
+* CH-4123 Allschwil, Switzerland
+*
+* All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without
+* modification, are permitted provided that the following conditions are met:
+*
+* 1. Redistributions of source code must retain the above copyright notice, this
+*    list of conditions and the following disclaimer.
+* 2. Redistributions in binary form must reproduce the above copyright notice,
+*    this list of conditions and the following disclaimer in the documentation
+*    and/or other materials provided with the distribution.
+* 3. Neither the name of the the copyright holder nor the
+*    names of its contributors may be used to endorse or promote products
+*    derived from this software without specific prior written permission.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+* ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+* WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+* DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+* ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+* (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+* LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+* ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+* (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+* SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*
+*/
+
+package com.actelion.research.chem;
+
+import com.actelion.research.calc.ThreadMaster;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * StructureSearch runs sub-structure searches of one query fragment against an in-memory
+ * corpus of idcodes with their FragFp indexes as created by SSSearcherWithIndex.createIndex().
+ * The indexes are kept column-wise in a BitSlicedIndex. The corpus is processed in blocks
+ * by multiple worker threads, each of them using its own SSSearcher with the shared query,
+ * which is compiled only once as SSSearcherQuery. For every block the worker first
+ * determines the candidate rows by AND-ing the index columns of the query keys.
+ * Only candidate rows are parsed into the worker's molecule buffer and graph matched.
+ * Matching rows are passed to a StructureSearchListener as soon as they are found.
+ * Rows, whose idcode cannot be parsed or matched, are counted as failed.
+ * A running search stops early, if the ThreadMaster requests it.
+ */
+public class StructureSearch {
+	private static final int BLOCK_WORDS = 64;
+	private static final int BLOCK_SIZE = 64*BLOCK_WORDS;
+
+	private byte[][] mIDCode;
+	private int[][] mIndex;
+	private BitSlicedIndex mColumnIndex;
+	private int mThreadCount,mMatchMode;
+	private ThreadMaster mThreadMaster;
+	private long mMaxSteps,mMaxMillis;
+	private AtomicInteger mBudgetExhaustedCount = new AtomicInteger();
+	private AtomicInteger mFailedCount = new AtomicInteger();
+	private volatile boolean mStopRequested;
+
+	/**
+	 * Creates a search engine for the given corpus of idcodes and their indexes.
+	 * Missing indexes (null array or null entries) are created from the respective
+	 * idcodes before the first search. Rows, for which no index can be created,
+	 * are graph matched with every query and are counted as failed, if this fails, too.
+	 * @param idcode corpus of idcodes
+	 * @param index null or FragFp indexes matching the idcode array
+	 */
+	public StructureSearch(byte[][] idcode, int[][] index) {
+		if (index != null && index.length != idcode.length)
+			throw new IllegalArgumentException("idcode and index counts differ");
+
+		mIDCode = idcode;
+		mIndex = (index != null) ? index : new int[idcode.length][];
+		mThreadCount = Runtime.getRuntime().availableProcessors();
+		mMatchMode = SSSearcher.cDefaultMatchMode;
+		}
+
+	/**
+	 * Creates a search engine for the given corpus of idcodes and their column-wise stored indexes.
+	 * @param idcode corpus of idcodes
+	 * @param index FragFp indexes of all idcodes in the same order
+	 */
+	public StructureSearch(byte[][] idcode, BitSlicedIndex index) {
+		if (index.getRowCount() != idcode.length)
+			throw new IllegalArgumentException("idcode and index counts differ");
+
+		mIDCode = idcode;
+		mColumnIndex = index;
+		mThreadCount = Runtime.getRuntime().availableProcessors();
+		mMatchMode = SSSearcher.cDefaultMatchMode;
+		}
+
+	public int getRowCount() {
+		return mIDCode.length;
+		}
+
+	/**
+	 * Creates missing indexes, if needed, and returns the column-wise stored FragFp indexes.
+	 * @return indexes of all rows or null, if the index creation was cancelled by the ThreadMaster
+	 */
+	public BitSlicedIndex getColumnIndex() {
+		synchronized(this) {
+			if (mColumnIndex == null) {
+				mStopRequested = false;
+				IndexWorker[] worker = new IndexWorker[getWorkerCount()];
+				for (int i=0; i<worker.length; i++)
+					worker[i] = new IndexWorker();
+				runWorkers(worker);
+				if (mStopRequested)
+					return null;
+
+				mColumnIndex = new BitSlicedIndex(mIndex);
+				mIndex = null;
+				}
+			}
+		return mColumnIndex;
+		}
+	/**
+	 * @param threadCount number of worker threads to be used; default is the number of available processors
+	 */
+	public void setThreadCount(int threadCount) {
+		mThreadCount = Math.max(1, threadCount);
+		}
+
+	/**
+	 * @param matchMode cDefaultMatchMode or combination of SSSearcher.cMatchAtomCharge, cMatchAtomMass, cMatchDBondToDelocalized, cMatchAromDBondToDelocalized
+	 */
+	public void setMatchMode(int matchMode) {
+		mMatchMode = matchMode;
+		}
+
+	/**
+	 * @param threadMaster null or a ThreadMaster that may cancel a running search
+	 */
+	public void setThreadMaster(ThreadMaster threadMaster) {
+		mThreadMaster = threadMaster;
+		}
+
+	/**
+	 * Limits the graph matching effort per row, such that a single pathological row cannot
+	 * stall a worker thread. Rows, for which the budget is exhausted, are not reported as match,
+	 * but are counted and can be queried with getBudgetExhaustedCount() after the search.
+	 * @param maxSteps maximum number of graph matching steps per row; 0 for no limit
+	 * @param maxMillis maximum time in milliseconds per row; 0 for no limit
+	 */
+	public void setBudget(long maxSteps, long maxMillis) {
+		mMaxSteps = maxSteps;
+		mMaxMillis = maxMillis;
+		}
+
+	/**
+	 * @return number of rows of the last search, which were skipped, because their matching exceeded the budget
+	 */
+	public int getBudgetExhaustedCount() {
+		return mBudgetExhaustedCount.get();
+		}
+
+	/**
+	 * @return number of candidate rows of the last search, which were skipped, because their idcode could not be parsed or matched
+	 */
+	public int getFailedCount() {
+		return mFailedCount.get();
+		}
+
+	/**
+	 * Runs a sub-structure search of the query over the entire corpus.
+	 * @param query the sub-structure; it is treated as fragment even if the fragment flag is not set
+	 * @return sorted list of matching rows
+	 */
+	public int[] findSubStructures(StereoMolecule query) {
+		final boolean[] isMatch = new boolean[mIDCode.length];
+		int count = findSubStructures(query, new StructureSearchListener() {
+			public void matchFound(int row) {
+				isMatch[row] = true;
+				}
+			} );
+
+		int[] match = new int[count];
+		int index = 0;
+		for (int row=0; row<isMatch.length && index<count; row++)
+			if (isMatch[row])
+				match[index++] = row;
+		return match;
+		}
+
+	/**
+	 * Runs a sub-structure search of the query over the entire corpus using all worker threads.
+	 * Every matching row is immediately reported to the listener. If the search is
+	 * cancelled by the ThreadMaster, then the method returns after all workers have
+	 * finished their current block and the number of matches found so far is returned.
+	 * @param query the sub-structure; it is treated as fragment even if the fragment flag is not set
+	 * @param listener receives matching rows from multiple threads
+	 * @return number of matching rows reported to the listener
+	 */
+	public int findSubStructures(StereoMolecule query, StructureSearchListener listener) {
+		mStopRequested = false;
+		mBudgetExhaustedCount.set(0);
+		mFailedCount.set(0);
+
+		if (query == null || query.getAllAtoms() == 0 || mIDCode.length == 0)
+			return 0;
+
+		StereoMolecule fragment = new StereoMolecule(query);
+		fragment.setFragment(true);
+		BitSlicedIndex columnIndex = getColumnIndex();
+		if (columnIndex == null)
+			return 0;
+
+		int[] queryKey = columnIndex.getQueryKeys(new SSSearcherWithIndex().createIndex(fragment));
+
+		SSSearcherQuery compiledQuery = new SSSearcherQuery(fragment, mMatchMode);
+
+		AtomicInteger matchCount = new AtomicInteger();
+		SearchWorker[] worker = new SearchWorker[getWorkerCount()];
+		for (int i=0; i<worker.length; i++)
+			worker[i] = new SearchWorker(compiledQuery, queryKey, matchCount, listener);
+		runWorkers(worker);
+
+		return matchCount.get();
+		}
+
+	private int getWorkerCount() {
+		return Math.max(1, Math.min(mThreadCount, (mIDCode.length + BLOCK_SIZE - 1) / BLOCK_SIZE));
+		}
+
+	/**
+	 * Starts all workers on a fresh block counter and waits until all of them have finished.
+	 */
+	private void runWorkers(BlockWorker[] worker) {
+		AtomicInteger nextBlock = new AtomicInteger();
+		for (int i=0; i<worker.length; i++) {
+			worker[i].mNextBlock = nextBlock;
+			worker[i].start();
+			}
+
+		boolean isInterrupted = false;
+		for (int i=0; i<worker.length; i++) {
+			while (true) {
+				try {
+					worker[i].join();
+					break;
+					}
+				catch (InterruptedException ie) {
+					mStopRequested = true;
+					isInterrupted = true;
+					}
+				}
+			}
+
+		if (isInterrupted)
+			Thread.currentThread().interrupt();
+		}
+
+	private boolean mustStop() {
+		if (!mStopRequested && mThreadMaster != null && mThreadMaster.threadMustDie())
+			mStopRequested = true;
+		return mStopRequested;
+		}
+
+	private abstract class BlockWorker extends Thread {
+		private AtomicInteger mNextBlock;
+
+		public BlockWorker() {
+			super("StructureSearch");
+			setDaemon(true);
+			}
+
+		public void run() {
+			while (!mustStop()) {
+				int firstRow = mNextBlock.getAndIncrement() * BLOCK_SIZE;
+				if (firstRow >= mIDCode.length)
+					break;
+
+				processBlock(firstRow, Math.min(firstRow+BLOCK_SIZE, mIDCode.length));
+				}
+			}
+
+		protected abstract void processBlock(int firstRow, int lastRow);
+		}
+
+	private class IndexWorker extends BlockWorker {
+		private SSSearcherWithIndex mIndexCreator;
+		private IDCodeParser mParser;
+		private StereoMolecule mMolecule;
+
+		protected void processBlock(int firstRow, int lastRow) {
+			for (int row=firstRow; row<lastRow; row++) {
+				if (mIndex[row] == null && mIDCode[row] != null) {
+					if (mIndexCreator == null) {
+						mIndexCreator = new SSSearcherWithIndex();
+						mParser = new IDCodeParser(false);
+						mMolecule = new StereoMolecule();
+						}
+					try {
+						mParser.parse(mMolecule, mIDCode[row]);
+						mIndex[row] = mIndexCreator.createIndex(mMolecule);
+						}
+					catch (Exception e) {
+						// with all keys set the row is a candidate of every query, which then counts it as failed, if needed
+						mIndex[row] = new int[(SSSearcherWithIndex.getNoOfKeys()+31)/32];
+						Arrays.fill(mIndex[row], 0xFFFFFFFF);
+						}
+					}
+				}
+			}
+		}
+
+	private class SearchWorker extends BlockWorker {
+		private int[] mQueryKey;
+		private long[] mCandidate;
+		private AtomicInteger mMatchCount;
+		private StructureSearchListener mListener;
+		private SSSearcher mSearcher;
+		private IDCodeParser mParser;
+		private StereoMolecule mMolecule;
+
+		public SearchWorker(SSSearcherQuery query, int[] queryKey,
+							AtomicInteger matchCount, StructureSearchListener listener) {
+			mQueryKey = queryKey;
+			mCandidate = new long[BLOCK_WORDS];
+			mMatchCount = matchCount;
+			mListener = listener;
+			mSearcher = new SSSearcher(mMatchMode);
+			mSearcher.setQuery(query);
+			mSearcher.setBudget(mMaxSteps, 0, mMaxMillis);
+			mParser = new IDCodeParser(false);
+			mMolecule = new StereoMolecule();
+			}
+
+		protected void processBlock(int firstRow, int lastRow) {
+			int firstWord = firstRow >>> 6;
+			int wordCount = (lastRow - firstRow + 63) >>> 6;
+			if (mColumnIndex.getCandidates(mQueryKey, firstWord, wordCount, mCandidate) == 0)
+				return;
+
+			for (int i=0; i<wordCount; i++) {
+				long bits = mCandidate[i];
+				while (bits != 0) {
+					int row = ((firstWord+i) << 6) + Long.numberOfTrailingZeros(bits);
+					bits &= bits - 1;
+					if (mIDCode[row] == null)
+						continue;
+
+					try {
+						mParser.parse(mMolecule, mIDCode[row]);
+						mSearcher.setMolecule(mMolecule);
+						int count = mSearcher.findFragmentInMolecule(SSSearcher.cCountModeExistance, mMatchMode);
+						if (count > 0) {
+							mMatchCount.incrementAndGet();
+							mListener.matchFound(row);
+							}
+						else if (count == SSSearcher.cResultBudgetExhausted) {
+							mBudgetExhaustedCount.incrementAndGet();
+							}
+						}
+					catch (Exception e) {
+						mFailedCount.incrementAndGet();
+						}
+					}
+				}
+			}
+		}
+	}
@@ -6,8 +6,9 @@ import java.util.Vector;
 import com.actelion.research.chem.Canonizer;
 import com.actelion.research.chem.ExtendedMolecule;
 import com.actelion.research.chem.IDCodeParser;
-import com.actelion.research.chem.Molecule;
 import com.actelion.research.chem.StereoMolecule;
+import com.actelion.research.chem.descriptor.AtomSphereEnumerator;
+import com.actelion.research.chem.descriptor.FragmentIDCodeCache;
 
 public class HoseCodeCreator {
 
@@ -23,11 +24,11 @@ public class HoseCodeCreator {
 	 * the respective option. 
 	 */ 
 	public static String[][] getHoseCodes(StereoMolecule mol, int maxSphereSize, int type) {
+		AtomSphereEnumerator enumerator = createSphereEnumerator(mol, maxSphereSize, type);
 		String[][] ids=new String[mol.getAtoms()][maxSphereSize];
-		mol.ensureHelperArrays(Molecule.cHelperRings); 
 
 		for (int rootAtom=0; rootAtom<mol.getAtoms(); rootAtom++) { 
-			ids[rootAtom]=getHoseCodesForAtom(mol, rootAtom, maxSphereSize, type);
+			ids[rootAtom]=getHoseCodesForAtom(enumerator, rootAtom);
 			
 		}
 		return ids;
@@ -40,60 +41,32 @@ public class HoseCodeCreator {
 		return true;
 	}
 	
-	private static String[] getHoseCodesForAtom(StereoMolecule mol, int rootAtom, int maxSphereSize, int type) {
-		StereoMolecule fragment = new StereoMolecule(mol.getAtoms(), mol.getBonds()); 
-		Vector<String> ids=new Vector();
-		int min = 0; 
-		int max = 0;
-		boolean[] atomMask = new boolean[mol.getAtoms()];
-		int[] atomList = new int[mol.getAtoms()]; 
-		for (int sphere=0; sphere<maxSphereSize && max<mol.getAtoms(); sphere++) { 
-			if (max == 0) { 
-				atomList[0] = rootAtom; 
-				atomMask[rootAtom] = true; 
-				max = 1; 
-			} 
-			else { 
-				int newMax = max; 
-				for (int i=min; i<max; i++) { 
-					int atom = atomList[i]; 
-					for (int j=0; j<mol.getConnAtoms(atom); j++) {
-						int connAtom = mol.getConnAtom(atom, j); 
-						if (DEBUG) System.out.println("---> "+atom+" to "+connAtom);
-						if (!atomMask[connAtom]) {
-							switch (type) {
-							case FULL_HOSE_CODE:
-								atomMask[connAtom] = true; 
-								atomList[newMax++] = connAtom;
-								break;
-							case HOSE_CODE_CUT_C_SP3_SP3:
-								if ( ! (isCsp3(mol, atom) && isCsp3(mol,connAtom))) {
-									if (DEBUG) System.out.println("NO SKIP");
-									atomMask[connAtom] = true; 
-									atomList[newMax++] = connAtom;
-								} else {
-									if (DEBUG) System.out.println("SKIP");
-								}
-								break;
-							}
-						} 
-					} 
-				} 
-				min = max; 
-				max = newMax; 
-			} 
-
-			mol.copyMoleculeByAtoms(fragment, atomMask, true, null); 
+	private static AtomSphereEnumerator createSphereEnumerator(final StereoMolecule mol, int maxSphereSize, int type) {
+		AtomSphereEnumerator enumerator = (type == HOSE_CODE_CUT_C_SP3_SP3) ?
+				new AtomSphereEnumerator(maxSphereSize) {
+					@Override
+					protected boolean isNeighbourIncluded(int atom, int connAtom) {
+						boolean skip = isCsp3(mol, atom) && isCsp3(mol,connAtom);
+						if (DEBUG) System.out.println("---> "+atom+" to "+connAtom+(skip ? " SKIP" : " NO SKIP"));
+						return !skip;
+					}
+				}
+				: new AtomSphereEnumerator(maxSphereSize);
+		enumerator.setIDCodeCache(FragmentIDCodeCache.getDefaultInstance());
+		enumerator.setMolecule(mol);
+		return enumerator;
+	}
 
-			// TO GET ONLY THE SKELETON
-			/*
-			for (int atom=0; atom<fragment.getAllAtoms(); atom++)  {
-				fragment.setAtomicNo(atom, 6); 
-			}
-			*/
-			
-			ids.add(new Canonizer(fragment, Canonizer.ENCODE_ATOM_CUSTOM_LABELS).getIDCode()); 
-		}
+	/**
+	 * @param enumerator sphere enumerator for the molecule
+	 * @param rootAtom
+	 * @return one HOSE code for every sphere around rootAtom
+	 */
+	public static String[] getHoseCodesForAtom(AtomSphereEnumerator enumerator, int rootAtom) {
+		Vector<String> ids=new Vector<String>();
+		enumerator.setRootAtom(rootAtom);
+		while (enumerator.nextSphere())
+			ids.add(enumerator.getIDCode(Canonizer.ENCODE_ATOM_CUSTOM_LABELS)); 
 		return ids.toArray(new String[ids.size()]);
 	}
 
@@ -110,7 +83,7 @@ public class HoseCodeCreator {
 			break;
 		}
 		if (atomID>=0) {
-			return HoseCodeCreator.getHoseCodesForAtom(molecule, atomID, maxSphereSize, type);
+			return HoseCodeCreator.getHoseCodesForAtom(createSphereEnumerator(molecule, maxSphereSize, type), atomID);
 		}
 		return new String[0];
 	}
@@ -0,0 +1,267 @@
+/*
+* Copyright (c) 1997 - 2016
+* Actelion Pharmaceuticals Ltd.
+* Gewerbestrasse 16
+* CH-4123 Allschwil, Switzerland
+*
+* All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without
+* modification, are permitted provided that the following conditions are met:
+*
+* 1. Redistributions of source code must retain the above copyright notice, this
+*    list of conditions and the following disclaimer.
+* 2. Redistributions in binary form must reproduce the above copyright notice,
+*    this list of conditions and the following disclaimer in the documentation
+*    and/or other materials provided with the distribution.
+* 3. Neither the name of the the copyright holder nor the
+*    names of its contributors may be used to endorse or promote products
+*    derived from this software without specific prior written permission.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+* ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+* WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+* DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+* ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+* (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+* LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+* ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+* (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+* SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*
+*/
+
+package com.actelion.research.chem.descriptor;
+
+import com.actelion.research.chem.Canonizer;
+import com.actelion.research.chem.Molecule;
+import com.actelion.research.chem.StereoMolecule;
+
+/**
+ * AtomSphereEnumerator grows spheres of atoms around root atoms by breadth first search,
+ * which is the common basis of circular fragment descriptors like HashedCFp, SkeletonSpheres
+ * or HOSE codes. For every sphere the fragment and its idcodes are created on request only
+ * and are cached, such that multiple descriptors created in the same pass share them.
+ * Atom mask, atom list and fragment buffers are reused for all root atoms and molecules.
+ * Typical use:<br>
+ * <pre>
+ * enumerator.setMolecule(mol);
+ * for (int rootAtom=0; rootAtom&lt;mol.getAtoms(); rootAtom++) {
+ *     enumerator.setRootAtom(rootAtom);
+ *     while (enumerator.nextSphere())
+ *         use(enumerator.getSphere(), enumerator.getIDCode());
+ *     }
+ * </pre>
+ */
+public class AtomSphereEnumerator {
+	private StereoMolecule mMol,mFragment;
+	private int[] mAtomList;
+	private boolean[] mAtomMask;
+	private int mMaxSphereCount,mSphere,mMin,mMax,mIDCodeMode;
+	private boolean mIsFragmentValid,mIsSkeleton,mHasCustomLabels;
+	private String mIDCode,mSkeletonIDCode;
+	private FragmentIDCodeCache mIDCodeCache;
+
+	/**
+	 * Creates an enumerator, which canonizes every fragment. Use setIDCodeCache() to
+	 * let it share a FragmentIDCodeCache, e.g. FragmentIDCodeCache.getDefaultInstance().
+	 * @param maxSphereCount maximum number of spheres per root atom, the root atom being sphere 0
+	 */
+	public AtomSphereEnumerator(int maxSphereCount) {
+		mMaxSphereCount = maxSphereCount;
+		}
+
+	/**
+	 * @param cache null to canonize every fragment or a cache shared with other enumerators
+	 */
+	public void setIDCodeCache(FragmentIDCodeCache cache) {
+		mIDCodeCache = cache;
+		}
+
+	public int getMaxSphereCount() {
+		return mMaxSphereCount;
+		}
+
+	/**
+	 * Prepares the enumerator for a new molecule and ensures ring helper arrays.
+	 * Atom list and fragment are only reallocated, if the molecule is larger than all
+	 * previous ones; the atom mask, if the atom count changes.
+	 * @param mol
+	 */
+	public void setMolecule(StereoMolecule mol) {
+		clearAtomMask();
+		mMol = mol;
+		mMol.ensureHelperArrays(Molecule.cHelperRings);
+
+		mHasCustomLabels = false;
+		for (int atom=0; atom<mol.getAllAtoms() && !mHasCustomLabels; atom++)
+			if (mol.getAtomCustomLabel(atom) != null)
+				mHasCustomLabels = true;
+		if (mAtomList == null || mAtomList.length < mol.getAtoms())
+			mAtomList = new int[mol.getAtoms()];
+
+		// copyMoleculeByAtoms() takes the atom count from the mask length
+		if (mAtomMask == null || mAtomMask.length != mol.getAtoms())
+			mAtomMask = new boolean[mol.getAtoms()];
+
+		if (mFragment == null
+		 || mFragment.getMaxAtoms() < mol.getAtoms()
+		 || mFragment.getMaxBonds() < mol.getBonds())
+			mFragment = new StereoMolecule(mol.getAtoms(), mol.getBonds());
+		else
+			mFragment.deleteMolecule();
+		}
+
+	public StereoMolecule getMolecule() {
+		return mMol;
+		}
+
+	/**
+	 * Starts a new enumeration of spheres around the given atom.
+	 * @param rootAtom
+	 */
+	public void setRootAtom(int rootAtom) {
+		clearAtomMask();
+		mAtomList[0] = rootAtom;
+		mSphere = -1;
+		}
+
+	private void clearAtomMask() {
+		for (int i=0; i<mMax; i++)
+			mAtomMask[mAtomList[i]] = false;
+		mMin = 0;
+		mMax = 0;
+		}
+
+	/**
+	 * Adds the next sphere of atoms. The first call after setRootAtom() creates sphere 0,
+	 * which consists of the root atom only. No further sphere is created, if the maximum
+	 * sphere count is reached or if the previous sphere already contains all atoms.
+	 * @return whether a next sphere was created
+	 */
+	public boolean nextSphere() {
+		if (mSphere+1 >= mMaxSphereCount || mMax >= mMol.getAtoms())
+			return false;
+
+		if (mMax == 0) {
+			mAtomMask[mAtomList[0]] = true;
+			mMax = 1;
+			}
+		else {
+			int newMax = mMax;
+			for (int i=mMin; i<mMax; i++) {
+				int atom = mAtomList[i];
+				for (int j=0; j<mMol.getConnAtoms(atom); j++) {
+					int connAtom = mMol.getConnAtom(atom, j);
+					if (!mAtomMask[connAtom] && isNeighbourIncluded(atom, connAtom)) {
+						mAtomMask[connAtom] = true;
+						mAtomList[newMax++] = connAtom;
+						}
+					}
+				}
+			mMin = mMax;
+			mMax = newMax;
+			}
+
+		mSphere++;
+		mIsFragmentValid = false;
+		mIDCode = null;
+		mSkeletonIDCode = null;
+		return true;
+		}
+
+	/**
+	 * Derived classes may override this to restrict sphere growth along certain bonds.
+	 * @param atom atom of the current outer sphere
+	 * @param connAtom neighbour of atom not yet part of the fragment
+	 * @return whether connAtom shall be added to the next sphere
+	 */
+	protected boolean isNeighbourIncluded(int atom, int connAtom) {
+		return true;
+		}
+
+	/**
+	 * @return current sphere index, 0 being the root atom only
+	 */
+	public int getSphere() {
+		return mSphere;
+		}
+
+	/**
+	 * @return number of atoms of the current fragment
+	 */
+	public int getAtomCount() {
+		return mMax;
+		}
+
+	/**
+	 * @return atoms of the current fragment in order of sphere; must not be modified
+	 */
+	public int[] getAtomList() {
+		return mAtomList;
+		}
+
+	/**
+	 * @return mask of the atoms of the current fragment; must not be modified
+	 */
+	public boolean[] getAtomMask() {
+		return mAtomMask;
+		}
+
+	/**
+	 * The fragment is shared with the idcode getters of this enumerator. Creating an idcode
+	 * may have changed it, because the Canonizer may set the chirality and convert double bonds
+	 * of unknown configuration into cross bonds. Callers must not modify it themselves.
+	 * @return fragment of all atoms within the current sphere
+	 */
+	public StereoMolecule getFragment() {
+		if (!mIsFragmentValid || mIsSkeleton) {
+			mMol.copyMoleculeByAtoms(mFragment, mAtomMask, true, null);
+			mIsFragmentValid = true;
+			mIsSkeleton = false;
+			}
+		return mFragment;
+		}
+
+	/**
+	 * @return idcode of the current fragment
+	 */
+	public String getIDCode() {
+		return getIDCode(0);
+		}
+
+	/**
+	 * If the molecule has no custom atom labels, then ENCODE_ATOM_CUSTOM_LABELS doesn't change
+	 * the idcode and is ignored, such that e.g. HOSE codes and HashedCFp share the same idcode.
+	 * @param canonizerMode mode passed to the Canonizer, e.g. Canonizer.ENCODE_ATOM_CUSTOM_LABELS
+	 * @return idcode of the current fragment
+	 */
+	public String getIDCode(int canonizerMode) {
+		if (!mHasCustomLabels)
+			canonizerMode &= ~Canonizer.ENCODE_ATOM_CUSTOM_LABELS;
+		if (mIDCode == null || mIDCodeMode != canonizerMode) {
+			mIDCode = createIDCode(getFragment(), canonizerMode);
+			mIDCodeMode = canonizerMode;
+			}
+		return mIDCode;
+		}
+
+	/**
+	 * @return idcode of the current fragment with all atoms converted to carbon
+	 */
+	public String getSkeletonIDCode() {
+		if (mSkeletonIDCode == null) {
+			StereoMolecule fragment = getFragment();
+			for (int atom=0; atom<fragment.getAllAtoms(); atom++)
+				fragment.setAtomicNo(atom, 6);
+			mIsSkeleton = true;
+			mSkeletonIDCode = createIDCode(fragment, 0);
+			}
+		return mSkeletonIDCode;
+		}
+
+	private String createIDCode(StereoMolecule fragment, int canonizerMode) {
+		return (mIDCodeCache == null) ? Canonizer.getThreadCanonizer(fragment, canonizerMode).getIDCode()
+									  : mIDCodeCache.getIDCode(fragment, canonizerMode);
+		}
+	}
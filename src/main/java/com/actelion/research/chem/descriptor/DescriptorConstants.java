@@ -66,6 +66,13 @@ public interface DescriptorConstants {
                                                false,
                                                true,
                                                true);	// for the creation of up/down bonds
+    public static final DescriptorInfo DESCRIPTOR_AtomEnvironments = 
+                            new DescriptorInfo("HashedAtomEnvironmentFingerprint1024",
+                                               "EnvFp",
+                                               DESCRIPTOR_TYPE_MOLECULE,
+                                               true,
+                                               true,
+                                               false);
     public static final DescriptorInfo DESCRIPTOR_OrganicFunctionalGroups = 
     										   new DescriptorInfo("FunctionalGroupTreeCount1024",
     										   "OrgFunctions",
@@ -176,6 +183,7 @@ public interface DescriptorConstants {
                                                 DESCRIPTOR_PFP512,
                                                 DESCRIPTOR_HashedCFp,
                                                 DESCRIPTOR_SkeletonSpheres,
+                                                DESCRIPTOR_AtomEnvironments,
                                                 DESCRIPTOR_CenteredSkeletonFragments,
                                                 DESCRIPTOR_FULL_FRAGMENT_SET,
                                                 DESCRIPTOR_MAX_COMMON_SUBSTRUCT,
@@ -0,0 +1,174 @@
+/*
+* Copyright (c) 1997 - 2016
+* Actelion Pharmaceuticals Ltd.
+* Gewerbestrasse 16
+* CH-4123 Allschwil, Switzerland
+*
+* All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without
+* modification, are permitted provided that the following conditions are met:
+*
+* 1. Redistributions of source code must retain the above copyright notice, this
+*    list of conditions and the following disclaimer.
+* 2. Redistributions in binary form must reproduce the above copyright notice,
+*    this list of conditions and the following disclaimer in the documentation
+*    and/or other materials provided with the distribution.
+* 3. Neither the name of the the copyright holder nor the
+*    names of its contributors may be used to endorse or promote products
+*    derived from this software without specific prior written permission.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+* ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+* WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+* DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+* ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+* (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+* LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+* ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+* (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+* SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*
+*/
+
+package com.actelion.research.chem.descriptor;
+
+import com.actelion.research.chem.Molecule;
+import com.actelion.research.chem.StereoMolecule;
+
+/**
+ * Binary fingerprint of circular atom environments in the spirit of Morgan's algorithm.
+ * In contrast to DescriptorHandlerHashedCFp, which canonicalizes every sphere fragment
+ * and hashes its idcode, this descriptor derives an integer identifier for every atom from
+ * atomic number, charge, mass, neighbour and hydrogen count and ring and aromaticity flags.
+ * Then it repeatedly combines every atom's identifier with the bond orders and identifiers
+ * of its neighbours. The identifiers of all atoms of all iterations are hashed into 1024 bits.
+ * No fragments, idcodes or strings are built, which makes this descriptor an order of magnitude
+ * faster to calculate. Stereo features are not considered. Descriptors of this type are
+ * not compatible with the HashedCFp ones.
+ */
+public class DescriptorHandlerAtomEnvironments extends AbstractDescriptorHandlerFP<StereoMolecule> {
+    private static DescriptorHandlerAtomEnvironments sDefaultInstance;
+
+    static final int SPHERE_COUNT = 5;
+    private static final int HASH_BITS = 10;
+    private static final int HASH_INIT = 13;
+    static final int DESCRIPTOR_SIZE = (1 << HASH_BITS);
+
+    public static DescriptorHandlerAtomEnvironments getDefaultInstance() {
+        synchronized(DescriptorHandlerAtomEnvironments.class) {
+            if (sDefaultInstance == null) {
+                sDefaultInstance = new DescriptorHandlerAtomEnvironments();
+                }
+            }
+        return sDefaultInstance;
+        }
+
+    public DescriptorInfo getInfo() {
+        return DescriptorConstants.DESCRIPTOR_AtomEnvironments;
+        }
+
+    public String getVersion() {
+        return "1.0";
+        }
+
+    public int[] createDescriptor(StereoMolecule mol) {
+        if (mol == null)
+            return null;
+
+        mol.ensureHelperArrays(Molecule.cHelperRings);
+
+        int[] descriptor = new int[DESCRIPTOR_SIZE / Integer.SIZE];
+        int atoms = mol.getAtoms();
+        if (atoms == 0)
+            return descriptor;
+
+        int[] identifier = new int[atoms];
+        int[] newIdentifier = new int[atoms];
+        int[] neighbourHash = new int[16];
+
+        for (int atom=0; atom<atoms; atom++) {
+            identifier[atom] = getAtomInvariant(mol, atom);
+            setBit(descriptor, identifier[atom]);
+            }
+
+        for (int sphere=1; sphere<SPHERE_COUNT; sphere++) {
+            for (int atom=0; atom<atoms; atom++) {
+                int connAtoms = mol.getConnAtoms(atom);
+                if (neighbourHash.length < connAtoms)
+                    neighbourHash = new int[connAtoms];
+
+                // neighbours are combined as sorted list to be independent of the atom order
+                for (int i=0; i<connAtoms; i++) {
+                    int h = mix(getBondInvariant(mol, mol.getConnBond(atom, i)), identifier[mol.getConnAtom(atom, i)]);
+                    int j = i;
+                    while (j > 0 && neighbourHash[j-1] > h) {
+                        neighbourHash[j] = neighbourHash[j-1];
+                        j--;
+                        }
+                    neighbourHash[j] = h;
+                    }
+
+                int h = mix(sphere, identifier[atom]);
+                for (int i=0; i<connAtoms; i++)
+                    h = mix(h, neighbourHash[i]);
+                newIdentifier[atom] = finalMix(h, connAtoms);
+                setBit(descriptor, newIdentifier[atom]);
+                }
+
+            int[] temp = identifier;
+            identifier = newIdentifier;
+            newIdentifier = temp;
+            }
+
+        return descriptor;
+        }
+
+    private static int getAtomInvariant(StereoMolecule mol, int atom) {
+        int h = mix(HASH_INIT, mol.getAtomicNo(atom));
+        h = mix(h, mol.getAtomCharge(atom));
+        h = mix(h, mol.getAtomMass(atom));
+        h = mix(h, mol.getConnAtoms(atom));
+        h = mix(h, mol.getAllHydrogens(atom));
+        h = mix(h, (mol.isRingAtom(atom) ? 1 : 0) + (mol.isAromaticAtom(atom) ? 2 : 0));
+        return finalMix(h, 6);
+        }
+
+    private static int getBondInvariant(StereoMolecule mol, int bond) {
+        return mol.isDelocalizedBond(bond) ? 0 : mol.getBondOrder(bond);
+        }
+
+    private static void setBit(int[] descriptor, int identifier) {
+        int bit = identifier & (DESCRIPTOR_SIZE - 1);
+        descriptor[bit >>> 5] |= (1 << (31 - (bit & 31)));
+        }
+
+    /**
+     * One MurmurHash3 mixing step combining value into hash h.
+     */
+    private static int mix(int h, int value) {
+        value *= 0xcc9e2d51;
+        value = Integer.rotateLeft(value, 15);
+        value *= 0x1b873593;
+        h ^= value;
+        h = Integer.rotateLeft(h, 13);
+        return h * 5 + 0xe6546b64;
+        }
+
+    /**
+     * MurmurHash3 finalization, which distributes all input bits over the low bits used for the bit index.
+     */
+    private static int finalMix(int h, int length) {
+        h ^= length;
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+        }
+
+    public DescriptorHandler<int[], StereoMolecule> getThreadSafeCopy() {
+        return this;
+        }
+    }
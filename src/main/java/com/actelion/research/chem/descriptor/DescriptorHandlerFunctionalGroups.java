@@ -42,6 +42,8 @@ import java.util.TreeSet;
 public class DescriptorHandlerFunctionalGroups implements DescriptorHandler<int[][], StereoMolecule> {
     private static final double CORRECTION_FACTOR = 0.7;
 
+    private static final int MAX_INSTANCES = 1024;	// Match order of larger counts is ambiguous
+
     private static final int[][] FAILED_OBJECT = { { 1, 0 } };
 
     private static DescriptorHandlerFunctionalGroups sDefaultInstance;
@@ -99,6 +101,30 @@ public class DescriptorHandlerFunctionalGroups implements DescriptorHandler<int[
         }
 
     public float getSimilarity(int[][] dl1, int[][] dl2) {
+        return getSimilarity(dl1, dl2, new MatchBuffer());
+        }
+
+    /**
+     * Calculates the similarities of one query descriptor to many descriptors.
+     * This is faster than repeated getSimilarity() calls, because working buffers
+     * are allocated once only.
+     * @param query
+     * @param descriptor
+     * @param similarity receives the similarity to every descriptor; must be at least as long as descriptor
+     */
+    public void getSimilarities(int[][] query, int[][][] descriptor, float[] similarity) {
+        MatchBuffer buffer = new MatchBuffer();
+        for (int i=0; i<descriptor.length; i++)
+            similarity[i] = getSimilarity(query, descriptor[i], buffer);
+        }
+
+    /**
+     * Functional group instances of both descriptors are matched greedily in order of
+     * increasing equivalence level and, within the same level, by increasing smaller and then
+     * larger instance index. If instance a of dl1 and b of dl2 as well as b of dl1 and a of dl2
+     * match with the same level, only the first of these two matches is considered.
+     */
+    private float getSimilarity(int[][] dl1, int[][] dl2, MatchBuffer buffer) {
         if (dl1 == null || dl2 == null)
             return Float.NaN;
 
@@ -107,6 +133,97 @@ public class DescriptorHandlerFunctionalGroups implements DescriptorHandler<int[
         if (dl1.length == 0 || dl2.length == 0)
         	return 0f;
 
+        int count1 = getInstanceCount(dl1);
+        int count2 = getInstanceCount(dl2);
+        if (count1 < 0 || count2 < 0 || Math.max(count1, count2) > MAX_INSTANCES)
+            return getSimilarityFromMatchSet(dl1, dl2);
+
+        // Encode matches as (level, smaller instance, larger instance, direction) in one int.
+        // Sorting these keys reproduces the original match order and direction 0 (instance of dl1
+        // is the smaller one) sorts first, as it would have been inserted into the set first.
+        int matchCount = 0;
+        int[] key = buffer.key;
+        int i1 = 0;
+        for (int[] d1:dl1) {
+            int i2 = 0;
+            for (int[] d2:dl2) {
+                int matchLevel = FunctionalGroupClassifier.getFunctionalGroupEquivalenceLevel(d1[0], d2[0]);
+                if (matchLevel != -1) {
+                    if (key.length < matchCount + d1[1] * d2[1]) {
+                        key = Arrays.copyOf(key, Math.max(2*key.length, matchCount + d1[1] * d2[1]));
+                        buffer.key = key;
+                        }
+                    for (int fg1=i1; fg1<i1+d1[1]; fg1++)
+                        for (int fg2=i2; fg2<i2+d2[1]; fg2++)
+                            key[matchCount++] = (matchLevel << 21)
+                                              + ((fg1 <= fg2) ? (fg1 << 11) + (fg2 << 1) : (fg2 << 11) + (fg1 << 1) + 1);
+                    }
+                i2 += d2[1];
+                }
+            i1 += d1[1];
+            }
+
+        if (matchCount == 0)
+            return normalizeValue(0f / (count1 + count2));
+
+        if (matchCount > 64) {
+            Arrays.sort(key, 0, matchCount);
+            }
+        else {	// for few keys insertion sort is considerably faster than Arrays.sort()
+            for (int i=1; i<matchCount; i++) {
+                int k = key[i];
+                int j = i;
+                while (j > 0 && key[j-1] > k) {
+                    key[j] = key[j-1];
+                    j--;
+                    }
+                key[j] = k;
+                }
+            }
+
+        buffer.ensureCapacity(Math.max(count1, count2));
+        boolean[] used1 = buffer.used1;
+        boolean[] used2 = buffer.used2;
+        Arrays.fill(used1, 0, count1, false);
+        Arrays.fill(used2, 0, count2, false);
+
+        float total = count1 + count2;
+        float matching = 0;
+        for (int i=0; i<matchCount; i++) {
+            if (i != 0 && (key[i] >> 1) == (key[i-1] >> 1))
+                continue;	// reverse direction of the same instance pair with the same level
+
+            int low = (key[i] >> 11) & 0x3FF;
+            int high = (key[i] >> 1) & 0x3FF;
+            int fg1 = ((key[i] & 1) == 0) ? low : high;
+            int fg2 = ((key[i] & 1) == 0) ? high : low;
+            if (!used1[fg1] && !used2[fg2]) {
+                float m = 1.0f - 0.1f * (key[i] >> 21);
+                matching += m;
+                total -= m;
+                used1[fg1] = true;
+                used2[fg2] = true;
+                }
+            }
+
+        return normalizeValue(matching/total);
+        }
+
+    private static int getInstanceCount(int[][] dl) {
+        int count = 0;
+        for (int[] d:dl) {
+            if (d[1] < 0)
+                return -1;
+            count += d[1];
+            }
+        return count;
+        }
+
+    /**
+     * Original implementation, which is used for descriptors with so many instances
+     * that the match order cannot be reproduced from instance indexes anymore.
+     */
+    private float getSimilarityFromMatchSet(int[][] dl1, int[][] dl2) {
         TreeSet<Match> matchList = new TreeSet<Match>();
         int i1 = 0;
         int i2 = -1;
@@ -153,6 +270,18 @@ public class DescriptorHandlerFunctionalGroups implements DescriptorHandler<int[
 		return new DescriptorHandlerFunctionalGroups();
     	}
 
+    private static class MatchBuffer {
+    	int[] key = new int[16];
+    	boolean[] used1,used2;
+
+    	void ensureCapacity(int instanceCount) {
+    		if (used1 == null || used1.length < instanceCount) {
+    			used1 = new boolean[instanceCount];
+    			used2 = new boolean[instanceCount];
+    			}
+    		}
+    	}
+
     private class Match implements Comparable<Match> {
     	int fg1,fg2,level;
 
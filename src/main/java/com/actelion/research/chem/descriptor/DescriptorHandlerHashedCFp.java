@@ -33,24 +33,20 @@
 
 package com.actelion.research.chem.descriptor;
 
-import com.actelion.research.chem.Canonizer;
-import com.actelion.research.chem.Molecule;
 import com.actelion.research.chem.SSSearcherWithIndex;
 import com.actelion.research.chem.StereoMolecule;
 import com.actelion.research.util.BurtleHasher;
 import com.actelion.research.util.datamodel.IntVec;
 
-import java.util.Arrays;
-
 public class DescriptorHandlerHashedCFp extends AbstractDescriptorHandlerFP<StereoMolecule> {
     private static final double CORRECTION_FACTOR = 0.6;
 
     private static DescriptorHandlerHashedCFp sDefaultInstance;
     
-    private static final int SPHERE_COUNT = 5;
+    static final int SPHERE_COUNT = 5;
     private static final int HASH_BITS = 10;
     private static final int HASH_INIT = 13;
-    private static final int DESCRIPTOR_SIZE = (1 << HASH_BITS);
+    static final int DESCRIPTOR_SIZE = (1 << HASH_BITS);
 
     public static DescriptorHandlerHashedCFp getDefaultInstance() {
     	synchronized(DescriptorHandlerHashedCFp.class) {
@@ -79,58 +75,36 @@ public class DescriptorHandlerHashedCFp extends AbstractDescriptorHandlerFP<Ster
         if (mol ==null)
             return null;
 
-        mol.ensureHelperArrays(Molecule.cHelperRings);
-        StereoMolecule fragment = new StereoMolecule(mol.getAtoms(), mol.getBonds());
+        AtomSphereEnumerator enumerator = new AtomSphereEnumerator(SPHERE_COUNT);
+        enumerator.setIDCodeCache(FragmentIDCodeCache.getDefaultInstance());
+        enumerator.setMolecule(mol);
 
-        // byte[] descriptor = new byte[DESCRIPTOR_SIZE];
-        int len = DESCRIPTOR_SIZE / Integer.SIZE;
-        IntVec iv = new IntVec(len); 
+        IntVec iv = new IntVec(DESCRIPTOR_SIZE / Integer.SIZE);
 
-		int[] atomList = new int[mol.getAtoms()];
-        boolean[] atomMask = new boolean[mol.getAtoms()];
         for (int rootAtom=0; rootAtom<mol.getAtoms(); rootAtom++) {
-            if (rootAtom != 0)
-                Arrays.fill(atomMask, false);
-
-            int min = 0;
-            int max = 0;
-            for (int sphere=0; sphere<SPHERE_COUNT && max<mol.getAtoms(); sphere++) {
-                if (max == 0) {
-                    atomList[0] = rootAtom;
-                    atomMask[rootAtom] = true;
-                    max = 1;
-                    }
-                else {
-                    int newMax = max;
-                    for (int i=min; i<max; i++) {
-                        int atom = atomList[i];
-                        for (int j=0; j<mol.getConnAtoms(atom); j++) {
-                            int connAtom = mol.getConnAtom(atom, j);
-                            if (!atomMask[connAtom]) {
-                                atomMask[connAtom] = true;
-                                atomList[newMax++] = connAtom;
-                                }
-                            }
-                        }
-                    min = max;
-                    max = newMax;
-                    }
-
-                mol.copyMoleculeByAtoms(fragment, atomMask, true, null);
-
-                // take fragment as it is
-                String idcode = new Canonizer(fragment).getIDCode();
-                int h = BurtleHasher.hashlittle(idcode, HASH_INIT);
-                h = (h & BurtleHasher.hashmask(HASH_BITS));
-                iv.setBit(h);
-
-//System.out.println("atom:"+rootAtom+"\tsphere:"+sphere+"\thash:"+h+"\t"+idcode);
-                }
+            enumerator.setRootAtom(rootAtom);
+            while (enumerator.nextSphere())
+                addSphere(enumerator, iv);
             }
 
         return iv.get();
         }
 
+    /**
+     * Adds the current sphere of the enumerator to a descriptor under construction.
+     * This allows creating this descriptor together with others in one pass.
+     * @param enumerator positioned at a sphere
+     * @param iv descriptor bits
+     */
+    static void addSphere(AtomSphereEnumerator enumerator, IntVec iv) {
+        if (enumerator.getSphere() < SPHERE_COUNT) {
+            // take fragment as it is
+            int h = BurtleHasher.hashlittle(enumerator.getIDCode(), HASH_INIT);
+            h = (h & BurtleHasher.hashmask(HASH_BITS));
+            iv.setBit(h);
+            }
+        }
+
     public float getSimilarity(int[] o1, int[] o2) {
         return o1 == null
             || o2 == null
@@ -34,7 +34,7 @@
 package com.actelion.research.chem.descriptor;
 
 import com.actelion.research.chem.StereoMolecule;
-import com.actelion.research.chem.FingerPrintGenerator;
+import com.actelion.research.chem.PathFingerprintGenerator;
 
 public class DescriptorHandlerPFP512 extends AbstractDescriptorHandlerFP<StereoMolecule>
 		implements DescriptorConstants {
@@ -63,21 +63,7 @@ public class DescriptorHandlerPFP512 extends AbstractDescriptorHandlerFP<StereoM
 		if (mol ==null)
 			return null;
 
-		java.util.BitSet bitset = new FingerPrintGenerator().getFingerprint(mol);
-
-		if (bitset == null)
-			return FAILED_OBJECT;
-
-		int[] fp = new int[16];
-		int mask = 1;
-		for (int i = 0; i < 32; i++) {
-			for (int j = 0; j < 16; j++)
-				if (bitset.get(32 * i + j))
-					fp[j] += mask;
-			mask <<= 1;
-		}
-
-		return fp;
+		return new PathFingerprintGenerator(true).createFingerprint(mol);
 	}
 
 	public DescriptorHandler<int[], StereoMolecule> getThreadSafeCopy() {
@@ -33,23 +33,21 @@
 
 package com.actelion.research.chem.descriptor;
 
-import com.actelion.research.chem.Canonizer;
-import com.actelion.research.chem.Molecule;
 import com.actelion.research.chem.StereoMolecule;
 import com.actelion.research.util.BurtleHasher;
 
 import java.util.Arrays;
 
 public class DescriptorHandlerSkeletonSpheres implements DescriptorHandler<byte[], StereoMolecule> {
-    private static final double CORRECTION_FACTOR = 0.7;
+    static final double CORRECTION_FACTOR = 0.7;
 
     private static final byte[] FAILED_OBJECT = new byte[0];
-    private static final int MAX_SPHERE_COUNT = 5;
-    private static final int EXACT_SPHERE_COUNT = 4;
-    private static final int SKELETON_SPHERE_COUNT = 5;
+    static final int MAX_SPHERE_COUNT = 5;
+    static final int EXACT_SPHERE_COUNT = 4;
+    static final int SKELETON_SPHERE_COUNT = 5;
     private static final int HASH_BITS = 10;
     private static final int HASH_INIT = 13;
-    private static final int DESCRIPTOR_SIZE = (1 << HASH_BITS);
+    static final int DESCRIPTOR_SIZE = (1 << HASH_BITS);
 
     private static DescriptorHandlerSkeletonSpheres sDefaultInstance;
 
@@ -76,72 +74,46 @@ public class DescriptorHandlerSkeletonSpheres implements DescriptorHandler<byte[
 	    if (mol == null)
 		    return null;
 
-        mol.ensureHelperArrays(Molecule.cHelperRings);
-        StereoMolecule fragment = new StereoMolecule(mol.getAtoms(), mol.getBonds());
+        AtomSphereEnumerator enumerator = new AtomSphereEnumerator(MAX_SPHERE_COUNT);
+        enumerator.setIDCodeCache(FragmentIDCodeCache.getDefaultInstance());
+        enumerator.setMolecule(mol);
 
 		byte[] descriptor = new byte[DESCRIPTOR_SIZE];
 
-//System.out.println("descriptor skeleton spheres:");
-        int[] atomList = new int[mol.getAtoms()];
-        boolean[] atomMask = new boolean[mol.getAtoms()];
         for (int rootAtom=0; rootAtom<mol.getAtoms(); rootAtom++) {
-            if (rootAtom != 0)
-                Arrays.fill(atomMask, false);
-
-            int min = 0;
-            int max = 0;
-
-            for (int sphere=0; sphere<MAX_SPHERE_COUNT && max<mol.getAtoms(); sphere++) {
-            	if (max == 0) {
-                    atomList[0] = rootAtom;
-                    atomMask[rootAtom] = true;
-                    max = 1;
-            		}
-            	else {
-	                int newMax = max;
-	                for (int i=min; i<max; i++) {
-	                    int atom = atomList[i];
-	                    for (int j=0; j<mol.getConnAtoms(atom); j++) {
-	                        int connAtom = mol.getConnAtom(atom, j);
-	                        if (!atomMask[connAtom]) {
-	                            atomMask[connAtom] = true;
-	                            atomList[newMax++] = connAtom;
-	                            }
-	                        }
-	                    }
-	                min = max;
-	                max = newMax;
-            		}
-
-                mol.copyMoleculeByAtoms(fragment, atomMask, true, null);
-
-                // take fragment as it is
-                if (sphere < EXACT_SPHERE_COUNT) {
-                    String idcode = new Canonizer(fragment).getIDCode();
-                    int h = BurtleHasher.hashlittle(idcode, HASH_INIT);
-                    h = (h & BurtleHasher.hashmask(HASH_BITS));
-                    if (descriptor[h] < DescriptorEncoder.MAX_COUNT_VALUE)
-                    	descriptor[h]++;
-//System.out.println("atom:"+rootAtom+"\tfragment\tradius:"+sphere+"\thash:"+h+"\t"+idcode);
-                    }
-
-                // take atomic no reduced fragment skeleton also
-                if (sphere < SKELETON_SPHERE_COUNT) {
-                    for (int atom=0; atom<fragment.getAllAtoms(); atom++)
-                        fragment.setAtomicNo(atom, 6);
-                    String idcode = new Canonizer(fragment).getIDCode();
-                    int h = BurtleHasher.hashlittle(idcode, HASH_INIT);
-                    h = (h & BurtleHasher.hashmask(HASH_BITS));
-                    if (descriptor[h] < DescriptorEncoder.MAX_COUNT_VALUE)
-                    	descriptor[h]++;
-//System.out.println("atom:"+rootAtom+"\tskeleton\tradius:"+sphere+"\thash:"+h+"\t"+idcode);
-                    }
-                }
+            enumerator.setRootAtom(rootAtom);
+            while (enumerator.nextSphere())
+                addSphere(enumerator, descriptor);
             }
 
         return descriptor;
         }
 
+    /**
+     * Adds the current sphere of the enumerator to a descriptor under construction.
+     * This allows creating this descriptor together with others in one pass.
+     * @param enumerator positioned at a sphere
+     * @param descriptor
+     */
+    static void addSphere(AtomSphereEnumerator enumerator, byte[] descriptor) {
+        int sphere = enumerator.getSphere();
+
+        // take fragment as it is
+        if (sphere < EXACT_SPHERE_COUNT)
+            incrementHashCount(descriptor, enumerator.getIDCode());
+
+        // take atomic no reduced fragment skeleton also
+        if (sphere < SKELETON_SPHERE_COUNT)
+            incrementHashCount(descriptor, enumerator.getSkeletonIDCode());
+        }
+
+    private static void incrementHashCount(byte[] descriptor, String idcode) {
+        int h = BurtleHasher.hashlittle(idcode, HASH_INIT);
+        h = (h & BurtleHasher.hashmask(HASH_BITS));
+        if (descriptor[h] < DescriptorEncoder.MAX_COUNT_VALUE)
+            descriptor[h]++;
+        }
+
     public byte[] decode(String s) {
         return s == null ?               null
              : s.equals(FAILED_STRING) ? FAILED_OBJECT
@@ -199,7 +171,7 @@ if (((double)matching/(double)total) > 0.8) {
         return normalizeValue((double)matching/(double)total);
         }
 
-	private float normalizeValue(double value) {
+	static float normalizeValue(double value) {
 		return value <= 0.0f ? 0.0f
 			 : value >= 1.0f ? 1.0f
 			 : (float)(1.0-Math.pow(1-Math.pow(value, CORRECTION_FACTOR) ,1.0/CORRECTION_FACTOR));
@@ -57,6 +57,8 @@ public class DescriptorHandlerStandard2DFactory implements DescriptorConstants,D
 			return DescriptorHandlerHashedCFp.getDefaultInstance();
 		if (DESCRIPTOR_SkeletonSpheres.shortName.equals(shortName))
 			return DescriptorHandlerSkeletonSpheres.getDefaultInstance();
+		if (DESCRIPTOR_AtomEnvironments.shortName.equals(shortName))
+			return DescriptorHandlerAtomEnvironments.getDefaultInstance();
 		if (DESCRIPTOR_OrganicFunctionalGroups.shortName.equals(shortName))
 			return DescriptorHandlerFunctionalGroups.getDefaultInstance();
 
@@ -77,6 +79,8 @@ public class DescriptorHandlerStandard2DFactory implements DescriptorConstants,D
 			return new DescriptorHandlerHashedCFp();
 		if (DESCRIPTOR_SkeletonSpheres.shortName.equals(shortName))
 			return new DescriptorHandlerSkeletonSpheres();
+		if (DESCRIPTOR_AtomEnvironments.shortName.equals(shortName))
+			return new DescriptorHandlerAtomEnvironments();
 		if (DESCRIPTOR_OrganicFunctionalGroups.shortName.equals(shortName))
 			return new DescriptorHandlerFunctionalGroups();
 
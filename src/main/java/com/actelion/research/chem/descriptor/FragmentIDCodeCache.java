@@ -0,0 +1,330 @@
+/*
+* Copyright (c) 1997 - 2016
+* Actelion Pharmaceuticals Ltd.
+* Gewerbestrasse 16
+* CH-4123 Allschwil, Switzerland
+*
+* All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without
+* modification, are permitted provided that the following conditions are met:
+*
+* 1. Redistributions of source code must retain the above copyright notice, this
+*    list of conditions and the following disclaimer.
+* 2. Redistributions in binary form must reproduce the above copyright notice,
+*    this list of conditions and the following disclaimer in the documentation
+*    and/or other materials provided with the distribution.
+* 3. Neither the name of the the copyright holder nor the
+*    names of its contributors may be used to endorse or promote products
+*    derived from this software without specific prior written permission.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+* ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+* WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+* DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+* ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+* (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+* LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+* ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+* (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+* SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*
+*/
+
+package com.actelion.research.chem.descriptor;
+
+import com.actelion.research.chem.Canonizer;
+import com.actelion.research.chem.Molecule;
+import com.actelion.research.chem.StereoMolecule;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * FragmentIDCodeCache is a bounded, thread-safe LRU cache of fragment idcodes, which saves
+ * repeated canonicalization of the same small fragments, e.g. when creating sphere based
+ * descriptors. The cache key serializes those fragment properties, which the Canonizer
+ * reads when creating an idcode, i.e. atoms, bonds, their query features, parities, ESR
+ * assignments, selection, mapping numbers, explicitly unknown configurations and, if the
+ * fragment may contain perceivable stereo features, also all atom coordinates. Properties,
+ * which the Canonizer derives from these, e.g. rings or aromaticity, are not part of the key.
+ * Keys are compared completely. Fragments, for which the Canonizer flags stereo problems,
+ * are not cached, because these flags cannot be restored on a cache hit.
+ * Since keys reflect the atom order, the same fragment may occupy multiple entries.
+ * The cache is divided into independently locked segments to reduce contention.
+ * The descriptor handlers of HashedCFp and SkeletonSpheres, SphereDescriptorGenerator and
+ * HoseCodeCreator use the default instance. Other AtomSphereEnumerators use a cache only,
+ * if one is passed with setIDCodeCache().
+ */
+public class FragmentIDCodeCache {
+	private static final int DEFAULT_CAPACITY = 65536;
+	private static final int SEGMENT_COUNT = 16;
+
+	private static volatile FragmentIDCodeCache sDefaultInstance;
+
+	private Segment[] mSegment;
+	private AtomicLong mHitCount,mMissCount;
+
+	/**
+	 * @return cache shared by the sphere based descriptor handlers, SphereDescriptorGenerator and HoseCodeCreator
+	 */
+	public static FragmentIDCodeCache getDefaultInstance() {
+		if (sDefaultInstance == null) {
+			synchronized(FragmentIDCodeCache.class) {
+				if (sDefaultInstance == null)
+					sDefaultInstance = new FragmentIDCodeCache(DEFAULT_CAPACITY);
+				}
+			}
+		return sDefaultInstance;
+		}
+
+	/**
+	 * @param capacity maximum number of cached idcodes
+	 */
+	public FragmentIDCodeCache(int capacity) {
+		int segmentCapacity = Math.max(1, capacity / SEGMENT_COUNT);
+		mSegment = new Segment[SEGMENT_COUNT];
+		for (int i=0; i<SEGMENT_COUNT; i++)
+			mSegment[i] = new Segment(segmentCapacity);
+		mHitCount = new AtomicLong();
+		mMissCount = new AtomicLong();
+		}
+
+	/**
+	 * Returns the idcode of the fragment, either from the cache or by creating it with
+	 * a new Canonizer. Since the Canonizer may change bond types and the chirality of the
+	 * fragment, these changes are cached as well and are applied again on cache hits.
+	 * If the Canonizer flags stereo problems, then the idcode is not cached.
+	 * @param fragment
+	 * @param canonizerMode mode passed to the Canonizer
+	 * @return idcode as from new Canonizer(fragment, canonizerMode).getIDCode()
+	 */
+	public String getIDCode(StereoMolecule fragment, int canonizerMode) {
+		Key key = new Key(createKey(fragment, canonizerMode));
+		Segment segment = mSegment[(key.hash >>> 16) & (SEGMENT_COUNT - 1)];
+		CachedIDCode entry;
+		synchronized (segment) {
+			entry = segment.get(key);
+			}
+		if (entry != null) {
+			mHitCount.incrementAndGet();
+			for (int i=0; i<entry.changedBond.length; i+=2)
+				fragment.setBondType(entry.changedBond[i], entry.changedBond[i+1]);
+			fragment.setChirality(entry.chirality);
+			return entry.idcode;
+			}
+
+		mMissCount.incrementAndGet();
+		int[] bondType = new int[fragment.getAllBonds()];
+		for (int bond=0; bond<bondType.length; bond++)
+			bondType[bond] = fragment.getBondType(bond);
+
+		String idcode = Canonizer.getThreadCanonizer(fragment, canonizerMode).getIDCode();
+
+		for (int atom=0; atom<fragment.getAllAtoms(); atom++)
+			if (fragment.getStereoProblem(atom))
+				return idcode;
+
+		int changeCount = 0;
+		for (int bond=0; bond<bondType.length; bond++)
+			if (fragment.getBondType(bond) != bondType[bond])
+				changeCount++;
+		int[] changedBond = new int[2*changeCount];
+		changeCount = 0;
+		for (int bond=0; bond<bondType.length; bond++) {
+			if (fragment.getBondType(bond) != bondType[bond]) {
+				changedBond[changeCount++] = bond;
+				changedBond[changeCount++] = fragment.getBondType(bond);
+				}
+			}
+
+		synchronized (segment) {
+			segment.put(key, new CachedIDCode(idcode, changedBond, fragment.getChirality()));
+			}
+		return idcode;
+		}
+
+	public long getHitCount() {
+		return mHitCount.get();
+		}
+
+	public long getMissCount() {
+		return mMissCount.get();
+		}
+
+	/**
+	 * @return fraction of getIDCode() calls served from the cache
+	 */
+	public double getHitRate() {
+		long hits = mHitCount.get();
+		long total = hits + mMissCount.get();
+		return (total == 0) ? 0.0 : (double)hits / total;
+		}
+
+	/**
+	 * @return number of currently cached idcodes
+	 */
+	public int getSize() {
+		int size = 0;
+		for (Segment segment:mSegment)
+			synchronized (segment) {
+				size += segment.size();
+				}
+		return size;
+		}
+
+	/**
+	 * Removes all cached idcodes and resets hit and miss counts.
+	 */
+	public void clear() {
+		for (Segment segment:mSegment)
+			synchronized (segment) {
+				segment.clear();
+				}
+		mHitCount.set(0);
+		mMissCount.set(0);
+		}
+
+	private static int[] createKey(StereoMolecule fragment, int canonizerMode) {
+		fragment.ensureHelperArrays(Molecule.cHelperRings);
+
+		int atoms = fragment.getAllAtoms();
+		int bonds = fragment.getAllBonds();
+		boolean needsCoordinates = false;
+		for (int atom=0; atom<atoms && !needsCoordinates; atom++)
+			if (fragment.getAtomZ(atom) != 0.0)
+				needsCoordinates = true;
+		for (int bond=0; bond<bonds && !needsCoordinates; bond++)
+			if (isStereoRelevant(fragment, bond))
+				needsCoordinates = true;
+
+		int size = 4 + 12 * atoms + 7 * bonds + (needsCoordinates ? 6 * atoms : 0);
+		for (int atom=0; atom<atoms; atom++) {
+			if (fragment.getAtomList(atom) != null)
+				size += fragment.getAtomList(atom).length;
+			if (fragment.getAtomCustomLabelBytes(atom) != null)
+				size += fragment.getAtomCustomLabelBytes(atom).length;
+			}
+
+		int[] key = new int[size];
+		int index = 0;
+		key[index++] = canonizerMode;
+		key[index++] = (fragment.isFragment() ? 1 : 0) + (needsCoordinates ? 2 : 0);
+		key[index++] = atoms;
+		key[index++] = bonds;
+		for (int atom=0; atom<atoms; atom++) {
+			key[index++] = fragment.getAtomicNo(atom);
+			key[index++] = fragment.getAtomCharge(atom);
+			key[index++] = fragment.getAtomMass(atom);
+			key[index++] = fragment.getAtomRadical(atom);
+			key[index++] = fragment.getAtomAbnormalValence(atom);
+			key[index++] = fragment.getAtomQueryFeatures(atom);
+			key[index++] = fragment.getAtomParity(atom) + (fragment.isAtomParityPseudo(atom) ? 4 : 0);
+			key[index++] = (fragment.getAtomESRType(atom) << 8) + fragment.getAtomESRGroup(atom);
+			key[index++] = (fragment.isSelectedAtom(atom) ? 1 : 0)
+						 + (fragment.isAtomConfigurationUnknown(atom) ? 2 : 0)
+						 + (fragment.isAutoMappedAtom(atom) ? 4 : 0);
+			key[index++] = fragment.getAtomMapNo(atom);
+			int[] atomList = fragment.getAtomList(atom);
+			key[index++] = (atomList == null) ? -1 : atomList.length;
+			if (atomList != null)
+				for (int atomicNo:atomList)
+					key[index++] = atomicNo;
+			byte[] label = fragment.getAtomCustomLabelBytes(atom);
+			key[index++] = (label == null) ? -1 : label.length;
+			if (label != null)
+				for (byte b:label)
+					key[index++] = b;
+			}
+		for (int bond=0; bond<bonds; bond++) {
+			key[index++] = fragment.getBondAtom(0, bond);
+			key[index++] = fragment.getBondAtom(1, bond);
+			key[index++] = fragment.getBondType(bond);
+			key[index++] = fragment.getBondQueryFeatures(bond);
+			key[index++] = fragment.getBondParity(bond);
+			key[index++] = (fragment.getBondESRType(bond) << 8) + fragment.getBondESRGroup(bond);
+			key[index++] = fragment.isBondParityUnknownOrNone(bond) ? 1 : 0;
+			}
+		if (needsCoordinates) {
+			for (int atom=0; atom<atoms; atom++) {
+				long x = Double.doubleToLongBits(fragment.getAtomX(atom));
+				long y = Double.doubleToLongBits(fragment.getAtomY(atom));
+				long z = Double.doubleToLongBits(fragment.getAtomZ(atom));
+				key[index++] = (int)x;
+				key[index++] = (int)(x >>> 32);
+				key[index++] = (int)y;
+				key[index++] = (int)(y >>> 32);
+				key[index++] = (int)z;
+				key[index++] = (int)(z >>> 32);
+				}
+			}
+		return key;
+		}
+
+	/**
+	 * Without z-coordinates the Canonizer perceives stereo features from coordinates only
+	 * for stereo bonds and for double bonds with further neighbours on both ends.
+	 */
+	private static boolean isStereoRelevant(StereoMolecule fragment, int bond) {
+		int bondType = fragment.getBondType(bond);
+		if (fragment.isStereoBond(bond) || bondType == Molecule.cBondTypeCross)
+			return true;
+		return fragment.getBondOrder(bond) == 2
+			&& bondType != Molecule.cBondTypeDelocalized
+			&& fragment.getAllConnAtoms(fragment.getBondAtom(0, bond)) > 1
+			&& fragment.getAllConnAtoms(fragment.getBondAtom(1, bond)) > 1;
+		}
+
+	/**
+	 * LinkedHashMap in access order, which removes its least recently used entry when full.
+	 */
+	private static class Segment extends LinkedHashMap<Key,CachedIDCode> {
+		private static final long serialVersionUID = 0x20161017;
+
+		private int mCapacity;
+
+		Segment(int capacity) {
+			super(16, 0.75f, true);
+			mCapacity = capacity;
+			}
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Key,CachedIDCode> eldest) {
+			return size() > mCapacity;
+			}
+		}
+
+	private static class CachedIDCode {
+		String idcode;
+		int[] changedBond;	// pairs of bond index and new bond type
+		int chirality;
+
+		CachedIDCode(String idcode, int[] changedBond, int chirality) {
+			this.idcode = idcode;
+			this.changedBond = changedBond;
+			this.chirality = chirality;
+			}
+		}
+
+	private static class Key {
+		int[] data;
+		int hash;
+
+		Key(int[] data) {
+			this.data = data;
+			this.hash = Arrays.hashCode(data);
+			}
+
+		@Override
+		public int hashCode() {
+			return hash;
+			}
+
+		@Override
+		public boolean equals(Object o) {
+			return o instanceof Key && ((Key)o).hash == hash && Arrays.equals(((Key)o).data, data);
+			}
+		}
+	}
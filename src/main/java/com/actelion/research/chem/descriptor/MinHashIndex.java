@@ -0,0 +1,391 @@
+/*
+* Copyright (c) 1997 - 2016
+* Actelion Pharmaceuticals Ltd.
+* Gewerbestrasse 16
+* CH-4123 Allschwil, Switzerland
+*
+* All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without
+* modification, are permitted provided that the following conditions are met:
+*
+* 1. Redistributions of source code must retain the above copyright notice, this
+*    list of conditions and the following disclaimer.
+* 2. Redistributions in binary form must reproduce the above copyright notice,
+*    this list of conditions and the following disclaimer in the documentation
+*    and/or other materials provided with the distribution.
+* 3. Neither the name of the the copyright holder nor the
+*    names of its contributors may be used to endorse or promote products
+*    derived from this software without specific prior written permission.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+* ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+* WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+* DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+* ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+* (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+* LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+* ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+* (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+* SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*
+*/
+
+package com.actelion.research.chem.descriptor;
+
+import java.io.*;
+import java.util.Arrays;
+
+/**
+ * MinHashIndex is an approximate nearest neighbour index for hashed fragment descriptors.
+ * Binary fingerprints, e.g. HashedCFp, are treated as the set of their set bits; count
+ * descriptors, e.g. SkeletonSpheres, as the multiset of their bins, which lets MinHash
+ * approximate the weighted Jaccard similarity. The signature of every descriptor consists of
+ * bandCount*rowsPerBand minimum hash values, which are combined to one key per band.
+ * Rows sharing at least one band key with the query are candidates. With similarity s a row
+ * becomes candidate with probability 1-(1-s^rowsPerBand)^bandCount, i.e. more bands raise
+ * recall at the cost of more candidates, which the caller should verify with the exact
+ * similarity of the respective DescriptorHandler. Note that s is the raw Tanimoto or weighted
+ * Jaccard similarity, while DescriptorHandlers return values normalized to a different scale.<br>
+ * Rows may be added at any time; row indexes are assigned in the order of adding.
+ * An index may be written to and read from a stream. Hash functions are fixed, such that
+ * stored indexes stay compatible. Do not mix binary and count descriptors in one index.
+ * Queries may run concurrently, but not concurrently with adding rows.
+ */
+public class MinHashIndex {
+	private static final int FILE_VERSION = 1;
+	private static final long SEED = 0x5DEECE66DL;
+	private static final int INITIAL_CAPACITY = 1024;
+
+	private int mBandCount,mRowsPerBand,mRowCount,mMaxKeyCount;
+	private int[] mKeyCount;	// number of distinct keys per band
+	private long[] mHashMultiplier,mHashXor;
+	private long[][] mKey;	// open addressing table of band keys per band
+	private int[][] mHead;	// per band and table slot first row+1 with that key, 0 if slot is empty
+	private int[][] mNext;	// per band and row next row+1 with the same key, 0 if none
+
+	/**
+	 * @param bandCount number of bands; more bands increase recall and candidate count
+	 * @param rowsPerBand number of minimum hashes per band; more rows increase precision
+	 */
+	public MinHashIndex(int bandCount, int rowsPerBand) {
+		if (bandCount < 1 || rowsPerBand < 1)
+			throw new IllegalArgumentException("bandCount and rowsPerBand must be positive");
+
+		mBandCount = bandCount;
+		mRowsPerBand = rowsPerBand;
+		initializeHashFunctions();
+		mKey = new long[bandCount][INITIAL_CAPACITY];
+		mHead = new int[bandCount][INITIAL_CAPACITY];
+		mNext = new int[bandCount][INITIAL_CAPACITY];
+		mKeyCount = new int[bandCount];
+		}
+
+	public int getBandCount() {
+		return mBandCount;
+		}
+
+	public int getRowsPerBand() {
+		return mRowsPerBand;
+		}
+
+	/**
+	 * @return number of rows added so far, including rows with empty descriptors
+	 */
+	public int getRowCount() {
+		return mRowCount;
+		}
+
+	/**
+	 * Adds a binary fingerprint, e.g. of DescriptorHandlerHashedCFp. Null or empty
+	 * fingerprints occupy a row index, but are never returned as candidates.
+	 * @param fingerprint
+	 * @return row index of the added fingerprint
+	 */
+	public int add(int[] fingerprint) {
+		return addSignature(createSignature(getBitElements(fingerprint)));
+		}
+
+	/**
+	 * Adds a count descriptor, e.g. of DescriptorHandlerSkeletonSpheres. Null or empty
+	 * descriptors occupy a row index, but are never returned as candidates.
+	 * @param counts
+	 * @return row index of the added descriptor
+	 */
+	public int add(byte[] counts) {
+		return addSignature(createSignature(getCountElements(counts)));
+		}
+
+	/**
+	 * @param fingerprint query fingerprint
+	 * @return ascending indexes of all rows sharing at least one band with the query
+	 */
+	public int[] getCandidates(int[] fingerprint) {
+		return getCandidates(createSignature(getBitElements(fingerprint)));
+		}
+
+	/**
+	 * @param counts query count descriptor
+	 * @return ascending indexes of all rows sharing at least one band with the query
+	 */
+	public int[] getCandidates(byte[] counts) {
+		return getCandidates(createSignature(getCountElements(counts)));
+		}
+
+	/**
+	 * Writes the index in a binary format, which can be read by read().
+	 * @param os
+	 * @throws IOException
+	 */
+	public void write(OutputStream os) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(os));
+		out.writeInt(FILE_VERSION);
+		out.writeInt(mBandCount);
+		out.writeInt(mRowsPerBand);
+		out.writeInt(mRowCount);
+		out.writeInt(mKey[0].length);
+		for (int band=0; band<mBandCount; band++) {
+			out.writeInt(mKeyCount[band]);
+			for (int slot=0; slot<mKey[band].length; slot++) {
+				if (mHead[band][slot] != 0) {
+					out.writeInt(slot);
+					out.writeLong(mKey[band][slot]);
+					out.writeInt(mHead[band][slot]);
+					}
+				}
+			out.writeInt(-1);
+			for (int row=0; row<mRowCount; row++)
+				out.writeInt(mNext[band][row]);
+			}
+		out.flush();
+		}
+
+	/**
+	 * Reads an index written by write(). All row references are checked to be in range and
+	 * to point to earlier rows only, as write() creates them, such that a corrupt stream
+	 * cannot cause endless loops or exceptions when querying the index.
+	 * @param is
+	 * @return index
+	 * @throws IOException if the stream does not contain a valid index
+	 */
+	public static MinHashIndex read(InputStream is) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(is));
+		if (in.readInt() != FILE_VERSION)
+			throw new IOException("unsupported MinHashIndex version");
+
+		int bandCount = in.readInt();
+		int rowsPerBand = in.readInt();
+		if (bandCount < 1 || rowsPerBand < 1)
+			throw new IOException("corrupt MinHashIndex");
+
+		MinHashIndex index = new MinHashIndex(bandCount, rowsPerBand);
+		index.mRowCount = in.readInt();
+		int capacity = in.readInt();
+		if (index.mRowCount < 0 || capacity < INITIAL_CAPACITY || Integer.bitCount(capacity) != 1)
+			throw new IOException("corrupt MinHashIndex");
+
+		int rowCapacity = Math.max(INITIAL_CAPACITY, index.mRowCount);
+		for (int band=0; band<index.mBandCount; band++) {
+			index.mKey[band] = new long[capacity];
+			index.mHead[band] = new int[capacity];
+			index.mKeyCount[band] = in.readInt();
+
+			// the table must keep empty slots to terminate findSlot()
+			if (index.mKeyCount[band] < 0 || 2 * index.mKeyCount[band] > capacity)
+				throw new IOException("corrupt MinHashIndex");
+			index.mMaxKeyCount = Math.max(index.mMaxKeyCount, index.mKeyCount[band]);
+
+			int keyCount = 0;
+			for (int slot=in.readInt(); slot != -1; slot=in.readInt()) {
+				if (slot < 0 || slot >= capacity || index.mHead[band][slot] != 0)
+					throw new IOException("corrupt MinHashIndex");
+				index.mKey[band][slot] = in.readLong();
+				int head = in.readInt();
+				if (head < 1 || head > index.mRowCount)
+					throw new IOException("corrupt MinHashIndex");
+				index.mHead[band][slot] = head;
+				keyCount++;
+				}
+			if (keyCount != index.mKeyCount[band])
+				throw new IOException("corrupt MinHashIndex");
+
+			// next row+1 must be 0 or refer to an earlier row, which excludes cycles
+			index.mNext[band] = new int[rowCapacity];
+			for (int row=0; row<index.mRowCount; row++) {
+				int next = in.readInt();
+				if (next < 0 || next > row)
+					throw new IOException("corrupt MinHashIndex");
+				index.mNext[band][row] = next;
+				}
+			}
+		return index;
+		}
+
+	private void initializeHashFunctions() {
+		int hashCount = mBandCount * mRowsPerBand;
+		mHashMultiplier = new long[hashCount];
+		mHashXor = new long[hashCount];
+		long state = SEED;
+		for (int i=0; i<hashCount; i++) {
+			state += 0x9E3779B97F4A7C15L;
+			mHashMultiplier[i] = mix(state) | 1L;
+			state += 0x9E3779B97F4A7C15L;
+			mHashXor[i] = mix(state);
+			}
+		}
+
+	/**
+	 * @return bit indexes of all set bits; null if there are none
+	 */
+	private static int[] getBitElements(int[] fingerprint) {
+		if (fingerprint == null)
+			return null;
+
+		int count = 0;
+		for (int word:fingerprint)
+			count += Integer.bitCount(word);
+		if (count == 0)
+			return null;
+
+		int[] element = new int[count];
+		count = 0;
+		for (int i=0; i<fingerprint.length; i++) {
+			int word = fingerprint[i];
+			while (word != 0) {
+				element[count++] = (i << 5) + Integer.numberOfTrailingZeros(word);
+				word &= word - 1;
+				}
+			}
+		return element;
+		}
+
+	/**
+	 * @return (bin, occurrence) pairs of all bins, one per count; null if all counts are 0
+	 */
+	private static int[] getCountElements(byte[] counts) {
+		if (counts == null)
+			return null;
+
+		int count = 0;
+		for (byte c:counts)
+			count += (c & 0xFF);
+		if (count == 0)
+			return null;
+
+		int[] element = new int[count];
+		count = 0;
+		for (int bin=0; bin<counts.length; bin++)
+			for (int i=0; i<(counts[bin] & 0xFF); i++)
+				element[count++] = (bin << 8) + i;
+		return element;
+		}
+
+	/**
+	 * @return one key per band or null, if there are no elements
+	 */
+	private long[] createSignature(int[] element) {
+		if (element == null)
+			return null;
+
+		int hashCount = mHashMultiplier.length;
+		long[] minHash = new long[hashCount];
+		Arrays.fill(minHash, Long.MAX_VALUE);
+		for (int e:element) {
+			long base = mix(e + SEED);
+			for (int i=0; i<hashCount; i++) {
+				long h = (base ^ mHashXor[i]) * mHashMultiplier[i];
+				h ^= (h >>> 32);
+				if (minHash[i] > h)
+					minHash[i] = h;
+				}
+			}
+
+		long[] bandKey = new long[mBandCount];
+		for (int band=0; band<mBandCount; band++) {
+			long key = band;
+			for (int i=band*mRowsPerBand; i<(band+1)*mRowsPerBand; i++)
+				key = mix(key * 31 + minHash[i]);
+			bandKey[band] = key;
+			}
+		return bandKey;
+		}
+
+	private int addSignature(long[] bandKey) {
+		int row = mRowCount++;
+		if (row == mNext[0].length)
+			for (int band=0; band<mBandCount; band++)
+				mNext[band] = Arrays.copyOf(mNext[band], 2*row);
+
+		if (bandKey != null) {
+			if (2 * (mMaxKeyCount + 1) > mKey[0].length)
+				rehash(2 * mKey[0].length);
+
+			for (int band=0; band<mBandCount; band++) {
+				int slot = findSlot(band, bandKey[band]);
+				if (mHead[band][slot] == 0) {
+					mKey[band][slot] = bandKey[band];
+					mMaxKeyCount = Math.max(mMaxKeyCount, ++mKeyCount[band]);
+					}
+				mNext[band][row] = mHead[band][slot];
+				mHead[band][slot] = row+1;
+				}
+			}
+
+		return row;
+		}
+
+	private int findSlot(int band, long key) {
+		long[] keys = mKey[band];
+		int[] head = mHead[band];
+		int mask = keys.length - 1;
+		int slot = (int)key & mask;
+		while (head[slot] != 0 && keys[slot] != key)
+			slot = (slot + 1) & mask;
+		return slot;
+		}
+
+	private void rehash(int capacity) {
+		for (int band=0; band<mBandCount; band++) {
+			long[] oldKey = mKey[band];
+			int[] oldHead = mHead[band];
+			mKey[band] = new long[capacity];
+			mHead[band] = new int[capacity];
+			for (int slot=0; slot<oldKey.length; slot++) {
+				if (oldHead[slot] != 0) {
+					int newSlot = findSlot(band, oldKey[slot]);
+					mKey[band][newSlot] = oldKey[slot];
+					mHead[band][newSlot] = oldHead[slot];
+					}
+				}
+			}
+		}
+
+	private int[] getCandidates(long[] bandKey) {
+		if (bandKey == null)
+			return new int[0];
+
+		int[] candidate = new int[64];
+		int count = 0;
+		for (int band=0; band<mBandCount; band++) {
+			int slot = findSlot(band, bandKey[band]);
+			for (int row=mHead[band][slot]; row != 0; row=mNext[band][row-1]) {
+				if (count == candidate.length)
+					candidate = Arrays.copyOf(candidate, 2*count);
+				candidate[count++] = row-1;
+				}
+			}
+
+		Arrays.sort(candidate, 0, count);
+		int unique = 0;
+		for (int i=0; i<count; i++)
+			if (unique == 0 || candidate[unique-1] != candidate[i])
+				candidate[unique++] = candidate[i];
+		return Arrays.copyOf(candidate, unique);
+		}
+
+	private static long mix(long z) {
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+		}
+	}
@@ -0,0 +1,225 @@
+/*
+* Copyright (c) 1997 - 2016
+* Actelion Pharmaceuticals Ltd.
+* Gewerbestrasse 16
+* CH-4123 Allschwil, Switzerland
+*
+* All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without
+* modification, are permitted provided that the following conditions are met:
+*
+* 1. Redistributions of source code must retain the above copyright notice, this
+*    list of conditions and the following disclaimer.
+* 2. Redistributions in binary form must reproduce the above copyright notice,
+*    this list of conditions and the following disclaimer in the documentation
+*    and/or other materials provided with the distribution.
+* 3. Neither the name of the the copyright holder nor the
+*    names of its contributors may be used to endorse or promote products
+*    derived from this software without specific prior written permission.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+* ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+* WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+* DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+* ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+* (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+* LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+* ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+* (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+* SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*
+*/
+
+package com.actelion.research.chem.descriptor;
+
+import com.actelion.research.calc.ThreadMaster;
+
+import java.util.Arrays;
+
+/**
+ * SimilarityClustering clusters a set of descriptors with any ISimilarityCalculator, e.g. a
+ * DescriptorHandler, by either the Taylor-Butina or the sphere exclusion algorithm. Both
+ * algorithms only need to know for every row, which other rows are similar above a threshold.
+ * These neighbour lists are calculated once in parallel by a SimilarityMatrixBuilder, which
+ * keeps only pairs above the threshold, such that memory grows with the number of neighbours
+ * rather than quadratically. For fingerprints and SkeletonSpheres the builder skips all pairs,
+ * which cannot reach the threshold because of their bit counts or count sums. This is exact,
+ * but still compares every row with a growing number of rows of similar size. Large sets should
+ * use a MinHashIndex to compare every row with its candidates only, which is approximate.
+ * Alternatively, precalculated neighbour lists may be passed.
+ * Results are deterministic, i.e. they depend neither on the thread count nor on timing.
+ * @param <T> descriptor type
+ */
+public class SimilarityClustering<T> {
+	private SimilarityMatrixBuilder<T> mMatrixBuilder;
+	private MinHashIndex mIndex;
+	private float mMinSimilarity;
+	private int mRowCount;
+	private int[][] mNeighbour;
+	private float[][] mSimilarity;
+	private int[] mCentroid;
+
+	/**
+	 * @param calculator similarity calculator or DescriptorHandler
+	 * @param descriptor descriptors of all rows to be clustered
+	 * @param minSimilarity minimum similarity of cluster members to the cluster centroid
+	 */
+	public SimilarityClustering(ISimilarityCalculator<T> calculator, T[] descriptor, float minSimilarity) {
+		mMatrixBuilder = new SimilarityMatrixBuilder<T>(calculator, descriptor);
+		mMinSimilarity = minSimilarity;
+		mRowCount = descriptor.length;
+		}
+
+	/**
+	 * Creates a clustering based on precalculated neighbour lists, e.g. from an approximate
+	 * nearest neighbour search. Neighbour lists must be symmetrical and sorted by row.
+	 * @param neighbour for every row the rows with a similarity of at least the threshold
+	 * @param similarity for every row the similarities to its neighbours
+	 */
+	public SimilarityClustering(int[][] neighbour, float[][] similarity) {
+		mNeighbour = neighbour;
+		mSimilarity = similarity;
+		}
+
+	/**
+	 * @param threadCount number of threads used to calculate neighbour lists
+	 */
+	public void setThreadCount(int threadCount) {
+		if (mMatrixBuilder != null)
+			mMatrixBuilder.setThreadCount(threadCount);
+		}
+
+	/**
+	 * Lets the neighbour list calculation compare every row only with its candidates from the index,
+	 * which makes clustering of large sets feasible, but may miss some neighbours.
+	 * @param index null or a MinHashIndex containing all descriptors in the same order
+	 */
+	public void setMinHashIndex(MinHashIndex index) {
+		mIndex = index;
+		}
+
+	/**
+	 * @param threadMaster null or a ThreadMaster that may cancel the neighbour list calculation
+	 */
+	public void setThreadMaster(ThreadMaster threadMaster) {
+		if (mMatrixBuilder != null)
+			mMatrixBuilder.setThreadMaster(threadMaster);
+		}
+
+	/**
+	 * @return fraction of the neighbour list calculation done so far
+	 */
+	public float getProgress() {
+		return (mMatrixBuilder == null) ? 1f : mMatrixBuilder.getProgress();
+		}
+
+	/**
+	 * @return centroid row of every cluster of the last clustering run
+	 */
+	public int[] getCentroids() {
+		return mCentroid;
+		}
+
+	/**
+	 * Taylor-Butina clustering: Rows are processed in order of decreasing neighbour count,
+	 * in case of equal count in order of increasing row index. Every row not yet assigned
+	 * becomes the centroid of a new cluster, which receives all unassigned neighbours.
+	 * @return cluster index for every row, clusters being numbered in order of creation, or null if cancelled
+	 */
+	public int[] clusterButina() {
+		if (!calculateNeighbours())
+			return null;
+
+		int rowCount = mNeighbour.length;
+
+		// counting sort of rows by decreasing neighbour count, stable with respect to the row index
+		int maxCount = 0;
+		for (int row=0; row<rowCount; row++)
+			maxCount = Math.max(maxCount, mNeighbour[row].length);
+		int[] start = new int[maxCount+2];
+		for (int row=0; row<rowCount; row++)
+			start[maxCount-mNeighbour[row].length+1]++;
+		for (int i=1; i<start.length; i++)
+			start[i] += start[i-1];
+		int[] order = new int[rowCount];
+		for (int row=0; row<rowCount; row++)
+			order[start[maxCount-mNeighbour[row].length]++] = row;
+
+		int[] cluster = new int[rowCount];
+		Arrays.fill(cluster, -1);
+		int[] centroid = new int[rowCount];
+		int clusterCount = 0;
+		for (int row:order) {
+			if (cluster[row] == -1) {
+				cluster[row] = clusterCount;
+				for (int neighbour:mNeighbour[row])
+					if (cluster[neighbour] == -1)
+						cluster[neighbour] = clusterCount;
+				centroid[clusterCount++] = row;
+				}
+			}
+
+		mCentroid = Arrays.copyOf(centroid, clusterCount);
+		return cluster;
+		}
+
+	/**
+	 * Sphere exclusion clustering: Rows are processed in their given order. Every row not
+	 * covered by the sphere of an existing centroid becomes a new centroid, which excludes all
+	 * its neighbours from becoming centroids. Finally, every row is assigned to the most
+	 * similar centroid among its neighbours; in case of equal similarity to the earlier one.
+	 * Thus, the order of the rows determines the centroids, e.g. sort by priority before.
+	 * @return cluster index for every row, clusters being numbered in order of creation, or null if cancelled
+	 */
+	public int[] clusterSphereExclusion() {
+		if (!calculateNeighbours())
+			return null;
+
+		int rowCount = mNeighbour.length;
+		int[] cluster = new int[rowCount];
+		Arrays.fill(cluster, -1);
+		boolean[] isExcluded = new boolean[rowCount];
+		int[] centroid = new int[rowCount];
+		int clusterCount = 0;
+		for (int row=0; row<rowCount; row++) {
+			if (!isExcluded[row]) {
+				cluster[row] = clusterCount;
+				centroid[clusterCount++] = row;
+				for (int neighbour:mNeighbour[row])
+					isExcluded[neighbour] = true;
+				}
+			}
+
+		for (int row=0; row<rowCount; row++) {
+			if (cluster[row] == -1 || centroid[cluster[row]] != row) {
+				float bestSimilarity = -1f;
+				for (int i=0; i<mNeighbour[row].length; i++) {
+					int neighbour = mNeighbour[row][i];
+					int c = cluster[neighbour];
+					if (c != -1 && centroid[c] == neighbour) {
+						if (mSimilarity[row][i] > bestSimilarity
+						 || (mSimilarity[row][i] == bestSimilarity && c < cluster[row])) {
+							bestSimilarity = mSimilarity[row][i];
+							cluster[row] = c;
+							}
+						}
+					}
+				}
+			}
+
+		mCentroid = Arrays.copyOf(centroid, clusterCount);
+		return cluster;
+		}
+
+	private boolean calculateNeighbours() {
+		if (mNeighbour == null) {
+			float[][] similarity = new float[mRowCount][];
+			mNeighbour = mMatrixBuilder.createNeighbourLists(mMinSimilarity, similarity, mIndex);
+			if (mNeighbour == null)
+				return false;
+			mSimilarity = similarity;
+			}
+		return true;
+		}
+	}
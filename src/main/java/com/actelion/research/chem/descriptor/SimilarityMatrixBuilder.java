@@ -0,0 +1,598 @@
+/*
+* Copyright (c) 1997 - 2016
+* Actelion Pharmaceuticals Ltd.
+* Gewerbestrasse 16
+* CH-4123 Allschwil, Switzerland
+*
+* All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without
+* modification, are permitted provided that the following conditions are met:
+*
+* 1. Redistributions of source code must retain the above copyright notice, this
+*    list of conditions and the following disclaimer.
+* 2. Redistributions in binary form must reproduce the above copyright notice,
+*    this list of conditions and the following disclaimer in the documentation
+*    and/or other materials provided with the distribution.
+* 3. Neither the name of the the copyright holder nor the
+*    names of its contributors may be used to endorse or promote products
+*    derived from this software without specific prior written permission.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+* ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+* WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+* DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+* ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+* (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+* LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+* ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+* (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+* SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*
+*/
+
+package com.actelion.research.chem.descriptor;
+
+import com.actelion.research.calc.ThreadMaster;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * SimilarityMatrixBuilder calculates all pairwise similarities of a set of descriptors
+ * with any ISimilarityCalculator, e.g. a DescriptorHandler. Only the upper triangle is calculated.
+ * The rows are divided into blocks of tile size. Every block is one task on a fork-join pool,
+ * which compares its rows with all rows of its own and all following blocks tile by tile, such that
+ * both blocks of a tile stay in the cache. Every worker thread uses its own thread-safe copy of the
+ * similarity calculator. Results are written without any boxing either into a float array,
+ * into an off-heap FloatBuffer, or as sparse neighbour lists of similarities above a threshold.
+ * Every tile checks the ThreadMaster, whether the calculation shall be cancelled, and getProgress()
+ * may be polled from another thread.<br>
+ * Sparse neighbour lists don't need pairs, which cannot reach the threshold. If the similarity
+ * of two descriptors is limited by their sizes, e.g. by the bit counts a<=b of two fingerprints
+ * to f(a/b) for Tanimoto based measures (Swamidass and Baldi) or by the count sums for SkeletonSpheres,
+ * then rows are sorted by size and every row is compared only with the following rows,
+ * whose size is still compatible with the threshold. These bounds are used automatically
+ * for AbstractDescriptorHandlerFP based fingerprints and for DescriptorHandlerSkeletonSpheres.
+ * Other measures may define their bound with setSizeBound().
+ * @param <T> descriptor type
+ */
+public class SimilarityMatrixBuilder<T> {
+	private static final int DEFAULT_TILE_SIZE = 256;
+
+	private ISimilarityCalculator<T> mCalculator;
+	private T[] mDescriptor;
+	private int mThreadCount,mTileSize,mTileCount;
+	private ThreadMaster mThreadMaster;
+	private AtomicInteger mCompletedTiles;
+	private volatile boolean mStopRequested;
+	private int[] mSize;
+	private SizeBound mSizeBound;
+
+	/**
+	 * Upper limit of the similarity of two descriptors, which depends on their sizes only.
+	 */
+	public interface SizeBound {
+		/**
+		 * Must not increase with size2 and must not decrease with size1.
+		 * @param size1 size of one descriptor, e.g. number of set bits or sum of counts
+		 * @param size2 size of the other descriptor with size2 >= size1
+		 * @return highest similarity, which two descriptors of these sizes may have
+		 */
+		public float getMaxSimilarity(int size1, int size2);
+		}
+
+	/**
+	 * @param calculator similarity calculator or DescriptorHandler; copies are used for parallel calculation
+	 * @param descriptor descriptors; pairs with a null descriptor get a similarity of NaN
+	 */
+	public SimilarityMatrixBuilder(ISimilarityCalculator<T> calculator, T[] descriptor) {
+		mCalculator = calculator;
+		mDescriptor = descriptor;
+		mThreadCount = Runtime.getRuntime().availableProcessors();
+		mTileSize = DEFAULT_TILE_SIZE;
+		mCompletedTiles = new AtomicInteger();
+		setDefaultSizeBound();
+		}
+
+	/**
+	 * @param threadCount number of worker threads; default is the number of available processors
+	 */
+	public void setThreadCount(int threadCount) {
+		mThreadCount = Math.max(1, threadCount);
+		}
+
+	/**
+	 * @param tileSize number of rows and columns of one tile; default is 256
+	 */
+	public void setTileSize(int tileSize) {
+		mTileSize = Math.max(1, tileSize);
+		}
+
+	/**
+	 * Defines the size of every descriptor and a similarity limit depending on sizes, which lets
+	 * createNeighbourLists() skip pairs that cannot reach the threshold. This replaces the bound,
+	 * which is used automatically for fingerprint and SkeletonSpheres descriptor handlers.
+	 * @param size size of every descriptor or -1, if it never reaches a positive similarity
+	 * @param bound null to compare all pairs
+	 */
+	public void setSizeBound(int[] size, SizeBound bound) {
+		mSize = (bound == null) ? null : size;
+		mSizeBound = bound;
+		}
+
+	/**
+	 * @param threadMaster null or a ThreadMaster that may cancel a running calculation
+	 */
+	public void setThreadMaster(ThreadMaster threadMaster) {
+		mThreadMaster = threadMaster;
+		}
+
+	/**
+	 * May be called from any thread while a calculation is running.
+	 * @return fraction of calculated tiles from 0.0 to 1.0
+	 */
+	public float getProgress() {
+		return (mTileCount == 0) ? 0f : (float)mCompletedTiles.get() / (float)mTileCount;
+		}
+
+	/**
+	 * Returns the position of the similarity of rows i and j (i < j) in the packed upper triangle
+	 * as created by createMatrix() and createDirectMatrix().
+	 * @param rowCount number of descriptors
+	 * @param i
+	 * @param j
+	 * @return index into upper triangle array
+	 */
+	public static long getMatrixIndex(int rowCount, int i, int j) {
+		return (long)i * rowCount - (long)i * (i+1) / 2 + (j - i - 1);
+		}
+
+	/**
+	 * Calculates the upper triangle of the similarity matrix without the diagonal
+	 * into a packed float array. Use getMatrixIndex() to locate the similarity of two rows.
+	 * @return packed upper triangle or null, if the calculation was cancelled
+	 */
+	public float[] createMatrix() {
+		long size = getMatrixIndex(mDescriptor.length, mDescriptor.length-1, mDescriptor.length);
+		if (size > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("matrix too large; consider createNeighbourLists()");
+
+		final float[] matrix = new float[(int)size];
+		return run(null, null, mDescriptor.length, new TileTarget() {
+			public void set(int i, int j, float similarity) {
+				matrix[(int)getMatrixIndex(mDescriptor.length, i, j)] = similarity;
+				}
+			} ) ? matrix : null;
+		}
+
+	/**
+	 * Calculates the upper triangle of the similarity matrix without the diagonal
+	 * into a packed off-heap FloatBuffer. Use getMatrixIndex() to locate the similarity of two rows.
+	 * @return packed upper triangle or null, if the calculation was cancelled
+	 */
+	public FloatBuffer createDirectMatrix() {
+		long size = getMatrixIndex(mDescriptor.length, mDescriptor.length-1, mDescriptor.length);
+		if (4 * size > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("matrix too large; consider createNeighbourLists()");
+
+		final FloatBuffer matrix = ByteBuffer.allocateDirect(4 * (int)size).order(ByteOrder.nativeOrder()).asFloatBuffer();
+		return run(null, null, mDescriptor.length, new TileTarget() {
+			public void set(int i, int j, float similarity) {
+				matrix.put((int)getMatrixIndex(mDescriptor.length, i, j), similarity);
+				}
+			} ) ? matrix : null;
+		}
+
+	/**
+	 * Calculates all pairwise similarities, which may reach minSimilarity according to the size bound,
+	 * and keeps for every row those other rows, whose similarity is at least minSimilarity.
+	 * Neighbour lists are sorted by row index.
+	 * @param minSimilarity
+	 * @param similarity array of descriptor count size, which receives for every row the similarities to its neighbours
+	 * @return neighbour rows of every row or null, if the calculation was cancelled
+	 */
+	public int[][] createNeighbourLists(float minSimilarity, float[][] similarity) {
+		return createNeighbourLists(minSimilarity, similarity, null);
+		}
+
+	/**
+	 * Creates approximate neighbour lists, which are much faster to calculate for large sets,
+	 * because every row is compared only with its candidates from a MinHashIndex rather than
+	 * with all other rows. Similarities are exact, but neighbours may be missed, if they are
+	 * not found as candidates. Thus, the recall depends on band count and rows per band of the index.
+	 * Neighbour lists are sorted by row index.
+	 * @param minSimilarity
+	 * @param similarity array of descriptor count size, which receives for every row the similarities to its neighbours
+	 * @param index MinHashIndex containing all int[] or byte[] descriptors in the same order
+	 * @return neighbour rows of every row or null, if the calculation was cancelled
+	 */
+	public int[][] createNeighbourLists(float minSimilarity, float[][] similarity, MinHashIndex index) {
+		if (index != null && index.getRowCount() != mDescriptor.length)
+			throw new IllegalArgumentException("index row count doesn't match descriptor count");
+
+		int rowCount = mDescriptor.length;
+		final float threshold = minSimilarity;
+		final int[][] upperNeighbour = new int[rowCount][];
+		final float[][] upperSimilarity = new float[rowCount][];
+		final int[] upperCount = new int[rowCount];
+
+		int[] order = null;
+		int[] end = null;
+		int positionCount = rowCount;
+		if (index == null && mSizeBound != null && minSimilarity > 0f) {
+			order = getRowsBySize();
+			positionCount = order.length;
+			end = getLastPartnerPositions(order, minSimilarity);
+			}
+
+		// Every row i is written by the task of its own row block only. Thus, no synchronization is needed.
+		TileTarget target = new TileTarget() {
+			public void set(int i, int j, float s) {
+				if (s >= threshold) {
+					if (upperNeighbour[i] == null) {
+						upperNeighbour[i] = new int[4];
+						upperSimilarity[i] = new float[4];
+						}
+					else if (upperCount[i] == upperNeighbour[i].length) {
+						upperNeighbour[i] = Arrays.copyOf(upperNeighbour[i], 2*upperCount[i]);
+						upperSimilarity[i] = Arrays.copyOf(upperSimilarity[i], 2*upperCount[i]);
+						}
+					upperNeighbour[i][upperCount[i]] = j;
+					upperSimilarity[i][upperCount[i]++] = s;
+					}
+				}
+			};
+		boolean completed = (index == null) ? run(order, end, positionCount, target) : run(index, target);
+		if (!completed)
+			return null;
+
+		// make the lists symmetrical; without size bound rows are added in ascending order to every list
+		int[] count = new int[rowCount];
+		for (int i=0; i<rowCount; i++) {
+			count[i] += upperCount[i];
+			for (int k=0; k<upperCount[i]; k++)
+				count[upperNeighbour[i][k]]++;
+			}
+		int[][] neighbour = new int[rowCount][];
+		for (int i=0; i<rowCount; i++) {
+			neighbour[i] = new int[count[i]];
+			similarity[i] = new float[count[i]];
+			count[i] = 0;
+			}
+		for (int i=0; i<rowCount; i++) {
+			for (int k=0; k<upperCount[i]; k++) {
+				int j = upperNeighbour[i][k];
+				neighbour[i][count[i]] = j;
+				similarity[i][count[i]++] = upperSimilarity[i][k];
+				neighbour[j][count[j]] = i;
+				similarity[j][count[j]++] = upperSimilarity[i][k];
+				}
+			upperNeighbour[i] = null;
+			upperSimilarity[i] = null;
+			}
+
+		if (order != null)
+			for (int i=0; i<rowCount; i++)
+				sortByNeighbour(neighbour[i], similarity[i]);
+
+		return neighbour;
+		}
+
+	private static void sortByNeighbour(int[] neighbour, float[] similarity) {
+		long[] pair = new long[neighbour.length];
+		for (int i=0; i<neighbour.length; i++)
+			pair[i] = ((long)neighbour[i] << 32) | (Float.floatToRawIntBits(similarity[i]) & 0xFFFFFFFFL);
+		Arrays.sort(pair);
+		for (int i=0; i<neighbour.length; i++) {
+			neighbour[i] = (int)(pair[i] >>> 32);
+			similarity[i] = Float.intBitsToFloat((int)pair[i]);
+			}
+		}
+
+	/**
+	 * @return rows with valid size sorted by increasing size and row index
+	 */
+	private int[] getRowsBySize() {
+		int maxSize = 0;
+		int validCount = 0;
+		for (int size:mSize) {
+			if (size != -1) {
+				maxSize = Math.max(maxSize, size);
+				validCount++;
+				}
+			}
+
+		int[] start = new int[maxSize+2];
+		for (int size:mSize)
+			if (size != -1)
+				start[size+1]++;
+		for (int i=1; i<start.length; i++)
+			start[i] += start[i-1];
+		int[] order = new int[validCount];
+		for (int row=0; row<mSize.length; row++)
+			if (mSize[row] != -1)
+				order[start[mSize[row]]++] = row;
+		return order;
+		}
+
+	/**
+	 * Determines for every position in the size sorted row order the last position,
+	 * whose row may reach minSimilarity with the position's row.
+	 * Rows of equal size are always considered compatible.
+	 */
+	private int[] getLastPartnerPositions(int[] order, float minSimilarity) {
+		int[] end = new int[order.length];
+		if (order.length == 0)
+			return end;
+
+		int maxSize = mSize[order[order.length-1]];
+		int[] maxPartnerSize = new int[maxSize+1];
+		int partnerSize = 0;
+		for (int size=0; size<=maxSize; size++) {
+			partnerSize = Math.max(partnerSize, size);
+			while (partnerSize < maxSize && mSizeBound.getMaxSimilarity(size, partnerSize+1) >= minSimilarity)
+				partnerSize++;
+			maxPartnerSize[size] = partnerSize;
+			}
+
+		int q = 0;
+		for (int p=0; p<order.length; p++) {
+			int limit = maxPartnerSize[mSize[order[p]]];
+			q = Math.max(q, p);
+			while (q+1 < order.length && mSize[order[q+1]] <= limit)
+				q++;
+			end[p] = q;
+			}
+		return end;
+		}
+
+	@SuppressWarnings("unchecked")
+	private void setDefaultSizeBound() {
+		if (mCalculator instanceof DescriptorHandlerSkeletonSpheres && mDescriptor instanceof byte[][]) {
+			byte[][] descriptor = (byte[][])mDescriptor;
+			int[] size = new int[descriptor.length];
+			for (int row=0; row<descriptor.length; row++) {
+				if (descriptor[row] == null || descriptor[row].length == 0) {
+					size[row] = -1;
+					}
+				else {
+					for (byte count:descriptor[row])
+						size[row] += count;
+					}
+				}
+			// the sum of minimum counts cannot exceed size1, the sum of maximum counts not fall below size2
+			setSizeBound(size, new SizeBound() {
+				public float getMaxSimilarity(int size1, int size2) {
+					return DescriptorHandlerSkeletonSpheres.normalizeValue((double)size1/(double)size2);
+					}
+				} );
+			}
+		else if (mCalculator instanceof AbstractDescriptorHandlerFP && mDescriptor instanceof int[][]) {
+			int[][] fingerprint = (int[][])mDescriptor;
+			int[] size = new int[fingerprint.length];
+			int length = 0;
+			for (int row=0; row<fingerprint.length; row++) {
+				if (fingerprint[row] == null || fingerprint[row].length == 0) {
+					size[row] = -1;
+					}
+				else {
+					length = fingerprint[row].length;
+					for (int word:fingerprint[row])
+						size[row] += Integer.bitCount(word);
+					}
+				}
+			// the highest similarity is reached, if all bits of the smaller fingerprint are set in the larger one
+			final ISimilarityCalculator<int[]> calculator = (ISimilarityCalculator<int[]>)mCalculator;
+			final int fingerprintLength = length;
+			setSizeBound(size, new SizeBound() {
+				public float getMaxSimilarity(int size1, int size2) {
+					return calculator.getSimilarity(createFingerprint(size1, fingerprintLength),
+													createFingerprint(size2, fingerprintLength));
+					}
+				} );
+			}
+		}
+
+	private static int[] createFingerprint(int bitCount, int length) {
+		int[] fingerprint = new int[length];
+		for (int i=0; i<bitCount; i++)
+			fingerprint[i >> 5] |= 1 << i;
+		return fingerprint;
+		}
+
+	/**
+	 * Runs the tiled calculation on a fork-join pool.
+	 * @param order null or rows in the order of positions to be compared
+	 * @param end null or for every position the last position to be compared with
+	 * @param positionCount number of positions
+	 * @param target
+	 * @return false, if the calculation was cancelled
+	 */
+	private boolean run(int[] order, int[] end, int positionCount, TileTarget target) {
+		int blockCount = (positionCount + mTileSize - 1) / mTileSize;
+		mTileCount = 0;
+		for (int block=0; block<blockCount; block++)
+			mTileCount += getLastColumnBlock(block, blockCount, end, positionCount) - block + 1;
+		mCompletedTiles.set(0);
+		mStopRequested = false;
+		if (blockCount == 0)
+			return true;
+
+		ForkJoinPool pool = new ForkJoinPool(mThreadCount);
+		try {
+			pool.invoke(new BlockTask(0, blockCount, blockCount, order, end, positionCount, createThreadCalculator(), target));
+			}
+		finally {
+			pool.shutdown();
+			}
+
+		return !mStopRequested;
+		}
+
+	/**
+	 * Compares every row with those candidates of the index, which have a higher row index.
+	 * Since two rows are candidates of each other if they share a band, no pair is missed.
+	 * @return false, if the calculation was cancelled
+	 */
+	private boolean run(MinHashIndex index, TileTarget target) {
+		int blockCount = (mDescriptor.length + mTileSize - 1) / mTileSize;
+		mTileCount = blockCount;
+		mCompletedTiles.set(0);
+		mStopRequested = false;
+		if (blockCount == 0)
+			return true;
+
+		ForkJoinPool pool = new ForkJoinPool(mThreadCount);
+		try {
+			pool.invoke(new CandidateTask(0, blockCount, index, createThreadCalculator(), target));
+			}
+		finally {
+			pool.shutdown();
+			}
+
+		return !mStopRequested;
+		}
+
+	private ThreadLocal<ISimilarityCalculator<T>> createThreadCalculator() {
+		return new ThreadLocal<ISimilarityCalculator<T>>() {
+			@Override
+			protected ISimilarityCalculator<T> initialValue() {
+				return mCalculator.getThreadSafeCopy();
+				}
+			};
+		}
+
+	private int getLastColumnBlock(int block, int blockCount, int[] end, int positionCount) {
+		if (end == null)
+			return blockCount - 1;
+		int lastPosition = Math.min(positionCount, (block + 1) * mTileSize) - 1;
+		return end[lastPosition] / mTileSize;
+		}
+
+	private boolean mustStop() {
+		if (!mStopRequested && mThreadMaster != null && mThreadMaster.threadMustDie())
+			mStopRequested = true;
+		return mStopRequested;
+		}
+
+	private interface TileTarget {
+		/**
+		 * Receives the similarity of rows i and j, where i < j unless rows are sorted by size.
+		 * Calls for the same i always come from the same thread.
+		 */
+		public void set(int i, int j, float similarity);
+		}
+
+	private class BlockTask extends RecursiveAction {
+		private static final long serialVersionUID = 0x20161017;
+
+		private int mFirstBlock,mLastBlock,mBlockCount,mPositionCount;
+		private int[] mOrder,mEnd;
+		private ThreadLocal<ISimilarityCalculator<T>> mThreadCalculator;
+		private TileTarget mTarget;
+
+		public BlockTask(int firstBlock, int lastBlock, int blockCount, int[] order, int[] end, int positionCount,
+						 ThreadLocal<ISimilarityCalculator<T>> calculator, TileTarget target) {
+			mFirstBlock = firstBlock;
+			mLastBlock = lastBlock;
+			mBlockCount = blockCount;
+			mOrder = order;
+			mEnd = end;
+			mPositionCount = positionCount;
+			mThreadCalculator = calculator;
+			mTarget = target;
+			}
+
+		@Override
+		protected void compute() {
+			if (mLastBlock - mFirstBlock > 1) {
+				int middle = (mFirstBlock + mLastBlock) / 2;
+				invokeAll(new BlockTask(mFirstBlock, middle, mBlockCount, mOrder, mEnd, mPositionCount, mThreadCalculator, mTarget),
+						  new BlockTask(middle, mLastBlock, mBlockCount, mOrder, mEnd, mPositionCount, mThreadCalculator, mTarget));
+				return;
+				}
+
+			ISimilarityCalculator<T> calculator = mThreadCalculator.get();
+			int firstRow = mFirstBlock * mTileSize;
+			int lastRow = Math.min(firstRow + mTileSize, mPositionCount);
+			int lastBlock = getLastColumnBlock(mFirstBlock, mBlockCount, mEnd, mPositionCount);
+			for (int block=mFirstBlock; block<=lastBlock; block++) {
+				if (mustStop())
+					return;
+
+				int firstColumn = block * mTileSize;
+				int lastColumn = Math.min(firstColumn + mTileSize, mPositionCount);
+				for (int p=firstRow; p<lastRow; p++) {
+					int i = (mOrder == null) ? p : mOrder[p];
+					T d1 = mDescriptor[i];
+					int lastQ = (mEnd == null) ? lastColumn : Math.min(lastColumn, mEnd[p]+1);
+					for (int q=Math.max(p+1, firstColumn); q<lastQ; q++) {
+						int j = (mOrder == null) ? q : mOrder[q];
+						T d2 = mDescriptor[j];
+						mTarget.set(i, j, (d1 == null || d2 == null) ? Float.NaN : calculator.getSimilarity(d1, d2));
+						}
+					}
+				mCompletedTiles.incrementAndGet();
+				}
+			}
+		}
+	
+	private class CandidateTask extends RecursiveAction {
+		private static final long serialVersionUID = 0x20161017;
+
+		private int mFirstBlock,mLastBlock;
+		private MinHashIndex mIndex;
+		private ThreadLocal<ISimilarityCalculator<T>> mThreadCalculator;
+		private TileTarget mTarget;
+
+		public CandidateTask(int firstBlock, int lastBlock, MinHashIndex index,
+							 ThreadLocal<ISimilarityCalculator<T>> calculator, TileTarget target) {
+			mFirstBlock = firstBlock;
+			mLastBlock = lastBlock;
+			mIndex = index;
+			mThreadCalculator = calculator;
+			mTarget = target;
+			}
+
+		@Override
+		protected void compute() {
+			if (mLastBlock - mFirstBlock > 1) {
+				int middle = (mFirstBlock + mLastBlock) / 2;
+				invokeAll(new CandidateTask(mFirstBlock, middle, mIndex, mThreadCalculator, mTarget),
+						  new CandidateTask(middle, mLastBlock, mIndex, mThreadCalculator, mTarget));
+				return;
+				}
+
+			if (mustStop())
+				return;
+
+			ISimilarityCalculator<T> calculator = mThreadCalculator.get();
+			int firstRow = mFirstBlock * mTileSize;
+			int lastRow = Math.min(firstRow + mTileSize, mDescriptor.length);
+			for (int i=firstRow; i<lastRow; i++) {
+				T d1 = mDescriptor[i];
+				if (d1 == null)
+					continue;
+
+				int[] candidate = (d1 instanceof int[]) ? mIndex.getCandidates((int[])d1)
+								: (d1 instanceof byte[]) ? mIndex.getCandidates((byte[])d1) : null;
+				if (candidate == null)
+					throw new IllegalArgumentException("MinHashIndex requires int[] or byte[] descriptors");
+
+				for (int j:candidate) {
+					if (j > i) {
+						T d2 = mDescriptor[j];
+						mTarget.set(i, j, (d2 == null) ? Float.NaN : calculator.getSimilarity(d1, d2));
+						}
+					}
+				}
+			mCompletedTiles.incrementAndGet();
+			}
+		}
+	}
@@ -0,0 +1,129 @@
+/*
+* Copyright (c) 1997 - 2016
+* Actelion Pharmaceuticals Ltd.
+* Gewerbestrasse 16
+* CH-4123 Allschwil, Switzerland
+*
+* All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without
+* modification, are permitted provided that the following conditions are met:
+*
+* 1. Redistributions of source code must retain the above copyright notice, this
+*    list of conditions and the following disclaimer.
+* 2. Redistributions in binary form must reproduce the above copyright notice,
+*    this list of conditions and the following disclaimer in the documentation
+*    and/or other materials provided with the distribution.
+* 3. Neither the name of the the copyright holder nor the
+*    names of its contributors may be used to endorse or promote products
+*    derived from this software without specific prior written permission.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+* ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+* WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+* DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+* ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+* (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+* LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+* ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+* (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+* SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*
+*/
+
+package com.actelion.research.chem.descriptor;
+
+import com.actelion.research.chem.Canonizer;
+import com.actelion.research.chem.IDCodeParser;
+import com.actelion.research.chem.StereoMolecule;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+
+/**
+ * Measures the time needed to canonize all fragments, which DescriptorHandlerSkeletonSpheres
+ * creates from a set of molecules, once with the Canonizer's shortcut for molecules without
+ * potential stereo features and once with complete stereo perception.
+ * Usage: SkeletonSpheresCanonizerBenchmark [file with one idcode per line (first TAB-separated column)]
+ * If no file is given, the idcodes of the druglikeness increment table are used.
+ */
+public class SkeletonSpheresCanonizerBenchmark {
+	private static final String DEFAULT_IDCODE_RESOURCE = "/resources/druglikenessNoIndex.txt";
+	private static final int ROUNDS = 5;
+
+	public static void main(String[] args) throws Exception {
+		BufferedReader reader = (args.length == 0) ?
+				new BufferedReader(new InputStreamReader(SkeletonSpheresCanonizerBenchmark.class.getResourceAsStream(DEFAULT_IDCODE_RESOURCE)))
+			  : new BufferedReader(new FileReader(args[0]));
+
+		ArrayList<StereoMolecule> fragmentList = new ArrayList<StereoMolecule>();
+		AtomSphereEnumerator enumerator = new AtomSphereEnumerator(DescriptorHandlerSkeletonSpheres.MAX_SPHERE_COUNT);
+		IDCodeParser parser = new IDCodeParser(true);
+		int molCount = 0;
+		String line;
+		while ((line = reader.readLine()) != null) {
+			int index = line.indexOf('\t');
+			String idcode = (index == -1) ? line.trim() : line.substring(0, index);
+			if (idcode.length() == 0)
+				continue;
+
+			StereoMolecule mol;
+			try {
+				mol = parser.getCompactMolecule(idcode);
+				}
+			catch (Exception e) {
+				continue;
+				}
+			if (mol == null || mol.getAllAtoms() == 0)
+				continue;
+
+			mol.setFragment(false);
+			molCount++;
+			enumerator.setMolecule(mol);
+			for (int rootAtom=0; rootAtom<mol.getAtoms(); rootAtom++) {
+				enumerator.setRootAtom(rootAtom);
+				while (enumerator.nextSphere()) {
+					if (enumerator.getSphere() < DescriptorHandlerSkeletonSpheres.EXACT_SPHERE_COUNT)
+						fragmentList.add(new StereoMolecule(enumerator.getFragment()));
+					if (enumerator.getSphere() < DescriptorHandlerSkeletonSpheres.SKELETON_SPHERE_COUNT) {
+						StereoMolecule skeleton = new StereoMolecule(enumerator.getFragment());
+						for (int atom=0; atom<skeleton.getAllAtoms(); atom++)
+							skeleton.setAtomicNo(atom, 6);
+						fragmentList.add(skeleton);
+						}
+					}
+				}
+			}
+		reader.close();
+
+		StereoMolecule[] fragment = fragmentList.toArray(new StereoMolecule[0]);
+		System.out.println("molecules:"+molCount+" fragments:"+fragment.length);
+
+		// first rounds warm up the JIT; canonizing does not change a fragment's idcode
+		long bestFastMillis = Long.MAX_VALUE;
+		long bestFullMillis = Long.MAX_VALUE;
+		for (int round=0; round<ROUNDS; round++) {
+			long fastMillis = canonize(fragment, 0);
+			long fullMillis = canonize(fragment, Canonizer.ALWAYS_PERCEIVE_STEREO);
+			System.out.println("round "+(round+1)+": with stereo shortcut:"+fastMillis+"ms; complete stereo perception:"+fullMillis+"ms");
+			bestFastMillis = Math.min(bestFastMillis, fastMillis);
+			bestFullMillis = Math.min(bestFullMillis, fullMillis);
+			}
+
+		System.out.println("best: with stereo shortcut:"+bestFastMillis+"ms; complete stereo perception:"+bestFullMillis+"ms; speed-up:"
+				+ String.format("%.2f", (double)bestFullMillis/(double)Math.max(1, bestFastMillis)));
+		}
+
+	private static long canonize(StereoMolecule[] fragment, int mode) {
+		long start = System.currentTimeMillis();
+		int hash = 0;
+		for (StereoMolecule f:fragment)
+			hash += Canonizer.getThreadCanonizer(f, mode).getIDCode().hashCode();
+		long millis = System.currentTimeMillis() - start;
+		if (hash == 42)	// prevent dead code elimination
+			System.out.print("");
+		return millis;
+		}
+	}
@@ -0,0 +1,206 @@
+/*
+* Copyright (c) 1997 - 2016
+* Actelion Pharmaceuticals Ltd.
+* Gewerbestrasse 16
+* CH-4123 Allschwil, Switzerland
+*
+* All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without
+* modification, are permitted provided that the following conditions are met:
+*
+* 1. Redistributions of source code must retain the above copyright notice, this
+*    list of conditions and the following disclaimer.
+* 2. Redistributions in binary form must reproduce the above copyright notice,
+*    this list of conditions and the following disclaimer in the documentation
+*    and/or other materials provided with the distribution.
+* 3. Neither the name of the the copyright holder nor the
+*    names of its contributors may be used to endorse or promote products
+*    derived from this software without specific prior written permission.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+* ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+* WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+* DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+* ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+* (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+* LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+* ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+* (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+* SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*
+*/
+
+package com.actelion.research.chem.descriptor;
+
+/**
+ * SkeletonSpheresCorpus keeps the SkeletonSpheres descriptors of many molecules in one packed
+ * long array, eight 6-bit counts per long, and scores a query against all of them at once.
+ * The sum of minimum counts, which is the only part of the similarity that depends on both
+ * descriptors, is calculated on eight counts in parallel (SIMD within a register).
+ * The sum of maximum counts follows from the count sums of both descriptors, which are
+ * precalculated. Since the similarity cannot exceed min(sum1,sum2)/max(sum1,sum2), rows that
+ * cannot reach a given minimum similarity are skipped without looking at their counts.
+ * The results are identical to those of DescriptorHandlerSkeletonSpheres.getSimilarity().
+ * A SkeletonSpheresCorpus is immutable after construction and may be used by multiple threads.
+ */
+public class SkeletonSpheresCorpus {
+	private static final int WORDS_PER_ROW = 128;	// 1024 counts
+	private static final int WORDS_PER_SUM = 4;		// lane sums of up to 4 words cannot exceed 4*63 < 256
+	private static final long HIGH_BITS = 0x8080808080808080L;
+	private static final long LOW_BYTES = 0x00FF00FF00FF00FFL;
+
+	private int mRowCount;
+	private long[] mCount;
+	private int[] mCountSum;	// -1 for failed descriptors
+
+	/**
+	 * Packs the given descriptors. Rows with null or empty descriptors (failed calculations)
+	 * get a similarity of NaN, as with DescriptorHandlerSkeletonSpheres.getSimilarity().
+	 * @param descriptor SkeletonSpheres descriptors with counts from 0 to DescriptorEncoder.MAX_COUNT_VALUE
+	 */
+	public SkeletonSpheresCorpus(byte[][] descriptor) {
+		if ((long)descriptor.length * WORDS_PER_ROW > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("too many descriptors");
+
+		mRowCount = descriptor.length;
+		mCount = new long[mRowCount * WORDS_PER_ROW];
+		mCountSum = new int[mRowCount];
+		for (int row=0; row<mRowCount; row++) {
+			if (descriptor[row] == null || descriptor[row].length == 0)
+				mCountSum[row] = -1;
+			else
+				mCountSum[row] = pack(descriptor[row], mCount, row * WORDS_PER_ROW);
+			}
+		}
+
+	public int getRowCount() {
+		return mRowCount;
+		}
+
+	/**
+	 * Calculates the similarities of the query to all rows of the corpus.
+	 * @param query SkeletonSpheres descriptor
+	 * @param minSimilarity rows with lower similarity get 0.0 instead of the exact value
+	 * @param similarity receives the similarity of every row, NaN for failed rows and, if the
+	 * query has no counts, for rows without counts, as with DescriptorHandlerSkeletonSpheres
+	 * @return number of rows with a similarity of at least minSimilarity
+	 */
+	public int getSimilarities(byte[] query, float minSimilarity, float[] similarity) {
+		return getSimilarities(query, minSimilarity, 0, mRowCount, similarity);
+		}
+
+	/**
+	 * Calculates the similarities of the query to the rows from firstRow to lastRow-1.
+	 * Multiple threads may process different row ranges concurrently.
+	 * @param query SkeletonSpheres descriptor
+	 * @param minSimilarity rows with lower similarity get 0.0 instead of the exact value
+	 * @param firstRow
+	 * @param lastRow
+	 * @param similarity receives the similarity of every row at the row's index
+	 * @return number of rows in the range with a similarity of at least minSimilarity
+	 */
+	public int getSimilarities(byte[] query, float minSimilarity, int firstRow, int lastRow, float[] similarity) {
+		if (query == null || query.length == 0) {
+			for (int row=firstRow; row<lastRow; row++)
+				similarity[row] = Float.NaN;
+			return 0;
+			}
+
+		long[] queryCount = new long[WORDS_PER_ROW];
+		int querySum = pack(query, queryCount, 0);
+
+		// the lowest unnormalized similarity, which may still reach minSimilarity after normalization
+		double minRatio = (minSimilarity <= 0f) ? 0.0 : Math.max(0.0, getUnnormalizedValue(minSimilarity) - 1e-6);
+
+		int count = 0;
+		for (int row=firstRow; row<lastRow; row++) {
+			int rowSum = mCountSum[row];
+			if (rowSum == -1) {
+				similarity[row] = Float.NaN;
+				continue;
+				}
+
+			// two empty descriptors give 0/0, which the handler returns as NaN
+			if (querySum == 0 && rowSum == 0) {
+				similarity[row] = Float.NaN;
+				continue;
+				}
+
+			if (minRatio != 0.0
+			 && (double)Math.min(querySum, rowSum) < minRatio * Math.max(querySum, rowSum)) {
+				similarity[row] = 0f;
+				continue;
+				}
+
+			int matching = getMinCountSum(queryCount, mCount, row * WORDS_PER_ROW);
+			int total = querySum + rowSum - matching;
+			double ratio = (double)matching / (double)total;
+			float s = (ratio < minRatio) ? 0f : DescriptorHandlerSkeletonSpheres.normalizeValue(ratio);
+			if (s >= minSimilarity) {
+				similarity[row] = s;
+				count++;
+				}
+			else {
+				similarity[row] = 0f;
+				}
+			}
+
+		return count;
+		}
+
+	/**
+	 * Calculates the sum over all min(count1,count2) of two packed descriptors.
+	 * Per byte lane the high bit of ((a | 0x80) - b) is set, if a >= b.
+	 * Lane sums of WORDS_PER_SUM words are accumulated before they are folded into one int.
+	 */
+	private static int getMinCountSum(long[] query, long[] corpus, int offset) {
+		int sum = 0;
+		for (int i=0; i<WORDS_PER_ROW; i+=WORDS_PER_SUM) {
+			long laneSum = 0;
+			for (int j=i; j<i+WORDS_PER_SUM; j++) {
+				long a = query[j];
+				long b = corpus[offset+j];
+				long isGE = ((a | HIGH_BITS) - b) & HIGH_BITS;
+				long mask = isGE - (isGE >>> 7);	// 0x7F in lanes with a >= b
+				laneSum += (b & mask) | (a & ~mask);
+				}
+			long pairSum = (laneSum & LOW_BYTES) + ((laneSum >>> 8) & LOW_BYTES);
+			sum += (int)((pairSum * 0x0001000100010001L) >>> 48);
+			}
+		return sum;
+		}
+
+	/**
+	 * Packs 1024 counts into 128 longs at the given offset.
+	 * @return sum of all counts
+	 */
+	private static int pack(byte[] descriptor, long[] packed, int offset) {
+		if (descriptor.length != 8 * WORDS_PER_ROW)
+			throw new IllegalArgumentException("unexpected descriptor size");
+
+		int sum = 0;
+		for (int i=0; i<WORDS_PER_ROW; i++) {
+			long word = 0;
+			for (int j=7; j>=0; j--) {
+				int count = descriptor[8*i+j];
+				if (count < 0 || count > DescriptorEncoder.MAX_COUNT_VALUE)
+					throw new IllegalArgumentException("count out of range");
+				word = (word << 8) | count;
+				sum += count;
+				}
+			packed[offset+i] = word;
+			}
+		return sum;
+		}
+
+	/**
+	 * Inverse of DescriptorHandlerSkeletonSpheres.normalizeValue()
+	 */
+	private static double getUnnormalizedValue(float value) {
+		if (value >= 1f)
+			return 1.0;
+		double c = DescriptorHandlerSkeletonSpheres.CORRECTION_FACTOR;
+		return Math.pow(1.0 - Math.pow(1.0 - value, c), 1.0 / c);
+		}
+	}
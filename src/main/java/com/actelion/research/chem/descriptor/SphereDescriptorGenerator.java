@@ -0,0 +1,140 @@
+/*
+* Copyright (c) 1997 - 2016
+* Actelion Pharmaceuticals Ltd.
+* Gewerbestrasse 16
+* CH-4123 Allschwil, Switzerland
+*
+* All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without
+* modification, are permitted provided that the following conditions are met:
+*
+* 1. Redistributions of source code must retain the above copyright notice, this
+*    list of conditions and the following disclaimer.
+* 2. Redistributions in binary form must reproduce the above copyright notice,
+*    this list of conditions and the following disclaimer in the documentation
+*    and/or other materials provided with the distribution.
+* 3. Neither the name of the the copyright holder nor the
+*    names of its contributors may be used to endorse or promote products
+*    derived from this software without specific prior written permission.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+* ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+* WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+* DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+* ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+* (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+* LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+* ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+* (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+* SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*
+*/
+
+package com.actelion.research.chem.descriptor;
+
+import com.actelion.research.chem.Canonizer;
+import com.actelion.research.chem.StereoMolecule;
+import com.actelion.research.util.datamodel.IntVec;
+
+/**
+ * SphereDescriptorGenerator creates multiple sphere based descriptors of a molecule
+ * in one pass. The HashedCFp and the exact part of the SkeletonSpheres descriptor share
+ * the same fragment idcodes, and all descriptors share the sphere growth and fragment
+ * creation. Results are identical to those of the respective DescriptorHandlers and of
+ * HoseCodeCreator.getHoseCodes() with type FULL_HOSE_CODE. Like these, the generator
+ * takes fragment idcodes from the default FragmentIDCodeCache.
+ * A generator reuses its buffers for all molecules, but must not be used by
+ * multiple threads concurrently.
+ */
+public class SphereDescriptorGenerator {
+	public static final int MODE_HASHED_CFP = 1;
+	public static final int MODE_SKELETON_SPHERES = 2;
+	public static final int MODE_HOSE_CODES = 4;
+
+	private int mMode,mHoseSphereCount;
+	private AtomSphereEnumerator mEnumerator;
+	private int[] mHashedCFp;
+	private byte[] mSkeletonSpheres;
+	private String[][] mHoseCodes;
+
+	/**
+	 * @param mode one or more of MODE_HASHED_CFP, MODE_SKELETON_SPHERES
+	 */
+	public SphereDescriptorGenerator(int mode) {
+		this(mode, 0);
+		}
+
+	/**
+	 * @param mode one or more of MODE_HASHED_CFP, MODE_SKELETON_SPHERES, MODE_HOSE_CODES
+	 * @param hoseSphereCount maximum number of spheres of HOSE codes
+	 */
+	public SphereDescriptorGenerator(int mode, int hoseSphereCount) {
+		mMode = mode;
+		mHoseSphereCount = ((mode & MODE_HOSE_CODES) != 0) ? hoseSphereCount : 0;
+
+		int maxSphereCount = mHoseSphereCount;
+		if ((mode & MODE_HASHED_CFP) != 0)
+			maxSphereCount = Math.max(maxSphereCount, DescriptorHandlerHashedCFp.SPHERE_COUNT);
+		if ((mode & MODE_SKELETON_SPHERES) != 0)
+			maxSphereCount = Math.max(maxSphereCount, DescriptorHandlerSkeletonSpheres.MAX_SPHERE_COUNT);
+		mEnumerator = new AtomSphereEnumerator(maxSphereCount);
+		mEnumerator.setIDCodeCache(FragmentIDCodeCache.getDefaultInstance());
+		}
+
+	/**
+	 * Creates all descriptors selected by the mode, which then can be retrieved by the getters.
+	 * This descriptor requires proper up/down bonds, because it encodes stereo parities.
+	 * @param mol
+	 */
+	public void generate(StereoMolecule mol) {
+		mEnumerator.setMolecule(mol);
+
+		IntVec iv = ((mMode & MODE_HASHED_CFP) == 0) ? null
+				: new IntVec(DescriptorHandlerHashedCFp.DESCRIPTOR_SIZE / Integer.SIZE);
+		mSkeletonSpheres = ((mMode & MODE_SKELETON_SPHERES) == 0) ? null
+				: new byte[DescriptorHandlerSkeletonSpheres.DESCRIPTOR_SIZE];
+		mHoseCodes = ((mMode & MODE_HOSE_CODES) == 0) ? null
+				: new String[mol.getAtoms()][];
+
+		String[] hoseCode = new String[mHoseSphereCount];
+		for (int rootAtom=0; rootAtom<mol.getAtoms(); rootAtom++) {
+			mEnumerator.setRootAtom(rootAtom);
+			while (mEnumerator.nextSphere()) {
+				if (iv != null)
+					DescriptorHandlerHashedCFp.addSphere(mEnumerator, iv);
+				if (mSkeletonSpheres != null)
+					DescriptorHandlerSkeletonSpheres.addSphere(mEnumerator, mSkeletonSpheres);
+				if (mHoseCodes != null && mEnumerator.getSphere() < mHoseSphereCount)
+					hoseCode[mEnumerator.getSphere()] = mEnumerator.getIDCode(Canonizer.ENCODE_ATOM_CUSTOM_LABELS);
+				}
+			if (mHoseCodes != null) {
+				mHoseCodes[rootAtom] = new String[Math.min(mHoseSphereCount, mEnumerator.getSphere()+1)];
+				System.arraycopy(hoseCode, 0, mHoseCodes[rootAtom], 0, mHoseCodes[rootAtom].length);
+				}
+			}
+
+		mHashedCFp = (iv == null) ? null : iv.get();
+		}
+
+	/**
+	 * @return HashedCFp descriptor of the last generated molecule or null
+	 */
+	public int[] getHashedCFp() {
+		return mHashedCFp;
+		}
+
+	/**
+	 * @return SkeletonSpheres descriptor of the last generated molecule or null
+	 */
+	public byte[] getSkeletonSpheres() {
+		return mSkeletonSpheres;
+		}
+
+	/**
+	 * @return for every atom the full HOSE codes of all its spheres or null
+	 */
+	public String[][] getHoseCodes() {
+		return mHoseCodes;
+		}
+	}
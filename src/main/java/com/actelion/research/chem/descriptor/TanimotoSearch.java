@@ -0,0 +1,226 @@
+/*
+* Copyright (c) 1997 - 2016
+* Actelion Pharmaceuticals Ltd.
+* Gewerbestrasse 16
+* CH-4123 Allschwil, Switzerland
+*
+* All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without
+* modification, are permitted provided that the following conditions are met:
+*
+* 1. Redistributions of source code must retain the above copyright notice, this
+*    list of conditions and the following disclaimer.
+* 2. Redistributions in binary form must reproduce the above copyright notice,
+*    this list of conditions and the following disclaimer in the documentation
+*    and/or other materials provided with the distribution.
+* 3. Neither the name of the the copyright holder nor the
+*    names of its contributors may be used to endorse or promote products
+*    derived from this software without specific prior written permission.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+* ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+* WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+* DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+* ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+* (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+* LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+* ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+* (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+* SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*
+*/
+
+package com.actelion.research.chem.descriptor;
+
+/**
+ * TanimotoSearch finds the k most similar rows of a corpus of binary fingerprints,
+ * e.g. FFP512, PFP512 or HashedCFp, without scoring every row. The fingerprints are kept
+ * in one packed array grouped into buckets of equal bit count. For a query with a bits
+ * no row with b bits can reach a Tanimoto similarity above min(a,b)/max(a,b)
+ * (Swamidass and Baldi). Buckets are visited in order of decreasing bound and the
+ * search stops as soon as the bound of the next bucket is below the current k-th similarity.
+ * Similarity values are identical to those of SSSearcherWithIndex.getSimilarityTanimoto().
+ * A TanimotoSearch is immutable after construction and may be searched by multiple threads.
+ */
+public class TanimotoSearch {
+	private int mIntsPerFP,mRowCount;
+	private int[] mFingerprint;	// all fingerprints in bucket order
+	private int[] mRow;			// original row index of every fingerprint in bucket order
+	private int[] mBucketStart;	// first position of every bit count bucket; mBucketStart[bits+1] is the end
+
+	/**
+	 * Creates a search engine over the given fingerprints. Rows with null or
+	 * empty fingerprints (failed calculations) are never returned.
+	 * @param fingerprint corpus of fingerprints, all having the same number of ints
+	 */
+	public TanimotoSearch(int[][] fingerprint) {
+		for (int[] fp:fingerprint) {
+			if (fp != null && fp.length != 0) {
+				if (mIntsPerFP == 0)
+					mIntsPerFP = fp.length;
+				else if (fp.length != mIntsPerFP)
+					throw new IllegalArgumentException("fingerprints differ in size");
+				mRowCount++;
+				}
+			}
+
+		if ((long)mRowCount * mIntsPerFP > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("too many fingerprints");
+
+		int maxBits = 32 * mIntsPerFP;
+		mBucketStart = new int[maxBits+2];
+		int[] bitCount = new int[fingerprint.length];
+		for (int row=0; row<fingerprint.length; row++) {
+			if (fingerprint[row] != null && fingerprint[row].length != 0) {
+				bitCount[row] = getBitCount(fingerprint[row]);
+				mBucketStart[bitCount[row]+1]++;
+				}
+			}
+		for (int bits=1; bits<mBucketStart.length; bits++)
+			mBucketStart[bits] += mBucketStart[bits-1];
+
+		mFingerprint = new int[mRowCount * mIntsPerFP];
+		mRow = new int[mRowCount];
+		int[] position = new int[maxBits+1];
+		System.arraycopy(mBucketStart, 0, position, 0, maxBits+1);
+		for (int row=0; row<fingerprint.length; row++) {
+			if (fingerprint[row] != null && fingerprint[row].length != 0) {
+				int p = position[bitCount[row]]++;
+				mRow[p] = row;
+				System.arraycopy(fingerprint[row], 0, mFingerprint, p * mIntsPerFP, mIntsPerFP);
+				}
+			}
+		}
+
+	/**
+	 * @return number of searchable rows, i.e. rows with valid fingerprint
+	 */
+	public int getRowCount() {
+		return mRowCount;
+		}
+
+	/**
+	 * Finds the rows being most similar to the query. Rows are ranked by decreasing similarity
+	 * and, in case of equal similarity, by increasing row index.
+	 * @param query fingerprint of the same kind and size as the corpus fingerprints
+	 * @param k maximum number of rows to return
+	 * @param minSimilarity rows with a lower similarity are not returned
+	 * @param row receives the k (or less) most similar rows; must be able to hold k values
+	 * @param similarity receives the similarities of the returned rows; must be able to hold k values
+	 * @return number of rows found
+	 */
+	public int findMostSimilar(int[] query, int k, float minSimilarity, int[] row, float[] similarity) {
+		if (query == null || query.length != mIntsPerFP || k <= 0 || mRowCount == 0)
+			return 0;
+
+		int queryBits = getBitCount(query);
+		if (queryBits == 0)
+			return 0;
+
+		int maxBits = mBucketStart.length - 2;
+		int lower = Math.min(queryBits, maxBits);	// next bucket below or at query bit count
+		int upper = lower + 1;						// next bucket above query bit count
+		int count = 0;	// rows in heap; row[0] and similarity[0] is the worst one
+		while (lower >= 0 || upper <= maxBits) {
+			float lowerBound = (lower >= 0) ? (float)lower / (float)queryBits : -1f;
+			float upperBound = (upper <= maxBits) ? (float)queryBits / (float)upper : -1f;
+			int bits;
+			float bound;
+			if (lowerBound >= upperBound) {
+				bits = lower--;
+				bound = lowerBound;
+				}
+			else {
+				bits = upper++;
+				bound = upperBound;
+				}
+
+			if (bound < minSimilarity
+			 || (count == k && bound < similarity[0]))
+				break;	// all remaining buckets have a lower bound
+
+			for (int p=mBucketStart[bits]; p<mBucketStart[bits+1]; p++) {
+				int offset = p * mIntsPerFP;
+				int sharedBits = 0;
+				for (int i=0; i<mIntsPerFP; i++)
+					sharedBits += Integer.bitCount(query[i] & mFingerprint[offset+i]);
+				float s = (float)sharedBits / (float)(queryBits + bits - sharedBits);
+				if (s < minSimilarity)
+					continue;
+
+				if (count < k) {
+					row[count] = mRow[p];
+					similarity[count] = s;
+					siftUp(row, similarity, count++);
+					}
+				else if (isBetter(s, mRow[p], similarity[0], row[0])) {
+					row[0] = mRow[p];
+					similarity[0] = s;
+					siftDown(row, similarity, count);
+					}
+				}
+			}
+
+		// heap sort: repeatedly move the worst remaining hit behind the heap
+		for (int size=count-1; size>0; size--) {
+			swap(row, similarity, 0, size);
+			siftDown(row, similarity, size);
+			}
+
+		return count;
+		}
+
+	private static boolean isBetter(float s1, int row1, float s2, int row2) {
+		return s1 > s2 || (s1 == s2 && row1 < row2);
+		}
+
+	/**
+	 * Moves the hit at index i up in the heap, in which every parent is worse than its children.
+	 */
+	private static void siftUp(int[] row, float[] similarity, int i) {
+		while (i > 0) {
+			int parent = (i - 1) >>> 1;
+			if (!isBetter(similarity[parent], row[parent], similarity[i], row[i]))
+				break;
+			swap(row, similarity, i, parent);
+			i = parent;
+			}
+		}
+
+	/**
+	 * Moves the hit at index 0 down in the heap of the given size.
+	 */
+	private static void siftDown(int[] row, float[] similarity, int size) {
+		int i = 0;
+		while (true) {
+			int worst = i;
+			int child = 2*i+1;
+			if (child < size && isBetter(similarity[worst], row[worst], similarity[child], row[child]))
+				worst = child;
+			child++;
+			if (child < size && isBetter(similarity[worst], row[worst], similarity[child], row[child]))
+				worst = child;
+			if (worst == i)
+				return;
+			swap(row, similarity, i, worst);
+			i = worst;
+			}
+		}
+
+	private static void swap(int[] row, float[] similarity, int i, int j) {
+		int r = row[i];
+		row[i] = row[j];
+		row[j] = r;
+		float s = similarity[i];
+		similarity[i] = similarity[j];
+		similarity[j] = s;
+		}
+
+	private static int getBitCount(int[] fp) {
+		int count = 0;
+		for (int i=0; i<fp.length; i++)
+			count += Integer.bitCount(fp[i]);
+		return count;
+		}
+	}
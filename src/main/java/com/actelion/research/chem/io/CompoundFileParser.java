@@ -90,6 +90,7 @@ public abstract class CompoundFileParser {
     /**
      * Closes the underlying reader. Call this, if you don't read all records of the file.
      * The reader is closed automatically after the last record has been read.
+     * This also releases the calling thread's Canonizer used to create idcodes.
      */
     public final void close() {
     	if (mReader != null) {
@@ -98,6 +99,7 @@ public abstract class CompoundFileParser {
     			}
     		catch (IOException ioe) {}
     		}
+    	Canonizer.releaseThreadCanonizer();
     	}
 
     /**
@@ -163,7 +165,7 @@ public abstract class CompoundFileParser {
                 StereoMolecule mol = new StereoMolecule(getMolecule());
                 mol.normalizeAmbiguousBonds();
                 mol.canonizeCharge(true);
-                Canonizer canonizer = new Canonizer(mol);
+                Canonizer canonizer = Canonizer.getThreadCanonizer(mol, 0);
                 mIDCode = canonizer.getIDCode();
                 mCoords = canonizer.getEncodedCoordinates();
                 }
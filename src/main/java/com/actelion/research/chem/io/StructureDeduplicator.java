@@ -0,0 +1,709 @@
+/*
+* Copyright (c) 1997 - 2016
+* Actelion Pharmaceuticals Ltd.
+* Gewerbestrasse 16
+* CH-4123 Allschwil, Switzerland
+*
+* All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without
+* modification, are permitted provided that the following conditions are met:
+*
+* 1. Redistributions of source code must retain the above copyright notice, this
+*    list of conditions and the following disclaimer.
+* 2. Redistributions in binary form must reproduce the above copyright notice,
+*    this list of conditions and the following disclaimer in the documentation
+*    and/or other materials provided with the distribution.
+* 3. Neither the name of the the copyright holder nor the
+*    names of its contributors may be used to endorse or promote products
+*    derived from this software without specific prior written permission.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+* ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+* WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+* DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+* ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+* (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+* LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+* ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+* (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+* SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*
+*/
+
+package com.actelion.research.chem.io;
+
+import com.actelion.research.chem.Canonizer;
+import com.actelion.research.chem.IDCodeParser;
+import com.actelion.research.chem.MolfileParser;
+import com.actelion.research.chem.StereoMolecule;
+import com.actelion.research.util.Hash128Set;
+import com.actelion.research.util.MurmurHash3;
+
+import java.io.*;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * StructureDeduplicator finds the distinct structures in arbitrarily large streams of
+ * compound records read by an SDFileParser, any other CompoundFileParser or from idcode
+ * lists. Structures are keyed by their 128-bit canonical hash (Canonizer.getCanonicalHash128()),
+ * which is kept in an off-heap Hash128Set together with the index of the first record.
+ * Thus, the Java heap use does not grow with the number of records.<br>
+ * Records are read in the calling thread and canonized in batches by multiple worker
+ * threads. Results are applied in input order, such that the first record of every
+ * structure is reported as unique and all later ones as its duplicates. Molfiles are
+ * normalized like CompoundFileParser does before creating idcodes. Idcodes are considered
+ * canonical and are hashed directly, unless setRecanonizeIDCodes(true) is used.<br>
+ * If the hash set is full, records with new keys are spilled to partition files in the
+ * temp directory, each one receiving the records of a 1/16 range of hash values. After
+ * the input was read, every partition file is processed with the emptied hash set;
+ * partitions, which still don't fit, are recursively split again. Records resolved while
+ * reading the input are reported immediately; spilled records are reported afterwards.<br>
+ * Two different structures sharing the same 128-bit hash are practically excluded.
+ * Optionally, every presumed duplicate is verified by comparing its idcode to the idcode
+ * of the first record, which are kept in a temporary file. Should hashes really collide,
+ * then the later record is reported as unique and counted as collision. Its idcode is kept
+ * in a small in-memory map, such that further copies of it are reported as its duplicates.<br>
+ * All listener methods are called from the thread that called deduplicate().
+ */
+public class StructureDeduplicator {
+	public static final long DEFAULT_MEMORY = 256L << 20;
+
+	private static final int BATCH_SIZE = 256;
+	private static final int PARTITION_BITS = 4;
+	private static final int PARTITION_COUNT = 1 << PARTITION_BITS;
+	private static final int MAX_PARTITION_DEPTH = 64 / PARTITION_BITS - 1;
+	private static final int ENTRY_BYTES = 32;
+	private static final int STREAM_BUFFER_SIZE = 1 << 16;
+
+	private static final int TYPE_MOLFILE = 0;
+	private static final int TYPE_IDCODE = 1;
+
+	private long mMemory;
+	private int mThreadCount;
+	private boolean mVerifyCollisions,mRecanonizeIDCodes;
+	private File mTempDirectory;
+
+	private Hash128Set mHashSet;
+	private IDCodeStore mIDCodeStore;
+	private StructureDeduplicatorListener mListener;
+	private ArrayList<File> mTempFileList;
+	private HashMap<HashKey,ArrayList<CollidingStructure>> mCollisionMap;
+	private long mRecordCount,mUniqueCount,mDuplicateCount,mFailedCount,mCollisionCount,mSpilledCount;
+
+	/**
+	 * Creates a StructureDeduplicator, whose hash set uses DEFAULT_MEMORY of off-heap memory.
+	 */
+	public StructureDeduplicator() {
+		this(DEFAULT_MEMORY);
+		}
+
+	/**
+	 * @param memory maximum off-heap memory in bytes used by the hash set, which needs 32 bytes
+	 * per slot and holds about 22 million structures per GB before spilling to disk
+	 */
+	public StructureDeduplicator(long memory) {
+		mMemory = memory;
+		mThreadCount = Runtime.getRuntime().availableProcessors();
+		}
+
+	/**
+	 * @param threadCount number of canonicalization threads; default is the number of available processors
+	 */
+	public void setThreadCount(int threadCount) {
+		mThreadCount = Math.max(1, threadCount);
+		}
+
+	/**
+	 * @param verify if true, every duplicate's idcode is compared to the one of its first record
+	 */
+	public void setVerifyCollisions(boolean verify) {
+		mVerifyCollisions = verify;
+		}
+
+	/**
+	 * Idcodes created by current versions of the Canonizer are canonical, which allows
+	 * hashing them directly. Idcodes from other sources, e.g. from old versions or created
+	 * without normalizing charges and ambiguous bonds, may differ for the same structure.
+	 * Recanonizing them is much slower, because coordinates must be generated.
+	 * @param recanonize if true, idcodes are parsed and canonized again
+	 */
+	public void setRecanonizeIDCodes(boolean recanonize) {
+		mRecanonizeIDCodes = recanonize;
+		}
+
+	/**
+	 * @param directory for partition files and idcodes to be verified; null for the default temp directory
+	 */
+	public void setTempDirectory(File directory) {
+		mTempDirectory = directory;
+		}
+
+	/**
+	 * Reads all records of the parser and reports every record to the listener.
+	 * Molfiles of an SDFileParser are canonized by the worker threads; with any other
+	 * CompoundFileParser the idcode of every record is used.
+	 * @param parser
+	 * @param listener
+	 * @return number of distinct structures
+	 * @throws IOException
+	 */
+	public long deduplicate(final CompoundFileParser parser, StructureDeduplicatorListener listener) throws IOException {
+		final boolean isSDFile = (parser instanceof SDFileParser);
+		return deduplicate(new RecordReader(isSDFile ? TYPE_MOLFILE : TYPE_IDCODE) {
+			public String next() {
+				if (!parser.next())
+					return null;
+				String text = isSDFile ? ((SDFileParser)parser).getNextMolFile() : parser.getIDCode();
+				return (text == null) ? "" : text;
+				}
+			}, listener);
+		}
+
+	/**
+	 * Reads idcodes from the first TAB-delimited column of every line and reports every line
+	 * to the listener. Record indexes are line indexes; empty lines are reported as failed.
+	 * @param reader
+	 * @param listener
+	 * @return number of distinct structures
+	 * @throws IOException
+	 */
+	public long deduplicate(final BufferedReader reader, StructureDeduplicatorListener listener) throws IOException {
+		return deduplicate(new RecordReader(TYPE_IDCODE) {
+			public String next() throws IOException {
+				String line = reader.readLine();
+				if (line == null)
+					return null;
+				int index = line.indexOf('\t');
+				return (index == -1) ? line.trim() : line.substring(0, index);
+				}
+			}, listener);
+		}
+
+	public long getRecordCount() {
+		return mRecordCount;
+		}
+
+	public long getUniqueCount() {
+		return mUniqueCount;
+		}
+
+	public long getDuplicateCount() {
+		return mDuplicateCount;
+		}
+
+	public long getFailedCount() {
+		return mFailedCount;
+		}
+
+	/**
+	 * @return number of distinct structures, whose hash matched the one of an earlier, different structure; always 0 if not verifying
+	 */
+	public long getCollisionCount() {
+		return mCollisionCount;
+		}
+
+	/**
+	 * @return number of records, that were written to partition files, because the hash set was full
+	 */
+	public long getSpilledRecordCount() {
+		return mSpilledCount;
+		}
+
+	private long deduplicate(RecordReader reader, StructureDeduplicatorListener listener) throws IOException {
+		mListener = listener;
+		mRecordCount = 0;
+		mUniqueCount = 0;
+		mDuplicateCount = 0;
+		mFailedCount = 0;
+		mCollisionCount = 0;
+		mSpilledCount = 0;
+		mTempFileList = new ArrayList<File>();
+		mCollisionMap = new HashMap<HashKey,ArrayList<CollidingStructure>>();
+
+		if (mHashSet == null || mHashSet.getCapacity() != Hash128Set.getCapacityForMemory(mMemory))
+			mHashSet = new Hash128Set(Hash128Set.getCapacityForMemory(mMemory));
+		else
+			mHashSet.clear();
+
+		PartitionWriter spillWriter = new PartitionWriter(0);
+		Worker[] worker = new Worker[mThreadCount];
+		try {
+			if (mVerifyCollisions)
+				mIDCodeStore = new IDCodeStore(createTempFile());
+
+			ArrayBlockingQueue<Batch> queue = new ArrayBlockingQueue<Batch>(2*mThreadCount);
+			for (int i=0; i<worker.length; i++) {
+				worker[i] = new Worker(queue, reader.mType);
+				worker[i].start();
+				}
+
+			ArrayDeque<Batch> pendingList = new ArrayDeque<Batch>();
+			Batch batch = null;
+			while (true) {
+				String text = reader.next();
+				if (text == null)
+					break;
+
+				if (batch == null)
+					batch = new Batch(mRecordCount);
+				batch.mText[batch.mSize++] = text;
+				mRecordCount++;
+
+				if (batch.mSize == BATCH_SIZE) {
+					queue.put(batch);
+					pendingList.add(batch);
+					batch = null;
+
+					// apply results in input order without letting too many batches pile up
+					while (!pendingList.isEmpty()
+						&& (pendingList.size() > 4*mThreadCount || pendingList.peek().isDone()))
+						applyBatch(pendingList.poll(), spillWriter);
+					}
+				}
+
+			if (batch != null) {
+				queue.put(batch);
+				pendingList.add(batch);
+				}
+			while (!pendingList.isEmpty())
+				applyBatch(pendingList.poll(), spillWriter);
+
+			processPartitions(spillWriter);
+			}
+		catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Deduplication was interrupted");
+			}
+		finally {
+			for (int i=0; i<worker.length; i++)
+				if (worker[i] != null)
+					worker[i].interrupt();
+
+			spillWriter.close();
+			if (mIDCodeStore != null) {
+				mIDCodeStore.close();
+				mIDCodeStore = null;
+				}
+			for (File file:mTempFileList)
+				file.delete();
+			mTempFileList = null;
+			mCollisionMap = null;
+			mListener = null;
+			}
+
+		return mUniqueCount;
+		}
+
+	private void applyBatch(Batch batch, PartitionWriter spillWriter) throws IOException, InterruptedException {
+		batch.waitUntilDone();
+		if (batch.mThrowable != null) {
+			if (batch.mThrowable instanceof Error)
+				throw (Error)batch.mThrowable;
+			if (batch.mThrowable instanceof RuntimeException)
+				throw (RuntimeException)batch.mThrowable;
+			throw new IOException("Structure deduplication failed", batch.mThrowable);
+			}
+
+		for (int i=0; i<batch.mSize; i++) {
+			long record = batch.mFirstRecord + i;
+			if (batch.mIsFailed[i]) {
+				mFailedCount++;
+				mListener.recordFailed(record);
+				continue;
+				}
+
+			long h1 = batch.mHash[2*i];
+			long h2 = batch.mHash[2*i+1];
+			String idcode = (batch.mIDCode == null) ? null : batch.mIDCode[i];
+			long slot = mHashSet.find(h1, h2);
+			if (slot != -1) {
+				reportDuplicate(record, slot, h1, h2, idcode);
+				continue;
+				}
+
+			long offset = (mIDCodeStore == null) ? -1 : mIDCodeStore.add(idcode);
+			if (!mHashSet.isFull()) {
+				mHashSet.add(h1, h2, record, offset);
+				reportUnique(record);
+				}
+			else {
+				spillWriter.write(h1, h2, record, offset);
+				mSpilledCount++;
+				}
+			}
+		}
+
+	/**
+	 * Processes all partition files of the writer with an empty hash set each.
+	 * Records of a partition, which don't fit into the hash set anymore, are
+	 * written into partitions of the next level, which are processed recursively.
+	 */
+	private void processPartitions(PartitionWriter writer) throws IOException {
+		File[] file = writer.close();
+		for (int partition=0; partition<PARTITION_COUNT; partition++) {
+			if (file[partition] == null)
+				continue;
+
+			if (mHashSet.size() != 0)
+				mHashSet.clear();
+
+			PartitionWriter subWriter = new PartitionWriter(writer.mDepth+1);
+			try {
+				DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file[partition]), STREAM_BUFFER_SIZE));
+				try {
+					long entries = file[partition].length() / ENTRY_BYTES;
+					for (long i=0; i<entries; i++) {
+						long h1 = in.readLong();
+						long h2 = in.readLong();
+						long record = in.readLong();
+						long offset = in.readLong();
+						long slot = mHashSet.find(h1, h2);
+						if (slot != -1) {
+							reportDuplicate(record, slot, h1, h2, (mIDCodeStore == null) ? null : mIDCodeStore.get(offset));
+							}
+						else if (!mHashSet.isFull()) {
+							mHashSet.add(h1, h2, record, offset);
+							reportUnique(record);
+							}
+						else {
+							subWriter.write(h1, h2, record, offset);
+							}
+						}
+					}
+				finally {
+					in.close();
+					file[partition].delete();
+					}
+
+				processPartitions(subWriter);
+				}
+			finally {
+				subWriter.close();
+				}
+			}
+		}
+
+	private void reportUnique(long record) {
+		mUniqueCount++;
+		mListener.uniqueStructureFound(record);
+		}
+
+	private void reportDuplicate(long record, long slot, long h1, long h2, String idcode) throws IOException {
+		long firstRecord = mHashSet.getValue1(slot);
+		if (mIDCodeStore != null
+		 && !idcode.equals(mIDCodeStore.get(mHashSet.getValue2(slot)))) {
+			firstRecord = findCollidingStructure(h1, h2, idcode, record);
+			if (firstRecord == -1) {
+				mCollisionCount++;
+				reportUnique(record);
+				return;
+				}
+			}
+
+		mDuplicateCount++;
+		mListener.duplicateFound(record, firstRecord);
+		}
+
+	/**
+	 * Looks up a structure, whose hash collided with the one of an earlier, different structure.
+	 * If it is not found, then it is added to the collision map with record as first record.
+	 * @return first record of the structure or -1, if it was not found
+	 */
+	private long findCollidingStructure(long h1, long h2, String idcode, long record) {
+		HashKey key = new HashKey(h1, h2);
+		ArrayList<CollidingStructure> list = mCollisionMap.get(key);
+		if (list == null) {
+			list = new ArrayList<CollidingStructure>(1);
+			mCollisionMap.put(key, list);
+			}
+		for (CollidingStructure structure:list)
+			if (structure.mIDCode.equals(idcode))
+				return structure.mFirstRecord;
+
+		list.add(new CollidingStructure(idcode, record));
+		return -1;
+		}
+
+	private File createTempFile() throws IOException {
+		File file = File.createTempFile("dedup", ".tmp", mTempDirectory);
+		mTempFileList.add(file);
+		return file;
+		}
+
+	private static abstract class RecordReader {
+		private int mType;
+
+		public RecordReader(int type) {
+			mType = type;
+			}
+
+		/**
+		 * @return molfile or idcode of the next record, "" if it has no structure, or null at the end of the input
+		 */
+		public abstract String next() throws IOException;
+		}
+
+	private static class HashKey {
+		private long mH1,mH2;
+
+		public HashKey(long h1, long h2) {
+			mH1 = h1;
+			mH2 = h2;
+			}
+
+		@Override
+		public int hashCode() {
+			return (int)(mH1 ^ (mH1 >>> 32));
+			}
+
+		@Override
+		public boolean equals(Object o) {
+			return o instanceof HashKey && ((HashKey)o).mH1 == mH1 && ((HashKey)o).mH2 == mH2;
+			}
+		}
+
+	private static class CollidingStructure {
+		private String mIDCode;
+		private long mFirstRecord;
+
+		public CollidingStructure(String idcode, long firstRecord) {
+			mIDCode = idcode;
+			mFirstRecord = firstRecord;
+			}
+		}
+
+	private class Batch {
+		private String[] mText,mIDCode;
+		private long[] mHash;
+		private boolean[] mIsFailed;
+		private long mFirstRecord;
+		private int mSize;
+		private boolean mIsDone;
+		private Throwable mThrowable;	// set by the worker, if the batch could not be processed
+
+		public Batch(long firstRecord) {
+			mFirstRecord = firstRecord;
+			mText = new String[BATCH_SIZE];
+			mHash = new long[2*BATCH_SIZE];
+			mIsFailed = new boolean[BATCH_SIZE];
+			if (mVerifyCollisions)
+				mIDCode = new String[BATCH_SIZE];
+			}
+
+		public synchronized boolean isDone() {
+			return mIsDone;
+			}
+
+		public synchronized void setDone() {
+			mIsDone = true;
+			notifyAll();
+			}
+
+		public synchronized void waitUntilDone() throws InterruptedException {
+			while (!mIsDone)
+				wait();
+			}
+		}
+
+	private class Worker extends Thread {
+		private ArrayBlockingQueue<Batch> mQueue;
+		private int mType;
+		private MolfileParser mMolfileParser;
+		private IDCodeParser mIDCodeParser;
+		private StereoMolecule mMol;
+		private MurmurHash3 mHash;
+
+		public Worker(ArrayBlockingQueue<Batch> queue, int type) {
+			super("StructureDeduplicator");
+			setDaemon(true);
+			mQueue = queue;
+			mType = type;
+			mMolfileParser = new MolfileParser();
+			mIDCodeParser = new IDCodeParser(true);
+			mMol = new StereoMolecule();
+			mHash = new MurmurHash3();
+			}
+
+		public void run() {
+			while (true) {
+				Batch batch;
+				try {
+					batch = mQueue.take();
+					}
+				catch (InterruptedException ie) {
+					return;
+					}
+
+				// setDone() must be called in any case, because the reading thread waits for it
+				try {
+					for (int i=0; i<batch.mSize; i++) {
+						try {
+							batch.mIsFailed[i] = !processRecord(batch, i);
+							}
+						catch (Exception e) {
+							batch.mIsFailed[i] = true;
+							}
+						batch.mText[i] = null;
+						}
+					}
+				catch (Throwable t) {
+					batch.mThrowable = t;	// rethrown by the reading thread
+					}
+				finally {
+					batch.setDone();
+					}
+				}
+			}
+
+		private boolean processRecord(Batch batch, int i) throws Exception {
+			String text = batch.mText[i];
+			if (text.length() == 0)
+				return false;
+
+			if (mType == TYPE_IDCODE && !mRecanonizeIDCodes) {
+				mHash.reset();
+				mHash.add(text);
+				batch.mHash[2*i] = mHash.finish();
+				batch.mHash[2*i+1] = mHash.getHash2();
+				if (batch.mIDCode != null)
+					batch.mIDCode[i] = text;
+				return true;
+				}
+
+			if (mType == TYPE_MOLFILE) {
+				if (!mMolfileParser.parse(mMol, text))
+					return false;
+				}
+			else {
+				mIDCodeParser.parse(mMol, text);
+				}
+
+			if (mMol.getAllAtoms() == 0)
+				return false;
+
+			mMol.normalizeAmbiguousBonds();
+			mMol.canonizeCharge(true);
+			Canonizer canonizer = Canonizer.getThreadCanonizer(mMol, 0);
+			if (batch.mIDCode != null)
+				batch.mIDCode[i] = canonizer.getIDCode();	// hash is then created from the idcode
+			long[] hash = canonizer.getCanonicalHash128();
+			batch.mHash[2*i] = hash[0];
+			batch.mHash[2*i+1] = hash[1];
+			return true;
+			}
+		}
+
+	/**
+	 * Distributes spilled records by PARTITION_BITS of their hash into partition files.
+	 * Every level uses the next lower bits of h1, while the Hash128Set uses the lowest ones.
+	 */
+	private class PartitionWriter {
+		private int mDepth;
+		private File[] mFile;
+		private DataOutputStream[] mStream;
+
+		public PartitionWriter(int depth) throws IOException {
+			if (depth > MAX_PARTITION_DEPTH)
+				throw new IOException("Too many partition levels");
+
+			mDepth = depth;
+			mFile = new File[PARTITION_COUNT];
+			mStream = new DataOutputStream[PARTITION_COUNT];
+			}
+
+		public void write(long h1, long h2, long record, long offset) throws IOException {
+			int partition = (int)(h1 >>> (64 - PARTITION_BITS * (mDepth+1))) & (PARTITION_COUNT - 1);
+			if (mStream[partition] == null) {
+				mFile[partition] = createTempFile();
+				mStream[partition] = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(mFile[partition]), STREAM_BUFFER_SIZE));
+				}
+
+			DataOutputStream out = mStream[partition];
+			out.writeLong(h1);
+			out.writeLong(h2);
+			out.writeLong(record);
+			out.writeLong(offset);
+			}
+
+		/**
+		 * @return partition files with null for empty partitions
+		 */
+		public File[] close() throws IOException {
+			for (int i=0; i<PARTITION_COUNT; i++) {
+				if (mStream[i] != null) {
+					mStream[i].close();
+					mStream[i] = null;
+					}
+				}
+			return mFile;
+			}
+		}
+
+	/**
+	 * Append-only file of idcodes, which are read back by their offset to verify duplicates.
+	 */
+	private static class IDCodeStore {
+		private RandomAccessFile mFile;
+		private byte[] mBuffer;
+		private int mBufferSize;
+		private long mFileSize;
+
+		public IDCodeStore(File file) throws IOException {
+			mFile = new RandomAccessFile(file, "rw");
+			mBuffer = new byte[STREAM_BUFFER_SIZE];
+			}
+
+		/**
+		 * @return offset of the idcode in the store
+		 */
+		public long add(String idcode) throws IOException {
+			int length = idcode.length();
+			if (mBufferSize + 4 + length > mBuffer.length) {
+				flush();
+				if (4 + length > mBuffer.length)
+					mBuffer = new byte[4 + length];
+				}
+
+			long offset = mFileSize + mBufferSize;
+			mBuffer[mBufferSize++] = (byte)(length >>> 24);
+			mBuffer[mBufferSize++] = (byte)(length >>> 16);
+			mBuffer[mBufferSize++] = (byte)(length >>> 8);
+			mBuffer[mBufferSize++] = (byte)length;
+			for (int i=0; i<length; i++)
+				mBuffer[mBufferSize++] = (byte)idcode.charAt(i);
+			return offset;
+			}
+
+		public String get(long offset) throws IOException {
+			if (offset >= mFileSize) {
+				int index = (int)(offset - mFileSize);
+				int length = ((mBuffer[index] & 0xFF) << 24) | ((mBuffer[index+1] & 0xFF) << 16)
+						   | ((mBuffer[index+2] & 0xFF) << 8) | (mBuffer[index+3] & 0xFF);
+				return new String(mBuffer, index+4, length, "ISO-8859-1");
+				}
+
+			mFile.seek(offset);
+			byte[] bytes = new byte[mFile.readInt()];
+			mFile.readFully(bytes);
+			return new String(bytes, "ISO-8859-1");
+			}
+
+		private void flush() throws IOException {
+			mFile.seek(mFileSize);
+			mFile.write(mBuffer, 0, mBufferSize);
+			mFileSize += mBufferSize;
+			mBufferSize = 0;
+			}
+
+		public void close() {
+			try {
+				mFile.close();
+				}
+			catch (IOException ioe) {}
+			}
+		}
+	}
@@ -36,14 +36,20 @@ package com.actelion.research.chem.prediction;
 import com.actelion.research.calc.ThreadMaster;
 import com.actelion.research.chem.IDCodeParser;
 import com.actelion.research.chem.SSSearcher;
+import com.actelion.research.chem.SSSearcherQuery;
 import com.actelion.research.chem.StereoMolecule;
 
+import java.lang.ref.SoftReference;
+import java.util.BitSet;
+
 public class DruglikenessPredictor {
 	public static final double cDruglikenessUnknown = -999;
 
     private static boolean			sInitialized = false;
 	private static IncrementTable	sIncrementTable;
+	private static SoftReference<SSSearcherQuery[]> sIncrementQuery;
 
+	private volatile SSSearcherQuery[] mIncrementQuery;
 	private ParameterizedStringList	mDetail;
 
 	public DruglikenessPredictor() {
@@ -61,6 +67,33 @@ public class DruglikenessPredictor {
 		}
 
 
+	/**
+	 * The fragment library is compiled into sub-structure queries on first use. These are
+	 * immutable and shared by all predictors. Once no predictor uses them anymore, they may
+	 * be released when memory gets low and are compiled again when needed.
+	 * @return compiled increment fragments
+	 */
+	private SSSearcherQuery[] getIncrementQueries() {
+		SSSearcherQuery[] query = mIncrementQuery;
+		if (query == null) {
+			synchronized(DruglikenessPredictor.class) {
+				query = (sIncrementQuery == null) ? null : sIncrementQuery.get();
+				if (query == null) {
+					query = new SSSearcherQuery[sIncrementTable.getSize()];
+					StereoMolecule fragment = new StereoMolecule();
+					for (int i=0; i<query.length; i++) {
+						new IDCodeParser(false).parse(fragment, sIncrementTable.getFragment(i));
+						query[i] = new SSSearcherQuery(fragment, SSSearcher.cMatchAtomCharge);
+						}
+					sIncrementQuery = new SoftReference<SSSearcherQuery[]>(query);
+					}
+				}
+			mIncrementQuery = query;
+			}
+		return query;
+		}
+
+
 	public double assessDruglikeness(StereoMolecule testMolecule, ThreadMaster threadMaster) {
 		ParameterizedStringList detail = new ParameterizedStringList();
 
@@ -77,16 +110,16 @@ public class DruglikenessPredictor {
 		double nastyIncrementSum = 0.0;
 		double incrementSum = 0.0;
 		int fragmentCount = 0;
+		SSSearcherQuery[] incrementQuery = getIncrementQueries();
 		SSSearcher sss = new SSSearcher(SSSearcher.cMatchAtomCharge);
-		StereoMolecule fragment = new StereoMolecule();
-		for (int i=0; i<sIncrementTable.getSize(); i++) {
+		sss.setMolecule(testMolecule);
+		for (int i=0; i<incrementQuery.length; i++) {
 			if (threadMaster != null && threadMaster.threadMustDie())
 				return cDruglikenessUnknown;
 
 			Thread.yield();
 
-			new IDCodeParser(false).parse(fragment, sIncrementTable.getFragment(i));
-			sss.setMol(fragment, testMolecule);
+			sss.setQuery(incrementQuery[i]);
 			if (sss.isFragmentInMolecule()) {
 				double increment = sIncrementTable.getIncrement(i);
 				if (increment < -1)
@@ -123,14 +156,11 @@ public class DruglikenessPredictor {
 		double incrementSum = 0.0;
 		int fragmentCount = 0;
 		SSSearcher sss = new SSSearcher(SSSearcher.cMatchAtomCharge);
-		StereoMolecule fragment = new StereoMolecule();
-		for (int i=0; i<sIncrementTable.getSize(); i++) {
-			new IDCodeParser(false).parse(fragment, sIncrementTable.getFragment(i));
-			sss.setMol(fragment, testMolecule);
-			if (sss.isFragmentInMolecule()) {
-				incrementSum += sIncrementTable.getIncrement(i);
-				fragmentCount++;
-				}
+		sss.setMolecule(testMolecule);
+		BitSet isFound = sss.areFragmentsInMolecule(getIncrementQueries(), SSSearcher.cMatchAtomCharge);
+		for (int i=isFound.nextSetBit(0); i>=0; i=isFound.nextSetBit(i+1)) {
+			incrementSum += sIncrementTable.getIncrement(i);
+			fragmentCount++;
 			}
 
 		double druglikeness = (fragmentCount == 0) ? -1 : incrementSum / Math.sqrt(fragmentCount);
@@ -37,13 +37,16 @@ import com.actelion.research.calc.ThreadMaster;
 import com.actelion.research.chem.Canonizer;
 import com.actelion.research.chem.IDCodeParser;
 import com.actelion.research.chem.SSSearcher;
+import com.actelion.research.chem.SSSearcherQuery;
 import com.actelion.research.chem.SortedStringList;
 import com.actelion.research.chem.StereoMolecule;
 
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.lang.ref.SoftReference;
 import java.util.ArrayList;
+import java.util.BitSet;
 
 public class ToxicityPredictor {
     public static final String[] RISK_NAME = { "unknown", "none", "low", "high" };
@@ -71,6 +74,9 @@ public class ToxicityPredictor {
 	private static ArrayList<String>[]	sLowRiskFragments;
 	private static SortedStringList[]	sRiskMolecules;
     private static boolean				sInitialized;
+	private static SoftReference<RiskQueries> sRiskQueries;
+
+	private volatile RiskQueries mRiskQueries;
 
 	@SuppressWarnings("unchecked")
 	public ToxicityPredictor() {
@@ -102,6 +108,28 @@ public class ToxicityPredictor {
 		}
 
 
+	/**
+	 * The fragment libraries are compiled into sub-structure queries on first use. These are
+	 * immutable and shared by all predictors. Once no predictor uses them anymore, they may
+	 * be released when memory gets low and are compiled again when needed.
+	 * @return compiled high and low risk fragments
+	 */
+	private RiskQueries getRiskQueries() {
+		RiskQueries queries = mRiskQueries;
+		if (queries == null) {
+			synchronized(ToxicityPredictor.class) {
+				queries = (sRiskQueries == null) ? null : sRiskQueries.get();
+				if (queries == null) {
+					queries = new RiskQueries();
+					sRiskQueries = new SoftReference<RiskQueries>(queries);
+					}
+				}
+			mRiskQueries = queries;
+			}
+		return queries;
+		}
+
+
 	public int assessRisk(StereoMolecule testMolecule, int riskType, ThreadMaster threadMaster) {
 		if (!sInitialized)
 			return cUnknownRisk;
@@ -109,28 +137,27 @@ public class ToxicityPredictor {
 		if (sRiskMolecules[riskType].contains(new Canonizer(testMolecule).getIDCode()))
 			return cHighRisk;
 
+		RiskQueries queries = getRiskQueries();
 		SSSearcher sss = new SSSearcher(SSSearcher.cMatchAtomCharge);
-		StereoMolecule fragment = new StereoMolecule();
-		for (int i=0; i<sHighRiskFragments[riskType].size(); i++) {
+		sss.setMolecule(testMolecule);
+		for (int i=0; i<queries.mHighRisk[riskType].length; i++) {
 			if (threadMaster != null && threadMaster.threadMustDie())
 				return cUnknownRisk;
 
 			Thread.yield();
 
-			new IDCodeParser(false).parse(fragment, sHighRiskFragments[riskType].get(i));
-			sss.setMol(fragment, testMolecule);
+			sss.setQuery(queries.mHighRisk[riskType][i]);
 			if (sss.isFragmentInMolecule())
 				return cHighRisk;
 			}
 
-		for (int i=0; i<sLowRiskFragments[riskType].size(); i++) {
+		for (int i=0; i<queries.mLowRisk[riskType].length; i++) {
 			if (threadMaster != null && threadMaster.threadMustDie())
 				return cUnknownRisk;
 
 			Thread.yield();
 
-			new IDCodeParser(false).parse(fragment, sLowRiskFragments[riskType].get(i));
-			sss.setMol(fragment, testMolecule);
+			sss.setQuery(queries.mLowRisk[riskType][i]);
 			if (sss.isFragmentInMolecule())
 				return cLowRisk;
 			}
@@ -156,35 +183,22 @@ public class ToxicityPredictor {
 			return theDetail;
 			}
 
+		RiskQueries queries = getRiskQueries();
 		SSSearcher sss = new SSSearcher(SSSearcher.cMatchAtomCharge);
-		boolean found = false;
-		StereoMolecule fragment = new StereoMolecule();
-		for (int i=0; i<sHighRiskFragments[riskType].size(); i++) {
-			new IDCodeParser(false).parse(fragment, sHighRiskFragments[riskType].get(i));
-			sss.setMol(fragment, testMolecule);
-			if (sss.isFragmentInMolecule()) {
-				if (!found)
-					theDetail.add("High-risk fragments indicating "+cRiskNameN[riskType]+":",
-										 ParameterizedStringList.cStringTypeText);
-
-				found = true;
-				theDetail.add(sHighRiskFragments[riskType].get(i), ParameterizedStringList.cStringTypeIDCode);
-				}
-			}
+		sss.setMolecule(testMolecule);
+		BitSet isFound = sss.areFragmentsInMolecule(queries.mHighRisk[riskType], SSSearcher.cMatchAtomCharge);
+		if (!isFound.isEmpty())
+			theDetail.add("High-risk fragments indicating "+cRiskNameN[riskType]+":",
+								 ParameterizedStringList.cStringTypeText);
+		for (int i=isFound.nextSetBit(0); i>=0; i=isFound.nextSetBit(i+1))
+			theDetail.add(sHighRiskFragments[riskType].get(i), ParameterizedStringList.cStringTypeIDCode);
 
-		found = false;
-		for (int i=0; i<sLowRiskFragments[riskType].size(); i++) {
-			new IDCodeParser(false).parse(fragment, sLowRiskFragments[riskType].get(i));
-			sss.setMol(fragment, testMolecule);
-			if (sss.isFragmentInMolecule()) {
-				if (!found)
-					theDetail.add("Medium-risk fragments indicating "+cRiskNameN[riskType]+":",
-										 ParameterizedStringList.cStringTypeText);
-
-				found = true;
-				theDetail.add(sLowRiskFragments[riskType].get(i), ParameterizedStringList.cStringTypeIDCode);
-				}
-			}
+		isFound = sss.areFragmentsInMolecule(queries.mLowRisk[riskType], SSSearcher.cMatchAtomCharge);
+		if (!isFound.isEmpty())
+			theDetail.add("Medium-risk fragments indicating "+cRiskNameN[riskType]+":",
+								 ParameterizedStringList.cStringTypeText);
+		for (int i=isFound.nextSetBit(0); i>=0; i=isFound.nextSetBit(i+1))
+			theDetail.add(sLowRiskFragments[riskType].get(i), ParameterizedStringList.cStringTypeIDCode);
 
 		if (theDetail.getSize() == 0)
 			theDetail.add("No indication for "+cRiskNameN[riskType]+" found.",
@@ -194,6 +208,31 @@ public class ToxicityPredictor {
 		}
 
 
+	private static SSSearcherQuery[] compileQueries(ArrayList<String> idcodeList) {
+		SSSearcherQuery[] query = new SSSearcherQuery[idcodeList.size()];
+		StereoMolecule fragment = new StereoMolecule();
+		for (int i=0; i<query.length; i++) {
+			new IDCodeParser(false).parse(fragment, idcodeList.get(i));
+			query[i] = new SSSearcherQuery(fragment, SSSearcher.cMatchAtomCharge);
+			}
+		return query;
+		}
+
+
+	private static class RiskQueries {
+		private SSSearcherQuery[][] mHighRisk,mLowRisk;
+
+		public RiskQueries() {
+			mHighRisk = new SSSearcherQuery[cRiskTypes][];
+			mLowRisk = new SSSearcherQuery[cRiskTypes][];
+			for (int riskType=0; riskType<cRiskTypes; riskType++) {
+				mHighRisk[riskType] = compileQueries(sHighRiskFragments[riskType]);
+				mLowRisk[riskType] = compileQueries(sLowRiskFragments[riskType]);
+				}
+			}
+		}
+
+
 	private ArrayList<String> readIDCodeFile(String filename) throws Exception {
 		BufferedReader theReader = new BufferedReader(new InputStreamReader(this.getClass().getResourceAsStream(filename)));
 		ArrayList<String> fragments = new ArrayList<String>();
@@ -42,6 +42,9 @@ import com.actelion.research.chem.StereoMolecule;
 
 
 public class FunctionalGroupClassifier {
+	private static final int FUNCTIONAL_GROUP_COUNT = 1024;
+	private static volatile byte[] sNodeMask;
+
 	private StereoMolecule mMol;
 	private TreeMap<Integer,Integer> mFunctionalGroupCountMap;
 
@@ -99,6 +102,17 @@ public class FunctionalGroupClassifier {
 		if (fg1 == fg2)
 			return 0;
 
+		if (fg1 >= 0 && fg1 < FUNCTIONAL_GROUP_COUNT && fg2 >= 0 && fg2 < FUNCTIONAL_GROUP_COUNT) {
+			// level of the lowest common node is the number of bits up to the highest differing one
+			int level = 32 - Integer.numberOfLeadingZeros(fg1 ^ fg2);
+			if (level >= 8)
+				return -1;
+
+			byte[] nodeMask = getNodeMasks();
+			int levelMask = (2 << level) - 2;
+			return ((nodeMask[fg1] | nodeMask[fg2]) & levelMask) != 0 ? -1 : level;
+			}
+
 		int mask = 1;
 		for (int i=1; i<8; i++) {
 			if (nodeExists(fg1, i) || nodeExists(fg2, i))
@@ -115,6 +129,29 @@ public class FunctionalGroupClassifier {
 		return -1;
 		}
 
+	/**
+	 * For every functional group ID bit i (1...7) of the mask is set, if the tree node
+	 * i levels above the functional group is named, i.e. is not a meaningful common node.
+	 * Setting the lower bits of an ID doesn't change its node on levels above,
+	 * which allows a precalculated mask per ID.
+	 * @return node masks of all functional group IDs
+	 */
+	private static byte[] getNodeMasks() {
+		if (sNodeMask == null) {
+			synchronized(FunctionalGroupClassifier.class) {
+				if (sNodeMask == null) {
+					byte[] nodeMask = new byte[FUNCTIONAL_GROUP_COUNT];
+					for (int fg=0; fg<FUNCTIONAL_GROUP_COUNT; fg++)
+						for (int i=1; i<8; i++)
+							if (nodeExists(fg, i))
+								nodeMask[fg] |= (1 << i);
+					sNodeMask = nodeMask;
+					}
+				}
+			}
+		return sNodeMask;
+		}
+
 	private static boolean nodeExists(int fgID, int level) {
 		return ClassificationData.getInstance().getEFGName(fgID, 8-level) != null;
 		}
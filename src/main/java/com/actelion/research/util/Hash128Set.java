@@ -0,0 +1,187 @@
+/*
+* Copyright (c) 1997 - 2016
+* Actelion Pharmaceuticals Ltd.
+* Gewerbestrasse 16
+* CH-4123 Allschwil, Switzerland
+*
+* All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without
+* modification, are permitted provided that the following conditions are met:
+*
+* 1. Redistributions of source code must retain the above copyright notice, this
+*    list of conditions and the following disclaimer.
+* 2. Redistributions in binary form must reproduce the above copyright notice,
+*    this list of conditions and the following disclaimer in the documentation
+*    and/or other materials provided with the distribution.
+* 3. Neither the name of the the copyright holder nor the
+*    names of its contributors may be used to endorse or promote products
+*    derived from this software without specific prior written permission.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+* ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+* WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+* DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+* ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+* (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+* LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+* ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+* (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+* SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*
+*/
+
+package com.actelion.research.util;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+
+/**
+ * Open-addressing hash set of 128-bit keys, e.g. canonical structure hashes, which keeps
+ * its table outside of the Java heap in direct ByteBuffers. Every entry carries two long
+ * values in addition to its key. The table is allocated once with a fixed capacity and
+ * is never resized; callers check isFull() before adding entries. Keys are expected to be
+ * well distributed hash values; their lower bits directly select the slot and collisions
+ * are resolved by linear probing. The key (0,0) marks empty slots and is therefore
+ * stored as (0,1). Entries cannot be removed individually; clear() empties the set.
+ * The off-heap memory is released, when the set is garbage collected. It counts towards
+ * the JVM's limit for direct memory (-XX:MaxDirectMemorySize).
+ * Instances are not thread-safe.
+ */
+public class Hash128Set {
+	public static final int BYTES_PER_SLOT = 32;
+
+	private static final int LONGS_PER_SLOT = 4;
+	private static final int SEGMENT_BITS = 24;	// 16 million slots or 512 MB per segment
+	private static final int SEGMENT_MASK = (1 << SEGMENT_BITS) - 1;
+	private static final double MAX_LOAD = 0.7;
+
+	private LongBuffer[] mSegment;
+	private long mCapacity,mSize,mSlotMask;
+
+	/**
+	 * Allocates a table large enough for capacity entries.
+	 * @param capacity maximum number of entries
+	 */
+	public Hash128Set(long capacity) {
+		long slots = Long.highestOneBit(Math.max(16, (long)(capacity / MAX_LOAD)));
+		if (slots * MAX_LOAD < capacity)
+			slots <<= 1;
+
+		mSlotMask = slots - 1;
+		mCapacity = capacity;
+
+		int segmentSlots = (int)Math.min(slots, 1 << SEGMENT_BITS);
+		mSegment = new LongBuffer[(int)(slots / segmentSlots)];
+		for (int i=0; i<mSegment.length; i++)
+			mSegment[i] = ByteBuffer.allocateDirect(segmentSlots * BYTES_PER_SLOT).order(ByteOrder.nativeOrder()).asLongBuffer();
+		}
+
+	/**
+	 * @param bytes maximum off-heap memory to be used by the table
+	 * @return number of entries a Hash128Set can hold, if its table must not exceed the given size
+	 */
+	public static long getCapacityForMemory(long bytes) {
+		long slots = Long.highestOneBit(Math.max(16, bytes / BYTES_PER_SLOT));
+		return (long)(slots * MAX_LOAD);
+		}
+
+	public long getCapacity() {
+		return mCapacity;
+		}
+
+	public long size() {
+		return mSize;
+		}
+
+	public boolean isFull() {
+		return mSize >= mCapacity;
+		}
+
+	/**
+	 * Removes all entries.
+	 */
+	public void clear() {
+		for (LongBuffer segment:mSegment)
+			for (int i=0; i<segment.capacity(); i+=LONGS_PER_SLOT) {
+				segment.put(i, 0);
+				segment.put(i+1, 0);
+				}
+		mSize = 0;
+		}
+
+	/**
+	 * @param h1 first half of the key
+	 * @param h2 second half of the key
+	 * @return slot of the key or -1, if the key is not in the set
+	 */
+	public long find(long h1, long h2) {
+		if ((h1 | h2) == 0)
+			h2 = 1;
+
+		long slot = h1 & mSlotMask;
+		while (true) {
+			LongBuffer segment = mSegment[(int)(slot >>> SEGMENT_BITS)];
+			int index = ((int)slot & SEGMENT_MASK) * LONGS_PER_SLOT;
+			long k1 = segment.get(index);
+			long k2 = segment.get(index+1);
+			if (k1 == h1 && k2 == h2)
+				return slot;
+			if ((k1 | k2) == 0)
+				return -1;
+			slot = (slot + 1) & mSlotMask;
+			}
+		}
+
+	/**
+	 * Adds the key with its values, if the key is not yet in the set.
+	 * @param h1 first half of the key
+	 * @param h2 second half of the key
+	 * @param value1
+	 * @param value2
+	 * @return -1, if the key was added; otherwise the slot of the existing key, whose values are not changed
+	 * @throws IllegalStateException if the key is new and the set is full
+	 */
+	public long add(long h1, long h2, long value1, long value2) {
+		if ((h1 | h2) == 0)
+			h2 = 1;
+
+		long slot = h1 & mSlotMask;
+		while (true) {
+			LongBuffer segment = mSegment[(int)(slot >>> SEGMENT_BITS)];
+			int index = ((int)slot & SEGMENT_MASK) * LONGS_PER_SLOT;
+			long k1 = segment.get(index);
+			long k2 = segment.get(index+1);
+			if (k1 == h1 && k2 == h2)
+				return slot;
+			if ((k1 | k2) == 0) {
+				if (isFull())
+					throw new IllegalStateException("Hash128Set is full");
+				segment.put(index, h1);
+				segment.put(index+1, h2);
+				segment.put(index+2, value1);
+				segment.put(index+3, value2);
+				mSize++;
+				return -1;
+				}
+			slot = (slot + 1) & mSlotMask;
+			}
+		}
+
+	/**
+	 * @param slot as returned by find() or add()
+	 * @return first value of the entry in this slot
+	 */
+	public long getValue1(long slot) {
+		return mSegment[(int)(slot >>> SEGMENT_BITS)].get(((int)slot & SEGMENT_MASK) * LONGS_PER_SLOT + 2);
+		}
+
+	/**
+	 * @param slot as returned by find() or add()
+	 * @return second value of the entry in this slot
+	 */
+	public long getValue2(long slot) {
+		return mSegment[(int)(slot >>> SEGMENT_BITS)].get(((int)slot & SEGMENT_MASK) * LONGS_PER_SLOT + 3);
+		}
+	}
@@ -0,0 +1,190 @@
+/*
+* Copyright (c) 1997 - 2016
+* Actelion Pharmaceuticals Ltd.
+* Gewerbestrasse 16
+* CH-4123 Allschwil, Switzerland
+*
+* All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without
+* modification, are permitted provided that the following conditions are met:
+*
+* 1. Redistributions of source code must retain the above copyright notice, this
+*    list of conditions and the following disclaimer.
+* 2. Redistributions in binary form must reproduce the above copyright notice,
+*    this list of conditions and the following disclaimer in the documentation
+*    and/or other materials provided with the distribution.
+* 3. Neither the name of the the copyright holder nor the
+*    names of its contributors may be used to endorse or promote products
+*    derived from this software without specific prior written permission.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+* ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+* WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+* DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+* ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+* (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+* LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+* ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+* (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+* SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*
+*/
+
+package com.actelion.research.util;
+
+/**
+ * Incremental implementation of Austin Appleby's MurmurHash3_x64_128, which creates
+ * the same 128-bit hash as the reference implementation for the same byte sequence.
+ * Bytes are added one at a time without any buffering, such that callers may hash data
+ * while they produce it. After calling finish() the hash is available as two longs,
+ * the first of which is used as 64-bit hash. Then, reset() prepares for the next hash.
+ * MurmurHash3 distributes well and is fast, but it is not a cryptographic hash.
+ * Instances are not thread-safe.
+ */
+public class MurmurHash3 {
+	private static final long C1 = 0x87c37b91114253d5L;
+	private static final long C2 = 0x4cf5ad432745937fL;
+
+	private long mSeed,mH1,mH2,mK1,mK2;
+	private int mLength;
+
+	public MurmurHash3() {
+		this(0);
+		}
+
+	/**
+	 * @param seed lower 32 bits are used as seed like in the reference implementation
+	 */
+	public MurmurHash3(int seed) {
+		mSeed = seed & 0xFFFFFFFFL;
+		reset();
+		}
+
+	public void reset() {
+		mH1 = mSeed;
+		mH2 = mSeed;
+		mK1 = 0;
+		mK2 = 0;
+		mLength = 0;
+		}
+
+	/**
+	 * @param b byte to be added to the hash; only the lowest 8 bits are used
+	 */
+	public void add(int b) {
+		int index = mLength & 15;
+		if (index < 8)
+			mK1 |= (b & 0xFFL) << (index << 3);
+		else
+			mK2 |= (b & 0xFFL) << ((index - 8) << 3);
+
+		if (index == 15) {
+			mH1 ^= mixK1(mK1);
+			mH1 = Long.rotateLeft(mH1, 27);
+			mH1 += mH2;
+			mH1 = mH1 * 5 + 0x52dce729;
+
+			mH2 ^= mixK2(mK2);
+			mH2 = Long.rotateLeft(mH2, 31);
+			mH2 += mH1;
+			mH2 = mH2 * 5 + 0x38495ab5;
+
+			mK1 = 0;
+			mK2 = 0;
+			}
+
+		mLength++;
+		}
+
+	/**
+	 * Adds the lower 8 bits of all characters of s.
+	 * @param s
+	 */
+	public void add(String s) {
+		for (int i=0; i<s.length(); i++)
+			add(s.charAt(i));
+		}
+
+	/**
+	 * Processes the remaining bytes and completes the hash calculation.
+	 * @return first 64 bits of the 128-bit hash
+	 */
+	public long finish() {
+		// unprocessed bytes are zero-padded; mixing zeros has no effect
+		mH1 ^= mixK1(mK1);
+		mH2 ^= mixK2(mK2);
+
+		mH1 ^= mLength;
+		mH2 ^= mLength;
+
+		mH1 += mH2;
+		mH2 += mH1;
+
+		mH1 = finalMix(mH1);
+		mH2 = finalMix(mH2);
+
+		mH1 += mH2;
+		mH2 += mH1;
+
+		return mH1;
+		}
+
+	/**
+	 * @return first 64 bits of the 128-bit hash, which is valid after calling finish()
+	 */
+	public long getHash1() {
+		return mH1;
+		}
+
+	/**
+	 * @return last 64 bits of the 128-bit hash, which is valid after calling finish()
+	 */
+	public long getHash2() {
+		return mH2;
+		}
+
+	/**
+	 * @param s string of 8-bit characters, e.g. an idcode
+	 * @return first 64 bits of MurmurHash3_x64_128 of the characters of s with seed 0
+	 */
+	public static long hash64(String s) {
+		MurmurHash3 hash = new MurmurHash3();
+		hash.add(s);
+		return hash.finish();
+		}
+
+	/**
+	 * @param s string of 8-bit characters, e.g. an idcode
+	 * @return MurmurHash3_x64_128 of the characters of s with seed 0 as two longs
+	 */
+	public static long[] hash128(String s) {
+		MurmurHash3 hash = new MurmurHash3();
+		hash.add(s);
+		hash.finish();
+		return new long[] { hash.mH1, hash.mH2 };
+		}
+
+	private static long mixK1(long k1) {
+		k1 *= C1;
+		k1 = Long.rotateLeft(k1, 31);
+		k1 *= C2;
+		return k1;
+		}
+
+	private static long mixK2(long k2) {
+		k2 *= C2;
+		k2 = Long.rotateLeft(k2, 33);
+		k2 *= C1;
+		return k2;
+		}
+
+	private static long finalMix(long k) {
+		k ^= k >>> 33;
+		k *= 0xff51afd7ed558ccdL;
+		k ^= k >>> 33;
+		k *= 0xc4ceb9fe1a85ec53L;
+		k ^= k >>> 33;
+		return k;
+		}
+	}